@@ -85,6 +85,7 @@ import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.installer.Installer;
 import org.fdroid.fdroid.installer.Installer.AndroidNotCompatibleException;
 import org.fdroid.fdroid.installer.Installer.InstallerCallback;
+import org.fdroid.fdroid.net.ApkDownloadQueue;
 import org.fdroid.fdroid.net.ApkDownloader;
 import org.fdroid.fdroid.net.Downloader;
 
@@ -853,11 +854,9 @@ public class AppDetails extends ActionBarActivity implements ProgressListener, A
     }
 
     private void startDownload(Apk apk, String repoAddress) {
-        downloadHandler = new ApkDownloader(getBaseContext(), apk, repoAddress);
+        downloadHandler = ApkDownloadQueue.get(this).enqueue(apk, repoAddress, ApkDownloadQueue.PRIORITY_INTERACTIVE);
         downloadHandler.setProgressListener(this);
-        if (downloadHandler.download()) {
-            updateProgressDialog();
-        }
+        updateProgressDialog();
     }
 
     private void installApk(File file, String packageName) {
@@ -45,7 +45,6 @@ import com.nostra13.universalimageloader.cache.disc.impl.LimitedAgeDiskCache;
 import com.nostra13.universalimageloader.cache.disc.naming.FileNameGenerator;
 import com.nostra13.universalimageloader.core.ImageLoader;
 import com.nostra13.universalimageloader.core.ImageLoaderConfiguration;
-import com.nostra13.universalimageloader.utils.StorageUtils;
 
 import org.fdroid.fdroid.Preferences.ChangeListener;
 import org.fdroid.fdroid.compat.PRNGFixes;
@@ -53,10 +52,10 @@ import org.fdroid.fdroid.data.AppProvider;
 import org.fdroid.fdroid.data.InstalledAppCacheUpdater;
 import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.localrepo.LocalRepoService;
+import org.fdroid.fdroid.net.HttpConnections;
 import org.fdroid.fdroid.net.IconDownloader;
 import org.fdroid.fdroid.net.WifiStateChangeService;
 
-import java.io.File;
 import java.security.Security;
 import java.util.Locale;
 import java.util.Set;
@@ -73,6 +72,8 @@ public class FDroidApp extends Application {
 
     // Leaving the fully qualified class name here to help clarify the difference between spongy/bouncy castle.
     private static final org.spongycastle.jce.provider.BouncyCastleProvider spongyCastleProvider;
+    private static final Object spongyCastleLock = new Object();
+    private static int spongyCastleDisabledCount = 0;
     private static Messenger localRepoServiceMessenger = null;
     private static boolean localRepoServiceIsBound = false;
 
@@ -118,15 +119,35 @@ public class FDroidApp extends Application {
         Security.addProvider(spongyCastleProvider);
     }
 
+    /**
+     * Undoes one call to {@link #disableSpongyCastleOnLollipop()}. The provider is only
+     * put back once everyone who disabled it is done.
+     */
     public static void enableSpongyCastleOnLollipop() {
         if (Build.VERSION.SDK_INT == 21) {
-            Security.addProvider(spongyCastleProvider);
+            synchronized (spongyCastleLock) {
+                spongyCastleDisabledCount--;
+                if (spongyCastleDisabledCount == 0) {
+                    Security.addProvider(spongyCastleProvider);
+                }
+            }
         }
     }
 
+    /**
+     * Jars are verified on several threads at once (the indexes of repos, and the apks
+     * added to the local repo), and the provider is shared by the whole process. So each
+     * call must be followed by one to {@link #enableSpongyCastleOnLollipop()}, and the
+     * provider stays removed until the last of them.
+     */
     public static void disableSpongyCastleOnLollipop() {
         if (Build.VERSION.SDK_INT == 21) {
-            Security.removeProvider(spongyCastleProvider.getName());
+            synchronized (spongyCastleLock) {
+                if (spongyCastleDisabledCount == 0) {
+                    Security.removeProvider(spongyCastleProvider.getName());
+                }
+                spongyCastleDisabledCount++;
+            }
         }
     }
 
@@ -164,12 +185,16 @@ public class FDroidApp extends Application {
         // Apply the Google PRNG fixes to properly seed SecureRandom
         PRNGFixes.apply();
 
+        // Read by HttpURLConnection when its pool of keep-alive connections is first used,
+        // so this must be done before any requests are made.
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", Integer.toString(HttpConnections.MAX_IDLE_CONNECTIONS_PER_HOST));
+
         // Check that the installed app cache hasn't gotten out of sync somehow.
         // e.g. if we crashed/ran out of battery half way through responding
         // to a package installed intent. It doesn't really matter where
-        // we put this in the bootstrap process, because it runs on a different
-        // thread, which will be delayed by some seconds to avoid an error where
-        // the database is locked due to the database updater.
+        // we put this in the bootstrap process, because it runs in a service,
+        // which is the only thing that writes to the cache.
         InstalledAppCacheUpdater.updateInBackground(getApplicationContext());
 
         // If the user changes the preference to do with filtering rooted apps,
@@ -197,8 +222,10 @@ public class FDroidApp extends Application {
         // Index files which downloaded, but were not removed (e.g. due to F-Droid being force
         // closed during processing of the file, before getting a chance to delete). This may
         // include both "index-*-downloaded" and "index-*-extracted.xml" files. The first is from
-        // either signed or unsigned repos, and the later is from signed repos.
+        // either signed or unsigned repos, and the later is from signed repos. Icon
+        // bundles are left behind in the same way.
         Utils.deleteFiles(getCacheDir(), "index-", null);
+        Utils.deleteFiles(getCacheDir(), "icons-", ".zip");
 
         // As above, but for legacy F-Droid clients that downloaded under a different name, and
         // extracted to the files directory rather than the cache directory.
@@ -216,14 +243,12 @@ public class FDroidApp extends Application {
         ImageLoaderConfiguration config = new ImageLoaderConfiguration.Builder(getApplicationContext())
             .imageDownloader(new IconDownloader(getApplicationContext()))
             .diskCache(new LimitedAgeDiskCache(
-                        new File(StorageUtils.getCacheDirectory(getApplicationContext(), true),
-                            "icons"),
+                        Utils.getIconCacheDir(getApplicationContext()),
                         null,
                         new FileNameGenerator() {
                             @Override
                             public String generate(String imageUri) {
-                                return imageUri.substring(
-                                    imageUri.lastIndexOf('/') + 1);
+                                return Utils.getIconCacheFileName(imageUri);
                             } },
                         // 30 days in secs: 30*24*60*60 = 2592000
                         2592000)
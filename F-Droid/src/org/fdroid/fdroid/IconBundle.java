@@ -0,0 +1,143 @@
+package org.fdroid.fdroid;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.net.Downloader;
+import org.fdroid.fdroid.net.DownloaderFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Repos may provide all of their icons for a given density as a single zip file, next
+ * to the directory they are usually found in (e.g. {@code icons-240.zip} for the icons in
+ * {@code icons-240/}). Fetching this once is much quicker than asking for each of
+ * thousands of icons separately when the app list is first shown. The icons are unpacked
+ * straight into the image loader's disk cache (see {@link Utils#getIconCacheDir(Context)}),
+ * where they are found as if each had been downloaded on its own.
+ *
+ * Repos which don't have an icon bundle are left alone, their icons are downloaded one
+ * at a time as before. The ETag of each bundle is remembered, so that it is only
+ * downloaded again when it changes.
+ */
+public class IconBundle {
+
+    private static final String TAG = "IconBundle";
+
+    private static final String PREFERENCES_FILE = "iconBundles";
+
+    @NonNull private final Context context;
+    @NonNull private final Repo repo;
+    private final int repoVersion;
+
+    /**
+     * @param repoVersion The version of the repo according to its latest index, which
+     *                    decides which icons directory it has.
+     */
+    public IconBundle(@NonNull Context context, @NonNull Repo repo, int repoVersion) {
+        this.context = context;
+        this.repo = repo;
+        this.repoVersion = repoVersion;
+    }
+
+    /**
+     * Uses the same directory as the icon urls worked out by the
+     * {@link org.fdroid.fdroid.data.AppProvider}.
+     */
+    public String getAddress() {
+        String iconsDir = repoVersion >= Repo.VERSION_DENSITY_SPECIFIC_ICONS
+                ? Utils.getIconsDir(context, 1.0)
+                : Utils.FALLBACK_ICONS_DIR;
+
+        // "/icons-240/" becomes "/icons-240.zip"
+        return repo.address + iconsDir.substring(0, iconsDir.length() - 1) + ".zip";
+    }
+
+    /**
+     * Downloads and unpacks the icon bundle, unless it hasn't changed since last time.
+     * Any failure is only logged, because the icons can still be downloaded individually.
+     * @return The number of icons which were unpacked.
+     */
+    public int update() {
+        String address = getAddress();
+        SharedPreferences prefs = context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE);
+
+        Downloader downloader = null;
+        try {
+            downloader = DownloaderFactory.create(address, File.createTempFile("icons-", ".zip", context.getCacheDir()));
+            downloader.setCacheTag(prefs.getString(address, null));
+            downloader.downloadUninterrupted();
+
+            if (downloader.isCached()) {
+                Log.d(TAG, "Icon bundle " + address + " is up to date");
+                return 0;
+            }
+
+            long startTime = System.currentTimeMillis();
+            int count = unpack(downloader.getFile(), Utils.getIconCacheDir(context));
+            Log.d(TAG, "Unpacked " + count + " icons from " + address
+                    + " (took " + (System.currentTimeMillis() - startTime) + "ms)");
+
+            prefs.edit().putString(address, downloader.getCacheTag()).commit();
+            return count;
+        } catch (IOException e) {
+            // Usually a 404, because the repo doesn't provide one.
+            Log.i(TAG, "No icon bundle from " + repo.address + " (" + e.getMessage() + ")");
+            return 0;
+        } finally {
+            if (downloader != null && downloader.getFile() != null) {
+                downloader.getFile().delete();
+            }
+        }
+    }
+
+    /**
+     * Only the name of each entry is used, any directories in it are ignored, so that
+     * nothing can be written outside of {@code destDir}. Each icon is written to a
+     * temporary file first, so that the image loader never sees half an icon.
+     */
+    static int unpack(File bundle, File destDir) throws IOException {
+        int count = 0;
+        ZipFile zip = new ZipFile(bundle);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = new File(entry.getName()).getName();
+                if (entry.isDirectory() || name.length() == 0 || name.startsWith(".")) {
+                    continue;
+                }
+
+                File icon = new File(destDir, name);
+                File tempIcon = new File(destDir, "." + name + ".tmp");
+                InputStream input = zip.getInputStream(entry);
+                OutputStream output = new FileOutputStream(tempIcon);
+                try {
+                    Utils.copy(input, output);
+                } finally {
+                    Utils.closeQuietly(output);
+                    Utils.closeQuietly(input);
+                }
+
+                if (!tempIcon.renameTo(icon)) {
+                    tempIcon.delete();
+                    throw new IOException("Could not move icon into " + icon);
+                }
+                count++;
+            }
+        } finally {
+            zip.close();
+        }
+        return count;
+    }
+}
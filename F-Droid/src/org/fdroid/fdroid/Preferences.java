@@ -61,6 +61,7 @@ public class Preferences implements SharedPreferences.OnSharedPreferenceChangeLi
     public static final String PREF_SHOW_NFC_DURING_SWAP = "showNfcDuringSwap";
     public static final String PREF_FIRST_TIME = "firstTime";
     public static final String PREF_POST_SYSTEM_INSTALL = "postSystemInstall";
+    public static final String PREF_ICON_BUNDLES = "fetchIconBundles";
 
     private static final boolean DEFAULT_COMPACT_LAYOUT = false;
     private static final boolean DEFAULT_ROOTED = true;
@@ -0,0 +1,351 @@
+package org.fdroid.fdroid;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.ApkKeySet;
+import org.fdroid.fdroid.data.ApkProvider;
+import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.AppProvider;
+import org.fdroid.fdroid.data.Repo;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Receives apps and apks from a {@link RepoXMLHandler} as they are parsed, and writes
+ * them to the database in batches. This means that only {@link RepoPersister#MAX_APP_BUFFER}
+ * apps (and their apks) are held in memory at any one time, regardless of how large the
+ * index is.
+ *
+ * The index is parsed at the same time as its signature is being verified, so the batches
+ * are written to staging tables (see {@link AppProvider.Helper#initStaging(Context, Repo)})
+ * rather than the real ones. Once the index has been completely parsed and verified,
+ * {@link RepoPersister#commit()} must be called to flush the remaining apps, move everything
+ * into the real tables, and remove any apks which used to belong to this repo but are no
+ * longer in its index. If it was an index delta, call {@link RepoPersister#commitDelta(List)}
+ * instead. If the index could not be verified, call {@link RepoPersister#discard()}.
+ */
+public class RepoPersister implements RepoXMLHandler.IndexReceiver {
+
+    private static final String TAG = "RepoPersister";
+
+    /**
+     * The number of apps to parse before writing them (and their apks) to the database.
+     * Each batch is written with one prepared statement, in a single transaction per
+     * content provider.
+     */
+    public static final int MAX_APP_BUFFER = 50;
+
+    @NonNull private final Context context;
+    @NonNull private final Repo repo;
+    @NonNull private final CompatibilityChecker checker;
+    @Nullable private final ExecutorService databaseWriter;
+
+    private final List<App> appsToSave = new ArrayList<>();
+    private final List<Apk> apksToSave = new ArrayList<>();
+
+    /**
+     * Only the id and version code of each apk seen in this index, so that we can tell which
+     * apks need removing once the whole index has been processed.
+     */
+    private final ApkKeySet apkKeysInIndex = new ApkKeySet();
+    private final Set<String> appIdsInIndex = new HashSet<>();
+    private final Set<String> appIdsWithRemovedApks = new HashSet<>();
+
+    private int appCount = 0;
+    private boolean isStaging = false;
+
+    /**
+     * The first failure to write a batch while the index was being parsed. The parser
+     * can't be stopped from here, so the rest of the index is skipped, and this is thrown
+     * when it comes to committing.
+     */
+    @Nullable private RepoUpdater.UpdateException writeError;
+
+    public RepoPersister(@NonNull Context context, @NonNull Repo repo) {
+        this(context, repo, null);
+    }
+
+    /**
+     * @param databaseWriter If specified, all reads and writes to the database are run on
+     *                       this executor, and the calling thread waits for them to finish.
+     *                       When several repos are parsed at once, using a single threaded
+     *                       executor here means that committing one repo and then removing
+     *                       its old apks can't interleave with another repo doing the same.
+     */
+    public RepoPersister(@NonNull Context context, @NonNull Repo repo, @Nullable ExecutorService databaseWriter) {
+        this.context = context;
+        this.repo = repo;
+        this.checker = new CompatibilityChecker(context);
+        this.databaseWriter = databaseWriter;
+    }
+
+    @Override
+    public void receiveApp(App app, List<Apk> packages) {
+        appsToSave.add(app);
+        appIdsInIndex.add(app.id);
+        apksToSave.addAll(packages);
+        for (final Apk apk : packages) {
+            apkKeysInIndex.add(apk);
+        }
+
+        if (appsToSave.size() >= MAX_APP_BUFFER) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes any remaining apps, moves everything from this index into the real tables,
+     * then removes apks which belonged to this repo but were not in the index we just
+     * processed. Only call this after the index has been parsed and verified successfully,
+     * otherwise apks will be removed just because we didn't get around to reading them.
+     *
+     * @throws RepoUpdater.UpdateException If anything could not be written. Whatever was
+     * staged is left there, so call {@link RepoPersister#discard()}.
+     */
+    public void commit() throws RepoUpdater.UpdateException {
+        flush();
+        throwIfWriteFailed();
+        runOnDatabaseWriter(new Runnable() {
+            @Override
+            public void run() {
+                commitStaging();
+                removeApksNoLongerInRepo();
+            }
+        });
+        Log.d(TAG, "Saved " + appCount + " apps and " + apkKeysInIndex.size() + " apks from " + repo.address);
+    }
+
+    /**
+     * Like {@link RepoPersister#commit()}, but for an index delta. A delta only contains the
+     * apps which changed (each with its complete list of apks), so only apks of those apps,
+     * or of apps which the delta says were removed, are candidates for removal. Everything
+     * else from this repo is left alone.
+     */
+    public void commitDelta(final List<String> removedAppIds) throws RepoUpdater.UpdateException {
+        flush();
+        throwIfWriteFailed();
+        runOnDatabaseWriter(new Runnable() {
+            @Override
+            public void run() {
+                commitStaging();
+                removeApksNoLongerInDelta(removedAppIds);
+            }
+        });
+        Log.d(TAG, "Saved " + appCount + " changed apps and " + apkKeysInIndex.size() + " apks, and removed "
+                + removedAppIds.size() + " apps from " + repo.address);
+    }
+
+    /**
+     * The ids of every app which was written by this index, or which had apks removed
+     * because they are no longer in it. Only these apps need their details (such as the
+     * suggested version) recalculated, see {@link AppProvider.Helper#calcDetailsFromIndex(Context, java.util.Collection)}.
+     * Only meaningful after {@link RepoPersister#commit()} or {@link RepoPersister#commitDelta(List)}.
+     */
+    public Set<String> getChangedAppIds() {
+        Set<String> changedAppIds = new HashSet<>(appIdsInIndex);
+        changedAppIds.addAll(appIdsWithRemovedApks);
+        return changedAppIds;
+    }
+
+    /**
+     * Throws away everything which has been written so far, leaving the database as it
+     * was before this index was parsed.
+     */
+    public void discard() {
+        appsToSave.clear();
+        apksToSave.clear();
+        try {
+            runOnDatabaseWriter(new Runnable() {
+                @Override
+                public void run() {
+                    if (isStaging) {
+                        AppProvider.Helper.discardStaging(context, repo);
+                        ApkProvider.Helper.discardStaging(context, repo);
+                        isStaging = false;
+                    }
+                }
+            });
+        } catch (RepoUpdater.UpdateException e) {
+            // Already failing, and the staging tables are emptied before they are next used.
+            Log.e(TAG, "Could not discard staged index from " + repo.address + ": " + e.getCause());
+        }
+    }
+
+    private void flush() {
+        if (appsToSave.size() == 0) {
+            return;
+        }
+
+        if (writeError == null) {
+            calcApkCompatibilityFlags(apksToSave);
+            try {
+                runOnDatabaseWriter(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isStaging) {
+                            AppProvider.Helper.initStaging(context, repo);
+                            ApkProvider.Helper.initStaging(context, repo);
+                            isStaging = true;
+                        }
+                        stageApps(appsToSave);
+                        stageApks(apksToSave);
+                    }
+                });
+            } catch (RepoUpdater.UpdateException e) {
+                writeError = e;
+            }
+        }
+
+        appCount += appsToSave.size();
+        appsToSave.clear();
+        apksToSave.clear();
+    }
+
+    private void throwIfWriteFailed() throws RepoUpdater.UpdateException {
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    private void runOnDatabaseWriter(Runnable task) throws RepoUpdater.UpdateException {
+        if (databaseWriter == null) {
+            task.run();
+            return;
+        }
+
+        try {
+            databaseWriter.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepoUpdater.UpdateException(repo, "Interrupted while saving index from " + repo.address, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw new RepoUpdater.UpdateException(repo, "Error saving index from " + repo.address + ": " + cause,
+                    cause instanceof Exception ? (Exception) cause : e);
+        }
+    }
+
+    /**
+     * This cannot be offloaded to the database (as we did with the query which
+     * updates apps, depending on whether their apks are compatible or not).
+     * The reason is that we need to interact with the CompatibilityChecker
+     * in order to see if, and why an apk is not compatible.
+     */
+    private void calcApkCompatibilityFlags(List<Apk> apks) {
+        for (final Apk apk : apks) {
+            final List<String> reasons = checker.getIncompatibleReasons(apk);
+            if (reasons.size() > 0) {
+                apk.compatible = false;
+                apk.incompatible_reasons = Utils.CommaSeparatedList.make(reasons);
+            } else {
+                apk.compatible = true;
+                apk.incompatible_reasons = null;
+            }
+        }
+    }
+
+    private void stageApps(List<App> apps) {
+        long startTime = System.currentTimeMillis();
+        int count = AppProvider.Helper.stage(context, repo, apps);
+        Log.d(TAG, "Staged " + count + " apps (took " + (System.currentTimeMillis() - startTime) + "ms)");
+    }
+
+    private void stageApks(List<Apk> apks) {
+        if (apks.size() == 0) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        int count = ApkProvider.Helper.stage(context, repo, apks);
+        Log.d(TAG, "Staged " + count + " apks (took " + (System.currentTimeMillis() - startTime) + "ms)");
+    }
+
+    /**
+     * Moves the apps and apks from this index into the real tables, replacing those which
+     * are already there. Staged apps with the same id as one which is already in the database
+     * keep whatever the user chose regarding ignoring updates.
+     */
+    private void commitStaging() {
+        if (!isStaging) {
+            return;
+        }
+        int apps = AppProvider.Helper.commitStaging(context, repo);
+        int apks = ApkProvider.Helper.commitStaging(context, repo);
+        isStaging = false;
+        Log.d(TAG, "Committed " + apps + " apps and " + apks + " apks from " + repo.address);
+    }
+
+    /**
+     * Any apks which belong to this repo in the database, but which were not in the
+     * index we just processed, are no longer available and should be removed. If another
+     * repo has since claimed the same apk, then it will no longer be associated with this
+     * repo in the database, and so it is left alone.
+     */
+    private void removeApksNoLongerInRepo() {
+
+        long startTime = System.currentTimeMillis();
+        List<Apk> toRemove = new ArrayList<>();
+
+        // Only what is in the apk_repo index, so that the apk table itself isn't read.
+        final String[] fields = {
+            ApkProvider.DataColumns.APK_ID,
+            ApkProvider.DataColumns.VERSION_CODE,
+        };
+
+        final List<Apk> existingApks = ApkProvider.Helper.findByRepo(context, repo, fields);
+        for (final Apk existingApk : existingApks) {
+            if (!apkKeysInIndex.contains(existingApk)) {
+                toRemove.add(existingApk);
+            }
+        }
+
+        long duration = System.currentTimeMillis() - startTime;
+        Log.d(TAG, "Found " + toRemove.size() + " apks no longer in " + repo.address + " (took " + duration + "ms)");
+
+        if (toRemove.size() > 0) {
+            for (final Apk apk : toRemove) {
+                appIdsWithRemovedApks.add(apk.id);
+            }
+            ApkProvider.Helper.deleteApks(context, toRemove);
+        }
+    }
+
+    /**
+     * Like {@link RepoPersister#removeApksNoLongerInRepo()}, but a delta only tells us about
+     * the apps which changed or were removed, so only their apks in this repo are looked at.
+     */
+    private void removeApksNoLongerInDelta(List<String> removedAppIds) {
+        List<Apk> toRemove = new ArrayList<>();
+
+        final String[] fields = {
+            ApkProvider.DataColumns.APK_ID,
+            ApkProvider.DataColumns.VERSION_CODE,
+        };
+
+        Set<String> changedAppIds = new HashSet<>(appIdsInIndex);
+        changedAppIds.addAll(removedAppIds);
+        for (final Apk existingApk : ApkProvider.Helper.findByRepo(context, repo, changedAppIds, fields)) {
+            if (!apkKeysInIndex.contains(existingApk)) {
+                toRemove.add(existingApk);
+            }
+        }
+
+        Log.d(TAG, "Found " + toRemove.size() + " apks no longer in " + repo.address + " after applying delta");
+
+        if (toRemove.size() > 0) {
+            for (final Apk apk : toRemove) {
+                appIdsWithRemovedApks.add(apk.id);
+            }
+            ApkProvider.Helper.deleteApks(context, toRemove);
+        }
+    }
+
+}
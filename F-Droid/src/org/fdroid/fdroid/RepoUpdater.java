@@ -2,6 +2,7 @@ package org.fdroid.fdroid;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
@@ -9,8 +10,6 @@ import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
-import org.fdroid.fdroid.data.Apk;
-import org.fdroid.fdroid.data.App;
 import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.net.Downloader;
@@ -19,22 +18,18 @@ import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.security.cert.Certificate;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
 public class RepoUpdater {
@@ -44,14 +39,38 @@ public class RepoUpdater {
     public static final String PROGRESS_TYPE_PROCESS_XML = "processingXml";
     public static final String PROGRESS_DATA_REPO_ADDRESS = "repoAddress";
 
+    /**
+     * What we know about the index deltas of each repo, keyed by its address, so that a
+     * delta which hasn't changed isn't downloaded again, and one which doesn't exist isn't
+     * asked for every time.
+     */
+    static final String DELTA_PREFERENCES_FILE = "indexDeltas";
+    static final String DELTA_ETAG = "etag";
+    static final String DELTA_ETAG_SINCE = "etagSince";
+    static final String DELTA_MISSING_AT = "missingAt";
+
+    /**
+     * How long to go straight to the full index of a repo which didn't have a delta,
+     * before asking for one again in case it has started providing them.
+     */
+    private static final long DELTA_RECHECK_INTERVAL = 7 * 24 * 60 * 60 * 1000L;
+
     @NonNull protected final Context context;
     @NonNull protected final Repo repo;
-    private List<App> apps = new ArrayList<>();
-    private List<Apk> apks = new ArrayList<>();
     private RepoUpdateRememberer rememberer = null;
+    @Nullable private IconBundle iconBundle;
     protected boolean usePubkeyInJar = false;
     protected boolean hasChanged = false;
     @Nullable protected ProgressListener progressListener;
+    @Nullable private ExecutorService databaseWriter;
+    private boolean downloadedDelta = false;
+    @NonNull private Set<String> changedAppIds = Collections.emptySet();
+
+    // What processDownloadedIndex() staged, waiting for commit().
+    @Nullable private RepoPersister stagedPersister;
+    @Nullable private RepoXMLHandler stagedHandler;
+    private boolean stagedDelta;
+    private String stagedEtag;
 
     public RepoUpdater(@NonNull Context ctx, @NonNull Repo repo) {
         this.context = ctx;
@@ -62,67 +81,186 @@ public class RepoUpdater {
         this.progressListener = progressListener;
     }
 
-    public boolean hasChanged() { return hasChanged; }
+    /**
+     * If specified, all database writes for this repo will be performed by this executor,
+     * rather than the thread which parses the index. See {@link RepoPersister}.
+     */
+    public void setDatabaseWriter(@Nullable ExecutorService databaseWriter) {
+        this.databaseWriter = databaseWriter;
+    }
 
-    public List<App> getApps() { return apps; }
+    public boolean hasChanged() { return hasChanged; }
 
-    public List<Apk> getApks() { return apks; }
+    /**
+     * The ids of apps which were added, updated or lost apks when the index was processed.
+     * @see RepoPersister#getChangedAppIds()
+     */
+    @NonNull
+    public Set<String> getChangedAppIds() { return changedAppIds; }
 
     /**
      * All repos are represented by a signed jar file, {@code index.jar}, which contains
-     * a single file, {@code index.xml}.  This takes the {@code index.jar}, verifies the
-     * signature, then returns the unzipped {@code index.xml}.
+     * a single file, {@code index.xml}.  This parses the {@code index.xml} straight out
+     * of the {@code index.jar}, then verifies the signature. The signature of a jar entry
+     * can only be checked once all of it has been read, so nothing the handler received
+     * may be used until this returns successfully.
      *
      * @throws UpdateException All error states will come from here.
      */
-    protected File getIndexFromFile(File downloadedFile) throws UpdateException {
+    protected void parseIndexFromFile(File downloadedFile, RepoXMLHandler handler) throws UpdateException {
         final Date updateTime = new Date(System.currentTimeMillis());
         Log.d(TAG, "Getting signed index from " + repo.address + " at " +
                 Utils.formatLogDate(updateTime));
 
-        final File indexJar = downloadedFile;
-        File indexXml = null;
-
         // Don't worry about checking the status code for 200. If it was a
         // successful download, then we will have a file ready to use:
-        if (indexJar != null && indexJar.exists()) {
-
-            // Due to a bug in android 5.0 lollipop, the inclusion of BouncyCastle causes
-            // breakage when verifying the signature of the downloaded .jar. For more
-            // details, check out https://gitlab.com/fdroid/fdroidclient/issues/111.
-            try {
-                FDroidApp.disableSpongyCastleOnLollipop();
-                indexXml = extractIndexFromJar(indexJar);
-            } finally {
-                FDroidApp.enableSpongyCastleOnLollipop();
-            }
+        if (downloadedFile == null || !downloadedFile.exists()) {
+            throw new UpdateException(repo, "No index file downloaded from " + repo.address);
+        }
 
+        // Due to a bug in android 5.0 lollipop, the inclusion of BouncyCastle causes
+        // breakage when verifying the signature of the downloaded .jar. For more
+        // details, check out https://gitlab.com/fdroid/fdroidclient/issues/111.
+        try {
+            FDroidApp.disableSpongyCastleOnLollipop();
+            parseIndexFromJar(downloadedFile, handler);
+        } finally {
+            FDroidApp.enableSpongyCastleOnLollipop();
         }
-        return indexXml;
     }
 
     protected String getIndexAddress() {
+        return getAddress("index.jar", null);
+    }
+
+    /**
+     * An index delta is a signed jar just like {@code index.jar}, but its {@code index.xml}
+     * only contains the apps which changed since the index with the given timestamp was
+     * generated. Each of those apps is listed with its complete set of apks, and apps which
+     * were removed from the repo are listed as {@code <removed id="..." />}. The
+     * {@code <repo>} element has a {@code since} attribute, which must match the timestamp
+     * we asked for.
+     */
+    protected String getDeltaIndexAddress() {
+        return getAddress("index-delta.jar", "since=" + repo.timestamp);
+    }
+
+    private String getAddress(String fileName, @Nullable String query) {
         try {
             String versionName = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionName;
-            return repo.address + "/index.jar?client_version=" + versionName;
+            query = (query == null ? "" : query + "&") + "client_version=" + versionName;
         } catch (PackageManager.NameNotFoundException e) {
             e.printStackTrace();
         }
-        return repo.address + "/index.jar";
+        return repo.address + "/" + fileName + (query == null ? "" : "?" + query);
+    }
+
+    /**
+     * If we have previously read a full index from this repo, first asks for a delta
+     * relative to that. If the repo can't provide one, the full index is downloaded instead.
+     */
+    public Downloader downloadIndex() throws UpdateException {
+        downloadedDelta = false;
+        if (!canUseDelta()) {
+            return downloadFullIndex();
+        }
+
+        Downloader delta = downloadDeltaIndex();
+        if (delta != null) {
+            downloadedDelta = true;
+            return delta;
+        }
+
+        // A repo which has no delta can still have an unchanged index. Only when it has
+        // changed do we know that the repo couldn't give us a delta to it.
+        Downloader full = downloadFullIndex();
+        if (full.hasChanged()) {
+            Log.i(TAG, "Not asking " + repo.address + " for index deltas for a while, it didn't have one");
+            getDeltaPreferences().edit()
+                    .putLong(getDeltaKey(DELTA_MISSING_AT), System.currentTimeMillis())
+                    .commit();
+        }
+        return full;
     }
 
-    protected Downloader downloadIndex() throws UpdateException {
+    /**
+     * A delta can only be applied on top of an index we have already read, and the first
+     * index from a repo is also where we learn its public key, so that must be a full index.
+     */
+    private boolean canUseDelta() {
+        if (repo.timestamp <= 0 || !repo.hasBeenUpdated() || TextUtils.isEmpty(repo.pubkey)) {
+            return false;
+        }
+        long missingAt = getDeltaPreferences().getLong(getDeltaKey(DELTA_MISSING_AT), 0);
+        return System.currentTimeMillis() - missingAt > DELTA_RECHECK_INTERVAL;
+    }
+
+    private SharedPreferences getDeltaPreferences() {
+        return context.getSharedPreferences(DELTA_PREFERENCES_FILE, Context.MODE_PRIVATE);
+    }
+
+    private String getDeltaKey(String name) {
+        return repo.address + " " + name;
+    }
+
+    /**
+     * The ETag is only sent if it was for a delta relative to the same index as this one.
+     */
+    @Nullable
+    private Downloader downloadDeltaIndex() {
+        Downloader downloader = null;
+        try {
+            downloader = DownloaderFactory.create(
+                getDeltaIndexAddress(), File.createTempFile("index-", "-delta", context.getCacheDir()));
+            SharedPreferences prefs = getDeltaPreferences();
+            if (prefs.getLong(getDeltaKey(DELTA_ETAG_SINCE), 0) == repo.timestamp) {
+                downloader.setCacheTag(prefs.getString(getDeltaKey(DELTA_ETAG), null));
+            }
+            setupProgressListener(downloader);
+            downloader.downloadUninterrupted();
+            if (downloader.isCached()) {
+                Log.d(TAG, "Index delta for " + repo.address + " is up to date (by etag)");
+            }
+            return downloader;
+        } catch (IOException e) {
+            // Usually a 404, because the repo doesn't provide deltas, or no longer has
+            // one for an index as old as ours.
+            Log.i(TAG, "No index delta available from " + repo.address + " (" + e.getMessage() + "), getting full index");
+            if (downloader != null && downloader.getFile() != null) {
+                downloader.getFile().delete();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Only once a delta has been verified, and found to be relative to the index we
+     * already have, is it safe to skip downloading it again while its ETag stays the same.
+     */
+    private void rememberDeltaEtag(String etag) {
+        if (etag != null) {
+            getDeltaPreferences().edit()
+                    .putString(getDeltaKey(DELTA_ETAG), etag)
+                    .putLong(getDeltaKey(DELTA_ETAG_SINCE), repo.timestamp)
+                    .commit();
+        }
+    }
+
+    private void setupProgressListener(Downloader downloader) {
+        if (progressListener != null) { // interactive session, show progress
+            Bundle data = new Bundle(1);
+            data.putString(PROGRESS_DATA_REPO_ADDRESS, repo.address);
+            downloader.setProgressListener(progressListener, data);
+        }
+    }
+
+    private Downloader downloadFullIndex() throws UpdateException {
         Downloader downloader = null;
         try {
             downloader = DownloaderFactory.create(
                 getIndexAddress(), File.createTempFile("index-", "-downloaded", context.getCacheDir()));
             downloader.setCacheTag(repo.lastetag);
-
-            if (progressListener != null) { // interactive session, show progress
-                Bundle data = new Bundle(1);
-                data.putString(PROGRESS_DATA_REPO_ADDRESS, repo.address);
-                downloader.setProgressListener(progressListener, data);
-            }
+            setupProgressListener(downloader);
 
             downloader.downloadUninterrupted();
 
@@ -141,73 +279,130 @@ public class RepoUpdater {
         return downloader;
     }
 
-    private int estimateAppCount(File indexFile) {
-        int count = -1;
-        try {
-            // A bit of a hack, this might return false positives if an apps description
-            // or some other part of the XML file contains this, but it is a pretty good
-            // estimate and makes the progress counter more informative.
-            // As with asking the server about the size of the index before downloading,
-            // this also has a time tradeoff. It takes about three seconds to iterate
-            // through the file and count 600 apps on a slow emulator (v17), but if it is
-            // taking two minutes to update, the three second wait may be worth it.
-            final String APPLICATION = "<application";
-            count = Utils.countSubstringOccurrence(indexFile, APPLICATION);
-        } catch (IOException e) {
-            // Do nothing. Leave count at default -1 value.
+    public void update() throws UpdateException {
+        processDownloadedIndex(downloadIndex());
+        commit();
+    }
+
+    /**
+     * Verifies and parses an index which was fetched by {@link RepoUpdater#downloadIndex()},
+     * staging its contents in the database, ready for {@link RepoUpdater#commit()}. The
+     * download and this step are separate so that several repos can be downloaded at the
+     * same time, with each being processed as soon as its download finishes.
+     *
+     * If what was downloaded was an index delta which can't be applied (e.g. it is not
+     * relative to the index we have, or fails verification), the full index is downloaded
+     * and processed instead.
+     */
+    public void processDownloadedIndex(Downloader downloader) throws UpdateException {
+        if (downloadedDelta) {
+            downloadedDelta = false;
+            try {
+                processIndex(downloader, true);
+                return;
+            } catch (UpdateException e) {
+                Log.i(TAG, "Could not apply index delta from " + repo.address + ", getting full index", e);
+            }
+            downloader = downloadFullIndex();
         }
-        return count;
+        processIndex(downloader, false);
     }
 
-    public void update() throws UpdateException {
+    private void processIndex(Downloader downloader, boolean isDelta) throws UpdateException {
 
         File downloadedFile = null;
-        File indexFile = null;
         try {
 
-            final Downloader downloader = downloadIndex();
             hasChanged = downloader.hasChanged();
 
             if (hasChanged) {
 
                 downloadedFile = downloader.getFile();
-                indexFile = getIndexFromFile(downloadedFile);
 
-                // Process the index...
-                final SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
-                final XMLReader reader = parser.getXMLReader();
-                final RepoXMLHandler handler = new RepoXMLHandler(repo, progressListener);
-
-                if (progressListener != null) {
-                    // Only bother spending the time to count the expected apps
-                    // if we can show that to the user...
-                    handler.setTotalAppCount(estimateAppCount(indexFile));
+                final RepoPersister persister = new RepoPersister(context, repo, databaseWriter);
+                final RepoXMLHandler handler = new RepoXMLHandler(repo, progressListener, persister);
+                if (isDelta) {
+                    handler.setExpectedDeltaSince(repo.timestamp);
                 }
 
-                reader.setContentHandler(handler);
-                InputSource is = new InputSource(
-                        new BufferedReader(new FileReader(indexFile)));
+                // Apps are staged in the database in batches while parsing. Only once the
+                // signature has been verified are they allowed into the real tables.
+                boolean verified = false;
+                try {
+                    parseIndexFromFile(downloadedFile, handler);
+                    verified = true;
+                } finally {
+                    if (!verified) {
+                        persister.discard();
+                    }
+                }
 
-                reader.parse(is);
-                apps = handler.getApps();
-                apks = handler.getApks();
+                if (isDelta) {
+                    hasChanged = handler.getTimestamp() != repo.timestamp;
+                    if (!hasChanged) {
+                        // There is nothing to commit, so this is as good as it gets.
+                        rememberDeltaEtag(downloader.getCacheTag());
+                    }
+                }
 
-                rememberer = new RepoUpdateRememberer();
-                rememberer.context = context;
-                rememberer.repo = repo;
-                rememberer.values = prepareRepoDetailsForSaving(handler, downloader.getCacheTag());
+                stagedPersister = persister;
+                stagedHandler = handler;
+                stagedDelta = isDelta;
+                // The etag belongs to index.jar, and a delta doesn't tell us anything about it.
+                stagedEtag = isDelta ? repo.lastetag : downloader.getCacheTag();
             }
-        } catch (SAXException | ParserConfigurationException | IOException e) {
-            throw new UpdateException(repo, "Error parsing index for repo " + repo.address, e);
         } finally {
-            if (downloadedFile != null && downloadedFile != indexFile && downloadedFile.exists()) {
+            if (downloadedFile != null && downloadedFile.exists()) {
                 downloadedFile.delete();
             }
-            if (indexFile != null && indexFile.exists()) {
-                indexFile.delete();
-            }
+        }
+    }
+
+    /**
+     * Writes the last of the apps from the index which {@link RepoUpdater#processDownloadedIndex(Downloader)}
+     * staged, moves them all into the real tables, and then cleans up apks which were removed
+     * from the repo. If that fails, everything which was staged is thrown away, and nothing
+     * is remembered about this update, so that the index is processed again next time.
+     *
+     * When two repos have an app with the same id, the details of the app come from
+     * whichever repo was committed last. So when updating several repos, commit them in
+     * the same order every time (that of {@link org.fdroid.fdroid.data.RepoProvider.Helper#all(Context)}),
+     * rather than in whatever order their indexes happened to finish being parsed.
+     */
+    public void commit() throws UpdateException {
+        final RepoPersister persister = stagedPersister;
+        final RepoXMLHandler handler = stagedHandler;
+        if (persister == null || handler == null) {
+            return;
+        }
+        stagedPersister = null;
+        stagedHandler = null;
 
+        boolean committed = false;
+        try {
+            if (stagedDelta) {
+                persister.commitDelta(handler.getRemovedAppIds());
+            } else {
+                persister.commit();
+            }
+            committed = true;
+        } finally {
+            if (!committed) {
+                persister.discard();
+            }
         }
+        changedAppIds = persister.getChangedAppIds();
+
+        rememberer = new RepoUpdateRememberer();
+        rememberer.context = context;
+        rememberer.repo = repo;
+        rememberer.values = prepareRepoDetailsForSaving(handler, stagedEtag);
+
+        // Now that we know which icons the repo has, they can be fetched in one go rather
+        // than when each one is first shown. That is left to the caller, so that it doesn't
+        // hold up the rest of the update.
+        final int version = handler.getVersion() != -1 ? handler.getVersion() : repo.version;
+        iconBundle = new IconBundle(context, repo, version);
     }
 
     private ContentValues prepareRepoDetailsForSaving(RepoXMLHandler handler, String etag) {
@@ -236,6 +431,10 @@ public class RepoUpdater {
             values.put(RepoProvider.DataColumns.VERSION, handler.getVersion());
         }
 
+        if (handler.getTimestamp() != -1 && handler.getTimestamp() != repo.timestamp) {
+            values.put(RepoProvider.DataColumns.TIMESTAMP, handler.getTimestamp());
+        }
+
         if (handler.getMaxAge() != -1 && handler.getMaxAge() != repo.maxage) {
             Log.d(TAG,
                     "Repo specified a new maximum age - updated");
@@ -255,6 +454,13 @@ public class RepoUpdater {
 
     public RepoUpdateRememberer getRememberer() { return rememberer; }
 
+    /**
+     * The icon bundle for the icons directory named by the index which was committed,
+     * or null if nothing has been committed.
+     */
+    @Nullable
+    public IconBundle getIconBundle() { return iconBundle; }
+
     public static class RepoUpdateRememberer {
 
         private Context context;
@@ -312,49 +518,50 @@ public class RepoUpdater {
         return match;
     }
 
-    protected File extractIndexFromJar(File indexJar) throws UpdateException {
-        File indexFile = null;
+    private void parseIndexFromJar(File indexJar, RepoXMLHandler handler) throws UpdateException {
         JarFile jarFile = null;
+        CountingInputStream input = null;
         try {
             jarFile = new JarFile(indexJar, true);
             JarEntry indexEntry = (JarEntry) jarFile.getEntry("index.xml");
+            if (indexEntry == null) {
+                throw new UpdateException(repo, "No index.xml found in index from " + repo.address);
+            }
 
-            indexFile = File.createTempFile("index-", "-extracted.xml", context.getCacheDir());
-            InputStream input = null;
-            OutputStream output = null;
-            try {
-                /*
-                 * JarFile.getInputStream() provides the signature check, even
-                 * though the Android docs do not mention this, the Java docs do
-                 * and Android seems to implement it the same:
-                 * http://docs.oracle.com/javase/6/docs/api/java/util/jar/JarFile.html#getInputStream(java.util.zip.ZipEntry)
-                 * https://developer.android.com/reference/java/util/jar/JarFile.html#getInputStream(java.util.zip.ZipEntry)
-                 */
-                input = jarFile.getInputStream(indexEntry);
-                output = new FileOutputStream(indexFile);
-                Utils.copy(input, output);
-            } finally {
-                Utils.closeQuietly(output);
-                Utils.closeQuietly(input);
+            /*
+             * JarFile.getInputStream() provides the signature check, even
+             * though the Android docs do not mention this, the Java docs do
+             * and Android seems to implement it the same:
+             * http://docs.oracle.com/javase/6/docs/api/java/util/jar/JarFile.html#getInputStream(java.util.zip.ZipEntry)
+             * https://developer.android.com/reference/java/util/jar/JarFile.html#getInputStream(java.util.zip.ZipEntry)
+             */
+            input = new CountingInputStream(jarFile.getInputStream(indexEntry));
+
+            if (progressListener != null) {
+                handler.setIndexStream(input, indexEntry.getSize());
             }
 
+            final XMLReader reader = SAXParserFactory.newInstance().newSAXParser().getXMLReader();
+            reader.setContentHandler(handler);
+            reader.parse(new InputSource(input));
+
+            // The parser may stop before the end of the entry, but the signature is
+            // only checked once it has been read completely.
+            readToEnd(input);
+
             // Can only read certificates from jar after it has been read
-            // completely, so we put it after the copy above...
+            // completely, so we put it after the parsing above...
             if (isTofuRequest()) {
                 Log.i(TAG, "Implicitly trusting the signature of index.jar, because this is a TOFU request");
                 // Note that later on in the process we will save the pubkey against they repo, so
                 // that future requests verify against the signature we got this time.
             } else if (!verifyCerts(indexEntry)) {
-                indexFile.delete();
                 throw new UpdateException(repo, "Index signature mismatch");
             }
-        } catch (IOException e) {
-            if (indexFile != null) {
-                indexFile.delete();
-            }
-            throw new UpdateException(
-                    repo, "Error opening signed index", e);
+        } catch (SAXException | ParserConfigurationException | IOException e) {
+            throw new UpdateException(repo, "Error parsing index for repo " + repo.address, e);
         } finally {
+            Utils.closeQuietly(input);
             if (jarFile != null) {
                 try {
                     jarFile.close();
@@ -363,8 +570,13 @@ public class RepoUpdater {
                 }
             }
         }
+    }
 
-        return indexFile;
+    private static void readToEnd(InputStream input) throws IOException {
+        byte[] buffer = new byte[Utils.BUFFER_SIZE];
+        while (input.read(buffer) != -1) {
+            // Just making sure every byte gets verified.
+        }
     }
 
     /**
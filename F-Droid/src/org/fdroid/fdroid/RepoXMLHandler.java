@@ -20,6 +20,7 @@
 package org.fdroid.fdroid;
 
 import android.os.Bundle;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
 import org.fdroid.fdroid.data.Apk;
@@ -34,20 +35,42 @@ import java.util.List;
 
 public class RepoXMLHandler extends DefaultHandler {
 
+    /**
+     * Receives each app (and the apks which belong to it) as soon as the closing
+     * {@code </application>} tag has been parsed. This allows the caller to deal with
+     * the contents of the index as a stream, rather than waiting for the entire index
+     * to be held in memory before doing anything with it.
+     */
+    public interface IndexReceiver {
+        void receiveApp(App app, List<Apk> packages);
+    }
+
     // The repo we're processing.
     private final Repo repo;
 
+    // Only populated when no IndexReceiver was specified.
     private final List<App> apps = new ArrayList<>();
     private final List<Apk> apksList = new ArrayList<>();
 
+    @Nullable
+    private final IndexReceiver receiver;
+
     private App curapp = null;
     private Apk curapk = null;
+    private final List<Apk> curapks = new ArrayList<>();
     private final StringBuilder curchars = new StringBuilder();
 
     // After processing the XML, these will be -1 if the index didn't specify
     // them - otherwise it will be the value specified.
     private int version = -1;
     private int maxage = -1;
+    private long timestamp = -1;
+
+    // Only specified by index deltas, which contain only the apps that changed
+    // since the index generated at this time (see RepoUpdater).
+    private long deltaSince = -1;
+    private long expectedDeltaSince = -1;
+    private final List<String> removedAppIds = new ArrayList<>();
 
     // After processing the XML, this will be null if the index specified a
     // public key - otherwise a public key. This is used for TOFU where an
@@ -64,12 +87,35 @@ public class RepoXMLHandler extends DefaultHandler {
 
     private int totalAppCount;
 
+    @Nullable
+    private CountingInputStream indexStream;
+    private long indexSize = -1;
+
     public RepoXMLHandler(Repo repo, ProgressListener listener) {
+        this(repo, listener, null);
+    }
+
+    /**
+     * @param receiver If specified, each app will be handed to this as it is parsed, and
+     *                 {@link RepoXMLHandler#getApps()} and {@link RepoXMLHandler#getApks()}
+     *                 will remain empty. If null, everything is collected into those lists.
+     */
+    public RepoXMLHandler(Repo repo, ProgressListener listener, @Nullable IndexReceiver receiver) {
         this.repo = repo;
         pubkey = null;
         name = null;
         description = null;
         progressListener = listener;
+        this.receiver = receiver;
+    }
+
+    /**
+     * When parsing an index delta, this is the timestamp of the index which we already
+     * have. If the delta was generated against anything else, parsing will stop with a
+     * {@link DeltaMismatchException} before any apps are handed out.
+     */
+    public void setExpectedDeltaSince(long expectedDeltaSince) {
+        this.expectedDeltaSince = expectedDeltaSince;
     }
 
     public List<App> getApps() { return apps; }
@@ -80,6 +126,18 @@ public class RepoXMLHandler extends DefaultHandler {
 
     public int getVersion() { return version; }
 
+    public long getTimestamp() { return timestamp; }
+
+    public long getDeltaSince() { return deltaSince; }
+
+    public boolean isDelta() { return deltaSince != -1; }
+
+    /**
+     * Apps which an index delta says have been removed from the repo entirely.
+     * Always empty for a full index, where removed apps are simply not present.
+     */
+    public List<String> getRemovedAppIds() { return removedAppIds; }
+
     public String getDescription() { return description; }
 
     public String getName() { return name; }
@@ -101,7 +159,7 @@ public class RepoXMLHandler extends DefaultHandler {
         final boolean empty = TextUtils.isEmpty(str);
 
         if (curel.equals("application") && curapp != null) {
-            apps.add(curapp);
+            onApplicationParsed();
             curapp = null;
             // If the app id is already present in this apps list, then it
             // means the same index file has a duplicate app, which should
@@ -112,7 +170,7 @@ public class RepoXMLHandler extends DefaultHandler {
             // the first app will insert, the second one will update the newly
             // inserted one.
         } else if (curel.equals("package") && curapk != null && curapp != null) {
-            apksList.add(curapk);
+            curapks.add(curapk);
             curapk = null;
         } else if (!empty && curapk != null) {
             switch (curel) {
@@ -254,6 +312,12 @@ public class RepoXMLHandler extends DefaultHandler {
 
             maxage = Utils.parseInt(attributes.getValue("", "maxage"), -1);
             version = Utils.parseInt(attributes.getValue("", "version"), -1);
+            timestamp = Utils.parseLong(attributes.getValue("", "timestamp"), -1);
+            deltaSince = Utils.parseLong(attributes.getValue("", "since"), -1);
+            if (expectedDeltaSince != -1 && deltaSince != expectedDeltaSince) {
+                throw new DeltaMismatchException("Expected a delta since " + expectedDeltaSince +
+                        " but got one since " + deltaSince);
+            }
 
             final String nm = attributes.getValue("", "name");
             if (nm != null)
@@ -265,6 +329,10 @@ public class RepoXMLHandler extends DefaultHandler {
         } else if (localName.equals("application") && curapp == null) {
             curapp = new App();
             curapp.id = attributes.getValue("", "id");
+            curapks.clear();
+            if (indexStream != null) {
+                estimateTotalAppCount();
+            }
             /* show progress for the first 25, then start skipping every 25 */
             if (totalAppCount < 25 || progressCounter % (totalAppCount / 25) == 0) {
                 Bundle data = new Bundle(1);
@@ -275,6 +343,11 @@ public class RepoXMLHandler extends DefaultHandler {
                         progressCounter, totalAppCount, data));
             }
             progressCounter++;
+        } else if (localName.equals("removed") && curapp == null) {
+            final String id = attributes.getValue("", "id");
+            if (id != null)
+                removedAppIds.add(id);
+
         } else if (localName.equals("package") && curapp != null && curapk == null) {
             curapk = new Apk();
             curapk.id = curapp.id;
@@ -287,11 +360,55 @@ public class RepoXMLHandler extends DefaultHandler {
         curchars.setLength(0);
     }
 
+    private void onApplicationParsed() {
+        if (receiver != null) {
+            receiver.receiveApp(curapp, new ArrayList<>(curapks));
+        } else {
+            apps.add(curapp);
+            apksList.addAll(curapks);
+        }
+        curapks.clear();
+    }
+
     public void setTotalAppCount(int totalAppCount) {
         this.totalAppCount = totalAppCount;
     }
 
+    /**
+     * Rather than counting the apps in the index before parsing it, the total is estimated
+     * each time a new app is found, from how many apps we have seen so far and how far
+     * through the index we are.
+     *
+     * @param indexStream The stream which the index is being parsed from.
+     * @param indexSize The total size of the index in bytes, or -1 if unknown.
+     */
+    public void setIndexStream(CountingInputStream indexStream, long indexSize) {
+        this.indexStream = indexStream;
+        this.indexSize = indexSize;
+    }
+
+    private void estimateTotalAppCount() {
+        long bytesRead = indexStream.getBytesRead();
+        if (indexSize > 0 && bytesRead > 0) {
+            totalAppCount = Math.max(progressCounter + 1, (int) (progressCounter * indexSize / bytesRead));
+        }
+    }
+
     private String cleanWhiteSpace(String str) {
         return str.replaceAll("\n", " ").replaceAll("  ", " ");
     }
+
+    /**
+     * The index delta was generated against a different index than the one we have, so
+     * the only way to get up to date is to fetch the full index instead.
+     */
+    public static class DeltaMismatchException extends SAXException {
+
+        private static final long serialVersionUID = 4934570391573482816L;
+
+        public DeltaMismatchException(String message) {
+            super(message);
+        }
+    }
+
 }
@@ -23,11 +23,8 @@ import android.app.IntentService;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.ProgressDialog;
-import android.content.ContentProviderOperation;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.ConnectivityManager;
@@ -36,12 +33,12 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
+import android.support.v4.net.ConnectivityManagerCompat;
 import android.text.TextUtils;
 import android.util.Log;
 import android.widget.Toast;
@@ -53,11 +50,17 @@ import org.fdroid.fdroid.data.AppProvider;
 import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.net.Downloader;
+import org.fdroid.fdroid.net.HttpConnections;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class UpdateService extends IntentService implements ProgressListener {
 
@@ -86,26 +89,21 @@ public class UpdateService extends IntentService implements ProgressListener {
     public static final String EXTRA_RECEIVER = "receiver";
     public static final String EXTRA_ADDRESS = "address";
 
-    private ResultReceiver receiver = null;
+    /**
+     * Indexes from this many repos are downloaded at the same time. As each download finishes,
+     * it is handed to one of {@link UpdateService#MAX_CONCURRENT_PROCESSING} threads to be
+     * verified and parsed. Writing to the database is always done by a single thread.
+     */
+    private static final int MAX_CONCURRENT_DOWNLOADS = 4;
+    private static final int MAX_CONCURRENT_PROCESSING = 2;
+
+    // Status is sent from the download and processing threads as well as the service thread.
+    private volatile ResultReceiver receiver = null;
 
     public UpdateService() {
         super("UpdateService");
     }
 
-    /**
-     * When an app already exists in the db, and we are updating it on the off chance that some
-     * values changed in the index, some fields should not be updated. Rather, they should be
-     * ignored, because they were explicitly set by the user, and hence can't be automatically
-     * overridden by the index.
-     *
-     * NOTE: In the future, these attributes will be moved to a join table, so that the app table
-     * is essentially completely transient, and can be nuked at any time.
-     */
-    private static final String[] APP_FIELDS_TO_IGNORE = {
-        AppProvider.DataColumns.IGNORE_ALLUPDATES,
-        AppProvider.DataColumns.IGNORE_THISUPDATE
-    };
-
     // For receiving results from the UpdateService when we've told it to
     // update in response to a user request.
     public static class UpdateReceiver extends ResultReceiver {
@@ -264,6 +262,7 @@ public class UpdateService extends IntentService implements ProgressListener {
     }
 
     protected void sendStatus(int statusCode, String message) {
+        final ResultReceiver receiver = this.receiver;
         if (receiver != null) {
             Bundle resultData = new Bundle();
             if (!TextUtils.isEmpty(message)) {
@@ -274,6 +273,7 @@ public class UpdateService extends IntentService implements ProgressListener {
     }
 
     protected void sendRepoErrorStatus(int statusCode, ArrayList<CharSequence> repoErrors) {
+        final ResultReceiver receiver = this.receiver;
         if (receiver != null) {
             Bundle resultData = new Bundle();
             resultData.putCharSequenceArrayList(RESULT_REPO_ERRORS, repoErrors);
@@ -336,6 +336,9 @@ public class UpdateService extends IntentService implements ProgressListener {
         String address = intent.getStringExtra(EXTRA_ADDRESS);
 
         long startTime = System.currentTimeMillis();
+        final ExecutorService downloadExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_DOWNLOADS);
+        final ExecutorService processExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_PROCESSING);
+        final ExecutorService databaseWriter = Executors.newSingleThreadExecutor();
         try {
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getBaseContext());
 
@@ -350,9 +353,8 @@ public class UpdateService extends IntentService implements ProgressListener {
             // database while we do all the downloading, etc...
             List<Repo> repos = RepoProvider.Helper.all(this);
 
-            // Process each repo...
-            Map<String, App> appsToUpdate = new HashMap<>();
-            List<Apk> apksToUpdate = new ArrayList<>();
+            // Process each repo. The apps and apks from each index are written to the
+            // database as they are parsed (see RepoPersister), rather than all at the end.
             //List<Repo> swapRepos = new ArrayList<>();
             List<Repo> unchangedRepos = new ArrayList<>();
             List<Repo> updatedRepos = new ArrayList<>();
@@ -360,8 +362,13 @@ public class UpdateService extends IntentService implements ProgressListener {
             List<CharSequence> errorRepos = new ArrayList<>();
             ArrayList<CharSequence> repoErrors = new ArrayList<>();
             List<RepoUpdater.RepoUpdateRememberer> repoUpdateRememberers = new ArrayList<>();
+            List<IconBundle> iconBundles = new ArrayList<>();
             boolean changes = false;
             boolean singleRepoUpdate = !TextUtils.isEmpty(address);
+            List<Repo> reposToUpdate = new ArrayList<>();
+            List<RepoUpdater> updaters = new ArrayList<>();
+            List<Future<Future<Void>>> pendingUpdates = new ArrayList<>();
+            Set<String> changedAppIds = new HashSet<>();
             for (final Repo repo : repos) {
 
                 if (!repo.inuse) {
@@ -375,19 +382,44 @@ public class UpdateService extends IntentService implements ProgressListener {
                     continue;
                 }
 
-                sendStatus(STATUS_INFO, getString(R.string.status_connecting_to_repo, repo.address));
-                RepoUpdater updater = new RepoUpdater(getBaseContext(), repo);
+                final RepoUpdater updater = new RepoUpdater(getBaseContext(), repo);
                 updater.setProgressListener(this);
+                updater.setDatabaseWriter(databaseWriter);
+                reposToUpdate.add(repo);
+                updaters.add(updater);
+                pendingUpdates.add(downloadExecutor.submit(new Callable<Future<Void>>() {
+                    @Override
+                    public Future<Void> call() throws RepoUpdater.UpdateException {
+                        sendStatus(STATUS_INFO, getString(R.string.status_connecting_to_repo, repo.address));
+                        final Downloader downloader = updater.downloadIndex();
+                        return processExecutor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws RepoUpdater.UpdateException {
+                                updater.processDownloadedIndex(downloader);
+                                return null;
+                            }
+                        });
+                    }
+                }));
+            }
+
+            for (int i = 0; i < updaters.size(); i++) {
+                final RepoUpdater updater = updaters.get(i);
+                final Repo repo = reposToUpdate.get(i);
                 try {
-                    updater.update();
+                    waitForUpdate(pendingUpdates.get(i));
+                    // The other repos carry on being parsed meanwhile, but are only
+                    // committed in the order of the repos list, so that which repo an app
+                    // gets its details from doesn't depend on whose index was parsed first.
+                    updater.commit();
                     if (updater.hasChanged()) {
-                        for (final App app : updater.getApps()) {
-                            appsToUpdate.put(app.id, app);
-                        }
-                        apksToUpdate.addAll(updater.getApks());
                         updatedRepos.add(repo);
                         changes = true;
+                        changedAppIds.addAll(updater.getChangedAppIds());
                         repoUpdateRememberers.add(updater.getRememberer());
+                        if (updater.getIconBundle() != null) {
+                            iconBundles.add(updater.getIconBundle());
+                        }
                     } else {
                         unchangedRepos.add(repo);
                     }
@@ -404,27 +436,14 @@ public class UpdateService extends IntentService implements ProgressListener {
             } else {
                 sendStatus(STATUS_INFO, getString(R.string.status_checking_compatibility));
 
-                List<App> listOfAppsToUpdate = new ArrayList<>();
-                listOfAppsToUpdate.addAll(appsToUpdate.values());
-
-                calcApkCompatibilityFlags(this, apksToUpdate);
-
-                // Need to do this BEFORE updating the apks, otherwise when it continually
-                // calls "get existing apks for repo X" then it will be getting the newly
-                // created apks, rather than those from the fresh, juicy index we just processed.
-                removeApksNoLongerInRepo(apksToUpdate, updatedRepos);
-
-                int totalInsertsUpdates = listOfAppsToUpdate.size() + apksToUpdate.size();
-                updateOrInsertApps(listOfAppsToUpdate, totalInsertsUpdates, 0);
-                updateOrInsertApks(apksToUpdate, totalInsertsUpdates, listOfAppsToUpdate.size());
-                removeApksFromRepos(disabledRepos);
+                changedAppIds.addAll(removeApksFromRepos(disabledRepos));
                 removeAppsWithoutApks();
 
                 // This will sort out the icon urls, compatibility flags. and suggested version
                 // for each app. It used to happen here in Java code, but was moved to SQL when
                 // it became apparant we don't always have enough info (depending on which repos
-                // were updated).
-                AppProvider.Helper.calcDetailsFromIndex(this);
+                // were updated). Only apps which were touched by this update need doing.
+                AppProvider.Helper.calcDetailsFromIndex(this, changedAppIds);
 
                 notifyContentProviders();
 
@@ -455,44 +474,92 @@ public class UpdateService extends IntentService implements ProgressListener {
                     sendRepoErrorStatus(STATUS_ERROR_LOCAL_SMALL, repoErrors);
                 }
             }
+
+            // Done after everything else, so that the update is complete as far as the
+            // user is concerned while the icons are still on their way.
+            updateIconBundles(prefs, iconBundles, downloadExecutor);
         } catch (Exception e) {
             Log.e(TAG,
                     "Exception during update processing:\n"
                             + Log.getStackTraceString(e));
             sendStatus(STATUS_ERROR_GLOBAL, e.getMessage());
         } finally {
+            downloadExecutor.shutdownNow();
+            processExecutor.shutdownNow();
+            databaseWriter.shutdownNow();
             Log.d(TAG, "Update took "
                     + ((System.currentTimeMillis() - startTime) / 1000)
                     + " seconds.");
+            HttpConnections.logStats();
             receiver = null;
         }
     }
 
-    private void notifyContentProviders() {
-        getContentResolver().notifyChange(AppProvider.getContentUri(), null);
-        getContentResolver().notifyChange(ApkProvider.getContentUri(), null);
+    /**
+     * Blocks until the repo has been downloaded and then processed. If either step failed with an
+     * {@link RepoUpdater.UpdateException} then it is rethrown here, so that it can be reported
+     * against that repo. Any other failure is unexpected, and is treated as a global error.
+     */
+    private static void waitForUpdate(Future<Future<Void>> pendingUpdate)
+            throws RepoUpdater.UpdateException, ExecutionException, InterruptedException {
+        try {
+            pendingUpdate.get().get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RepoUpdater.UpdateException) {
+                throw (RepoUpdater.UpdateException) e.getCause();
+            }
+            throw e;
+        }
     }
 
     /**
-     * This cannot be offloaded to the database (as we did with the query which
-     * updates apps, depending on whether their apks are compatible or not).
-     * The reason is that we need to interact with the CompatibilityChecker
-     * in order to see if, and why an apk is not compatible.
+     * Fetches the icon bundle of each repo which changed, if that is enabled, and the
+     * network isn't metered. Up to {@link #MAX_CONCURRENT_DOWNLOADS} at a time, using the
+     * same executor as the indexes were downloaded with.
      */
-    private static void calcApkCompatibilityFlags(Context context, List<Apk> apks) {
-        final CompatibilityChecker checker = new CompatibilityChecker(context);
-        for (final Apk apk : apks) {
-            final List<String> reasons = checker.getIncompatibleReasons(apk);
-            if (reasons.size() > 0) {
-                apk.compatible = false;
-                apk.incompatible_reasons = Utils.CommaSeparatedList.make(reasons);
-            } else {
-                apk.compatible = true;
-                apk.incompatible_reasons = null;
+    private void updateIconBundles(SharedPreferences prefs, List<IconBundle> iconBundles,
+                                   ExecutorService downloadExecutor) throws InterruptedException {
+        if (iconBundles.isEmpty()) {
+            return;
+        }
+
+        if (!prefs.getBoolean(Preferences.PREF_ICON_BUNDLES, true)) {
+            Log.d(TAG, "Not fetching icon bundles, because they are disabled.");
+            return;
+        }
+
+        ConnectivityManager conMan = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (ConnectivityManagerCompat.isActiveNetworkMetered(conMan)) {
+            Log.d(TAG, "Not fetching icon bundles, because the network is metered.");
+            return;
+        }
+
+        List<Future<Integer>> pending = new ArrayList<>(iconBundles.size());
+        for (final IconBundle iconBundle : iconBundles) {
+            pending.add(downloadExecutor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return iconBundle.update();
+                }
+            }));
+        }
+
+        for (Future<Integer> iconBundle : pending) {
+            try {
+                iconBundle.get();
+            } catch (ExecutionException e) {
+                // The icons can still be downloaded one at a time, so this isn't worth
+                // failing the update for.
+                Log.e(TAG, "Error fetching icon bundle: " + Log.getStackTraceString(e.getCause()));
             }
         }
     }
 
+    private void notifyContentProviders() {
+        getContentResolver().notifyChange(AppProvider.getContentUri(), null);
+        getContentResolver().notifyChange(ApkProvider.getContentUri(), null);
+    }
+
     private void performUpdateNotification() {
         Cursor cursor = getContentResolver().query(
                 AppProvider.getCanUpdateUri(),
@@ -561,207 +628,21 @@ public class UpdateService extends IntentService implements ProgressListener {
         nm.notify(1, builder.build());
     }
 
-    private List<String> getKnownAppIds(List<App> apps) {
-        List<String> knownAppIds = new ArrayList<>();
-        if (apps.size() == 0) {
-            return knownAppIds;
-        }
-        if (apps.size() > AppProvider.MAX_APPS_TO_QUERY) {
-            int middle = apps.size() / 2;
-            List<App> apps1 = apps.subList(0, middle);
-            List<App> apps2 = apps.subList(middle, apps.size());
-            knownAppIds.addAll(getKnownAppIds(apps1));
-            knownAppIds.addAll(getKnownAppIds(apps2));
-        } else {
-            knownAppIds.addAll(getKnownAppIdsFromProvider(apps));
-        }
-        return knownAppIds;
-    }
-
     /**
-     * Looks in the database to see which apps we already know about. Only
-     * returns ids of apps that are in the database if they are in the "apps"
-     * array.
+     * @return The ids of apps which had apks removed.
      */
-    private List<String> getKnownAppIdsFromProvider(List<App> apps) {
-
-        final Uri uri = AppProvider.getContentUri(apps);
-        final String[] fields = { AppProvider.DataColumns.APP_ID };
-        Cursor cursor = getContentResolver().query(uri, fields, null, null, null);
-
-        int knownIdCount = cursor != null ? cursor.getCount() : 0;
-        List<String> knownIds = new ArrayList<>(knownIdCount);
-        if (cursor != null) {
-            if (knownIdCount > 0) {
-                cursor.moveToFirst();
-                while (!cursor.isAfterLast()) {
-                    knownIds.add(cursor.getString(0));
-                    cursor.moveToNext();
-                }
-            }
-            cursor.close();
-        }
-
-        return knownIds;
-    }
-
-    private void updateOrInsertApps(List<App> appsToUpdate, int totalUpdateCount, int currentCount) {
-
-        List<ContentProviderOperation> operations = new ArrayList<>();
-        List<String> knownAppIds = getKnownAppIds(appsToUpdate);
-        for (final App app : appsToUpdate) {
-            if (knownAppIds.contains(app.id)) {
-                operations.add(updateExistingApp(app));
-            } else {
-                operations.add(insertNewApp(app));
-            }
-        }
-
-        Log.d(TAG, "Updating/inserting " + operations.size() + " apps.");
-        try {
-            executeBatchWithStatus(AppProvider.getAuthority(), operations, currentCount, totalUpdateCount);
-        } catch (RemoteException | OperationApplicationException e) {
-            Log.e(TAG, e.getMessage());
-        }
-    }
-
-    private void executeBatchWithStatus(String providerAuthority,
-                                        List<ContentProviderOperation> operations,
-                                        int currentCount,
-                                        int totalUpdateCount)
-            throws RemoteException, OperationApplicationException {
-        int i = 0;
-        while (i < operations.size()) {
-            int count = Math.min(operations.size() - i, 100);
-            ArrayList<ContentProviderOperation> o = new ArrayList<>(operations.subList(i, i + count));
-            sendStatus(STATUS_INFO, getString(
-                R.string.status_inserting,
-                (int)((double)(currentCount + i) / totalUpdateCount * 100)));
-            getContentResolver().applyBatch(providerAuthority, o);
-            i += 100;
-        }
-    }
-
-    /**
-     * Return list of apps from the "apks" argument which are already in the database.
-     */
-    private List<Apk> getKnownApks(List<Apk> apks) {
-        final String[] fields = {
-                ApkProvider.DataColumns.APK_ID,
-                ApkProvider.DataColumns.VERSION,
-                ApkProvider.DataColumns.VERSION_CODE
-        };
-        return ApkProvider.Helper.knownApks(this, apks, fields);
-    }
-
-    private void updateOrInsertApks(List<Apk> apksToUpdate, int totalApksAppsCount, int currentCount) {
-
-        List<ContentProviderOperation> operations = new ArrayList<>();
-
-        List<Apk> knownApks = getKnownApks(apksToUpdate);
-        for (final Apk apk : apksToUpdate) {
-            boolean known = false;
-            for (final Apk knownApk : knownApks) {
-                if (knownApk.id.equals(apk.id) && knownApk.vercode == apk.vercode) {
-                    known = true;
-                    break;
-                }
-            }
-
-            if (known) {
-                operations.add(updateExistingApk(apk));
-            } else {
-                operations.add(insertNewApk(apk));
-                knownApks.add(apk); // In case another repo has the same version/id combo for this apk.
-            }
-        }
-
-        Log.d(TAG, "Updating/inserting " + operations.size() + " apks.");
-        try {
-            executeBatchWithStatus(ApkProvider.getAuthority(), operations, currentCount, totalApksAppsCount);
-        } catch (RemoteException | OperationApplicationException e) {
-            Log.e(TAG, e.getMessage());
-        }
-    }
-
-    private ContentProviderOperation updateExistingApk(final Apk apk) {
-        Uri uri = ApkProvider.getContentUri(apk);
-        ContentValues values = apk.toContentValues();
-        return ContentProviderOperation.newUpdate(uri).withValues(values).build();
-    }
-
-    private ContentProviderOperation insertNewApk(final Apk apk) {
-        ContentValues values = apk.toContentValues();
-        Uri uri = ApkProvider.getContentUri();
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
-    }
-
-    private ContentProviderOperation updateExistingApp(App app) {
-        Uri uri = AppProvider.getContentUri(app);
-        ContentValues values = app.toContentValues();
-        for (final String toIgnore : APP_FIELDS_TO_IGNORE) {
-            if (values.containsKey(toIgnore)) {
-                values.remove(toIgnore);
-            }
-        }
-        return ContentProviderOperation.newUpdate(uri).withValues(values).build();
-    }
-
-    private ContentProviderOperation insertNewApp(App app) {
-        ContentValues values = app.toContentValues();
-        Uri uri = AppProvider.getContentUri();
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
-    }
-
-    /**
-     * If a repo was updated (i.e. it is in use, and the index has changed
-     * since last time we did an update), then we want to remove any apks that
-     * belong to the repo which are not in the current list of apks that were
-     * retrieved.
-     */
-    private void removeApksNoLongerInRepo(List<Apk> apksToUpdate, List<Repo> updatedRepos) {
-
-        long startTime = System.currentTimeMillis();
-        List<Apk> toRemove = new ArrayList<>();
-
-        final String[] fields = {
-            ApkProvider.DataColumns.APK_ID,
-            ApkProvider.DataColumns.VERSION_CODE,
-            ApkProvider.DataColumns.VERSION,
-        };
-
-        for (final Repo repo : updatedRepos) {
-            final List<Apk> existingApks = ApkProvider.Helper.findByRepo(this, repo, fields);
-            for (final Apk existingApk : existingApks) {
-                if (!isApkToBeUpdated(existingApk, apksToUpdate)) {
-                    toRemove.add(existingApk);
-                }
-            }
-        }
-
-        long duration = System.currentTimeMillis() - startTime;
-        Log.d(TAG, "Found " + toRemove.size() + " apks no longer in the updated repos (took " + duration + "ms)");
-
-        if (toRemove.size() > 0) {
-            ApkProvider.Helper.deleteApks(this, toRemove);
-        }
-    }
-
-    private static boolean isApkToBeUpdated(Apk existingApk, List<Apk> apksToUpdate) {
-        for (final Apk apkToUpdate : apksToUpdate) {
-            if (apkToUpdate.vercode == existingApk.vercode && apkToUpdate.id.equals(existingApk.id)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private void removeApksFromRepos(List<Repo> repos) {
+    private Set<String> removeApksFromRepos(List<Repo> repos) {
+        Set<String> appIds = new HashSet<>();
+        final String[] projection = { ApkProvider.DataColumns.APK_ID };
         for (final Repo repo : repos) {
+            for (final Apk apk : ApkProvider.Helper.findByRepo(this, repo, projection)) {
+                appIds.add(apk.id);
+            }
             Uri uri = ApkProvider.getRepoUri(repo.getId());
             int numDeleted = getContentResolver().delete(uri, null, null);
             Log.d(TAG, "Removing " + numDeleted + " apks from repo " + repo.address);
         }
+        return appIds;
     }
 
     private void removeAppsWithoutApks() {
@@ -45,7 +45,6 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -142,6 +141,14 @@ public final class Utils {
         return FileCompat.symlink(inFile, outFile) || copy(inFile, outFile);
     }
 
+    /**
+     * Attempt to hard link, but if that fails (e.g. because they are on different
+     * filesystems), it will make a copy of the file.
+     */
+    public static boolean linkOrCopyFile(SanitizedFile inFile, SanitizedFile outFile) {
+        return FileCompat.link(inFile, outFile) || copy(inFile, outFile);
+    }
+
     /**
      * Read the input stream until it reaches the end, ignoring any exceptions.
      */
@@ -260,36 +267,6 @@ public final class Utils {
         return getMinMaxSdkVersion(context, packageName, "maxSdkVersion");
     }
 
-    public static int countSubstringOccurrence(File file, String substring) throws IOException {
-        int count = 0;
-        FileReader input = null;
-        try {
-            int currentSubstringIndex = 0;
-            char[] buffer = new char[4096];
-
-            input = new FileReader(file);
-            int numRead = input.read(buffer);
-            while(numRead != -1) {
-
-                for (char c : buffer) {
-                    if (c == substring.charAt(currentSubstringIndex)) {
-                        currentSubstringIndex++;
-                        if (currentSubstringIndex == substring.length()) {
-                            count++;
-                            currentSubstringIndex = 0;
-                        }
-                    } else {
-                        currentSubstringIndex = 0;
-                    }
-                }
-                numRead = input.read(buffer);
-            }
-        } finally {
-            closeQuietly(input);
-        }
-        return count;
-    }
-
     // return a fingerprint formatted for display
     public static String formatFingerprint(Context context, String fingerprint) {
         if (TextUtils.isEmpty(fingerprint)
@@ -330,6 +307,27 @@ public final class Utils {
         return b.build();
     }
 
+    /**
+     * Where the image loader keeps icons on disk, see {@link Utils#getIconCacheFileName(String)}
+     * for what each is called.
+     */
+    public static File getIconCacheDir(Context context) {
+        final File iconCacheDir = new File(StorageUtils.getCacheDirectory(context, true), "icons");
+        if (!iconCacheDir.exists()) {
+            iconCacheDir.mkdirs();
+        }
+        return iconCacheDir;
+    }
+
+    /**
+     * Icons are cached by the name of the file in the repo, without the directory, so
+     * that icons unpacked from an icon bundle can be found under the same name as if each
+     * had been downloaded separately.
+     */
+    public static String getIconCacheFileName(String iconUrl) {
+        return iconUrl.substring(iconUrl.lastIndexOf('/') + 1);
+    }
+
     /**
      * See {@link Utils#getApkDownloadDir(android.content.Context)} for why this is "unsafe".
      */
@@ -563,6 +561,19 @@ public final class Utils {
         return result;
     }
 
+    public static long parseLong(String str, long fallback) {
+        if (str == null || str.length() == 0) {
+            return fallback;
+        }
+        long result;
+        try {
+            result = Long.parseLong(str);
+        } catch (NumberFormatException e) {
+            result = fallback;
+        }
+        return result;
+    }
+
     public static Date parseDate(String str, Date fallback) {
         if (str == null || str.length() == 0) {
             return fallback;
@@ -82,6 +82,55 @@ public class FileCompat extends Compatibility {
         }
     }
 
+    /**
+     * Makes dest a hard link to source, so that the same data on disk can be found under
+     * both names without copying it. This only works if both are on the same filesystem,
+     * so if it returns false then the caller should fall back to copying the file.
+     */
+    public static boolean link(SanitizedFile source, SanitizedFile dest) {
+
+        if (hasApi(21)) {
+            linkOs(source, dest);
+        } else if (hasApi(15)) {
+            linkLibcore(source, dest);
+        }
+
+        return dest.exists();
+    }
+
+    /**
+     * See {@link Symlink21} for why this is a separate class.
+     */
+    private static class Link21 {
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        public void link(SanitizedFile source, SanitizedFile dest) {
+            try {
+                android.system.Os.link(source.getAbsolutePath(), dest.getAbsolutePath());
+            } catch (ErrnoException e) {
+                // Do nothing...
+            }
+        }
+
+    }
+
+    @TargetApi(21)
+    protected static void linkOs(SanitizedFile source, SanitizedFile dest) {
+        new Link21().link(source, dest);
+    }
+
+    protected static void linkLibcore(SanitizedFile source, SanitizedFile dest) {
+        try {
+            Object os = Class.forName("libcore.io.Libcore").getField("os").get(null);
+            Method link = os.getClass().getMethod("link", String.class, String.class);
+            link.invoke(os, source.getAbsolutePath(), dest.getAbsolutePath());
+        } catch (Exception e) {
+            // Most likely because they are on different filesystems, see symlinkLibcore() for
+            // why this isn't more specific.
+            Log.d(TAG, "Could not link " + source.getAbsolutePath() + " to " + dest.getAbsolutePath() + ": " + e.getMessage());
+        }
+    }
+
     @TargetApi(9)
     public static boolean setReadable(SanitizedFile file, boolean readable, boolean ownerOnly) {
 
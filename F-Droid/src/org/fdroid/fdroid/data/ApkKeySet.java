@@ -0,0 +1,52 @@
+package org.fdroid.fdroid.data;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A set of apks, identified only by their (id, vercode) pair, which is the primary
+ * key of the apk table. Used when reconciling the contents of an index against what
+ * is already in the database, where checking each apk against a list of apks would
+ * take O(n * m) time. Adding and checking for an apk is done in constant time.
+ */
+public class ApkKeySet {
+
+    private final Map<String, Set<Integer>> versionCodesById = new HashMap<>();
+    private int size = 0;
+
+    /**
+     * @return True if the apk was not already in this set.
+     */
+    public boolean add(Apk apk) {
+        return add(apk.id, apk.vercode);
+    }
+
+    public boolean add(String id, int versionCode) {
+        Set<Integer> versionCodes = versionCodesById.get(id);
+        if (versionCodes == null) {
+            versionCodes = new HashSet<>(4);
+            versionCodesById.put(id, versionCodes);
+        }
+        boolean added = versionCodes.add(versionCode);
+        if (added) {
+            size++;
+        }
+        return added;
+    }
+
+    public boolean contains(Apk apk) {
+        return contains(apk.id, apk.vercode);
+    }
+
+    public boolean contains(String id, int versionCode) {
+        Set<Integer> versionCodes = versionCodesById.get(id);
+        return versionCodes != null && versionCodes.contains(versionCode);
+    }
+
+    public int size() {
+        return size;
+    }
+
+}
@@ -5,26 +5,28 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.provider.BaseColumns;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ApkProvider extends FDroidProvider {
 
     private static final String TAG = "ApkProvider";
 
     /**
-     * SQLite has a maximum of 999 parameters in a query. Each apk we add
-     * requires two (id and vercode) so we can only query half of that. Then,
-     * we may want to add additional constraints, so we give our self some
-     * room by saying only 450 apks can be queried at once.
+     * SQLite has a maximum of 999 parameters in a query. Each app id asked about
+     * needs one, and the repo id one more, which leaves some room to spare.
      */
-    protected static final int MAX_APKS_TO_QUERY = 450;
+    protected static final int MAX_APPS_TO_QUERY = 900;
 
     public static final class Helper {
 
@@ -64,22 +66,24 @@ public class ApkProvider extends FDroidProvider {
             resolver.delete(uri, null, null);
         }
 
+        /**
+         * Deletes the apks in the database which have the same id and version as one of
+         * these, all in one statement. The keys are written to a temporary table and joined
+         * against the apk table, rather than being encoded into the URI, so there is no limit
+         * on how many apks can be deleted at once.
+         */
         public static void deleteApks(final Context context, final List<Apk> apks) {
-            if (apks.size() > ApkProvider.MAX_APKS_TO_QUERY) {
-                int middle = apks.size() / 2;
-                List<Apk> apks1 = apks.subList(0, middle);
-                List<Apk> apks2 = apks.subList(middle, apks.size());
-                deleteApks(context, apks1);
-                deleteApks(context, apks2);
-            } else {
-                deleteApksSafely(context, apks);
+            if (apks.size() == 0) {
+                return;
             }
-        }
 
-        private static void deleteApksSafely(final Context context, final List<Apk> apks) {
             ContentResolver resolver = context.getContentResolver();
-            final Uri uri = getContentUri(apks);
-            resolver.delete(uri, null, null);
+            final long lookupId = createLookup(resolver, apks);
+            try {
+                resolver.delete(getLookupApksUri(lookupId), null, null);
+            } finally {
+                resolver.delete(getLookupUri(lookupId), null, null);
+            }
         }
 
         public static Apk find(Context context, String id, int versionCode) {
@@ -115,40 +119,57 @@ public class ApkProvider extends FDroidProvider {
         }
 
         /**
-         * Returns apks in the database, which have the same id and version as
-         * one of the apks in the "apks" argument.
+         * Adds the id and version code of each apk to a new lookup, which must be deleted
+         * once it has been used.
+         * @return The id of the lookup, see {@link ApkProvider#getLookupUri(long)}.
          */
-        public static List<Apk> knownApks(Context context, List<Apk> apks, String[] fields) {
-            if (apks.size() == 0) {
-                return new ArrayList<>();
-            }
-
-            List<Apk> knownApks = new ArrayList<>();
-            if (apks.size() > ApkProvider.MAX_APKS_TO_QUERY) {
-                int middle = apks.size() / 2;
-                List<Apk> apks1 = apks.subList(0, middle);
-                List<Apk> apks2 = apks.subList(middle, apks.size());
-                knownApks.addAll(knownApks(context, apks1, fields));
-                knownApks.addAll(knownApks(context, apks2, fields));
-            } else {
-                knownApks.addAll(knownApksSafe(context, apks, fields));
+        private static long createLookup(ContentResolver resolver, List<Apk> apks) {
+            ContentValues[] keys = new ContentValues[apks.size()];
+            for (int i = 0; i < apks.size(); i++) {
+                final Apk apk = apks.get(i);
+                keys[i] = new ContentValues(2);
+                keys[i].put(DataColumns.APK_ID, apk.id);
+                keys[i].put(DataColumns.VERSION_CODE, apk.vercode);
             }
-            return knownApks;
 
+            final long lookupId = nextLookupId.getAndIncrement();
+            resolver.bulkInsert(getLookupUri(lookupId), keys);
+            return lookupId;
         }
 
-        private static List<Apk> knownApksSafe(final Context context, final List<Apk> apks, final String[] fields) {
+        public static List<Apk> findByRepo(Context context, Repo repo, String[] fields) {
             ContentResolver resolver = context.getContentResolver();
-            final Uri uri = getContentUri(apks);
+            final Uri uri = getRepoUri(repo.getId());
             Cursor cursor = resolver.query(uri, fields, null, null, null);
             return cursorToList(cursor);
         }
 
-        public static List<Apk> findByRepo(Context context, Repo repo, String[] fields) {
+        /**
+         * Like {@link Helper#findByRepo(Context, Repo, String[])}, but only the apks of these
+         * apps, which the apk_repo index can find without reading the rest of the repo.
+         * Asks for at most {@link ApkProvider#MAX_APPS_TO_QUERY} apps in each query, so
+         * unless a great many are asked about, this is a single query.
+         */
+        public static List<Apk> findByRepo(Context context, Repo repo, Collection<String> appIds, String[] fields) {
+            List<Apk> apks = new ArrayList<>();
+            if (appIds.size() == 0) {
+                return apks;
+            }
+
             ContentResolver resolver = context.getContentResolver();
             final Uri uri = getRepoUri(repo.getId());
-            Cursor cursor = resolver.query(uri, fields, null, null, null);
-            return cursorToList(cursor);
+            List<String> ids = new ArrayList<>(appIds);
+            for (int i = 0; i < ids.size(); i += MAX_APPS_TO_QUERY) {
+                String[] args = ids.subList(i, Math.min(ids.size(), i + MAX_APPS_TO_QUERY)).toArray(new String[0]);
+                StringBuilder selection = new StringBuilder(DataColumns.APK_ID + " IN (");
+                for (int j = 0; j < args.length; j++) {
+                    selection.append(j == 0 ? "?" : ",?");
+                }
+                selection.append(')');
+                Cursor cursor = resolver.query(uri, fields, selection.toString(), args, null);
+                apks.addAll(cursorToList(cursor));
+            }
+            return apks;
         }
 
         public static Apk get(Context context, Uri uri) {
@@ -168,6 +189,39 @@ public class ApkProvider extends FDroidProvider {
             }
             return apk;
         }
+
+        /**
+         * Creates an empty staging table for apks from this repo. Apks are then added
+         * to it by inserting them at {@link ApkProvider#getStagingUri(Repo)}.
+         * @see AppProvider.Helper#initStaging(Context, Repo)
+         */
+        public static void initStaging(Context context, Repo repo) {
+            context.getContentResolver().update(getStagingUri(repo, PATH_STAGING_INIT), new ContentValues(), null, null);
+        }
+
+        /**
+         * Adds a batch of apks to the staging table for this repo, all in one go.
+         * @see AppProvider.Helper#stage(Context, Repo, List)
+         */
+        public static int stage(Context context, Repo repo, List<Apk> apks) {
+            ContentValues[] values = new ContentValues[apks.size()];
+            for (int i = 0; i < apks.size(); i++) {
+                values[i] = apks.get(i).toContentValues();
+            }
+            return context.getContentResolver().bulkInsert(getStagingUri(repo), values);
+        }
+
+        /**
+         * Moves everything from the staging table for this repo into the apk table.
+         * @return The number of apks which were committed.
+         */
+        public static int commitStaging(Context context, Repo repo) {
+            return context.getContentResolver().update(getStagingUri(repo, PATH_STAGING_COMMIT), new ContentValues(), null, null);
+        }
+
+        public static void discardStaging(Context context, Repo repo) {
+            context.getContentResolver().delete(getStagingUri(repo), null, null);
+        }
     }
 
     public interface DataColumns extends BaseColumns {
@@ -205,13 +259,31 @@ public class ApkProvider extends FDroidProvider {
 
     private static final int CODE_APP = CODE_SINGLE + 1;
     private static final int CODE_REPO = CODE_APP + 1;
-    private static final int CODE_APKS = CODE_REPO + 1;
+    private static final int CODE_STAGING = CODE_REPO + 1;
+    private static final int CODE_STAGING_INIT = CODE_STAGING + 1;
+    private static final int CODE_STAGING_COMMIT = CODE_STAGING_INIT + 1;
+    private static final int CODE_LOOKUP = CODE_STAGING_COMMIT + 1;
+    private static final int CODE_LOOKUP_APKS = CODE_LOOKUP + 1;
 
     private static final String PROVIDER_NAME = "ApkProvider";
     private static final String PATH_APK  = "apk";
-    private static final String PATH_APKS = "apks";
     private static final String PATH_APP  = "app";
     private static final String PATH_REPO = "repo";
+    private static final String PATH_STAGING = "staging";
+    private static final String PATH_STAGING_INIT = "init";
+    private static final String PATH_STAGING_COMMIT = "commit";
+    private static final String PATH_LOOKUP = "lookup";
+    private static final String PATH_LOOKUP_APKS = "apks";
+
+    /**
+     * Holds the keys of apks which are being looked up by
+     * {@link Helper#knownApks(Context, List, String[])} or deleted by
+     * {@link Helper#deleteApks(Context, List)}. Each lookup gets its own id, so
+     * that several can share the table at once.
+     */
+    private static final String TABLE_LOOKUP = "temp_apk_lookup";
+
+    private static final AtomicLong nextLookupId = new AtomicLong(1);
 
     private static final UriMatcher matcher = new UriMatcher(-1);
 
@@ -223,8 +295,12 @@ public class ApkProvider extends FDroidProvider {
 
         matcher.addURI(getAuthority(), PATH_REPO + "/#", CODE_REPO);
         matcher.addURI(getAuthority(), PATH_APK + "/#/*", CODE_SINGLE);
-        matcher.addURI(getAuthority(), PATH_APKS + "/*", CODE_APKS);
         matcher.addURI(getAuthority(), PATH_APP + "/*", CODE_APP);
+        matcher.addURI(getAuthority(), PATH_STAGING + "/#", CODE_STAGING);
+        matcher.addURI(getAuthority(), PATH_STAGING + "/#/" + PATH_STAGING_INIT, CODE_STAGING_INIT);
+        matcher.addURI(getAuthority(), PATH_STAGING + "/#/" + PATH_STAGING_COMMIT, CODE_STAGING_COMMIT);
+        matcher.addURI(getAuthority(), PATH_LOOKUP + "/#", CODE_LOOKUP);
+        matcher.addURI(getAuthority(), PATH_LOOKUP + "/#/" + PATH_LOOKUP_APKS, CODE_LOOKUP_APKS);
         matcher.addURI(getAuthority(), null, CODE_LIST);
     }
 
@@ -252,6 +328,39 @@ public class ApkProvider extends FDroidProvider {
             .build();
     }
 
+    public static Uri getStagingUri(Repo repo) {
+        return getContentUri()
+            .buildUpon()
+            .appendPath(PATH_STAGING)
+            .appendPath(Long.toString(repo.getId()))
+            .build();
+    }
+
+    private static Uri getStagingUri(Repo repo, String action) {
+        return Uri.withAppendedPath(getStagingUri(repo), action);
+    }
+
+    /**
+     * Apks are added to a lookup with {@link android.content.ContentResolver#bulkInsert(Uri, ContentValues[])}
+     * (only their id and version code are needed), then deleting {@link ApkProvider#getLookupApksUri(long)}
+     * deletes those which are in the database. Deleting this URI throws the lookup away, which
+     * must be done once it has been used.
+     */
+    public static Uri getLookupUri(long lookupId) {
+        return getContentUri()
+            .buildUpon()
+            .appendPath(PATH_LOOKUP)
+            .appendPath(Long.toString(lookupId))
+            .build();
+    }
+
+    /**
+     * Deleting this deletes the apks which are in the lookup, but not the lookup itself.
+     */
+    private static Uri getLookupApksUri(long lookupId) {
+        return Uri.withAppendedPath(getLookupUri(lookupId), PATH_LOOKUP_APKS);
+    }
+
     public static Uri getContentUri(Apk apk) {
         return getContentUri(apk.id, apk.vercode);
     }
@@ -265,27 +374,6 @@ public class ApkProvider extends FDroidProvider {
             .build();
     }
 
-    /**
-     * Intentionally left protected because it will break if apks is larger than
-     * {@link org.fdroid.fdroid.data.ApkProvider#MAX_APKS_TO_QUERY}. Instead of using
-     * this directly, think about using
-     * {@link org.fdroid.fdroid.data.ApkProvider.Helper#knownApks(android.content.Context, java.util.List, String[])}
-     */
-    protected static Uri getContentUri(List<Apk> apks) {
-        StringBuilder builder = new StringBuilder();
-        for (int i = 0; i < apks.size(); i++) {
-            if (i != 0) {
-                builder.append(',');
-            }
-            final Apk a = apks.get(i);
-            builder.append(a.id).append(':').append(a.vercode);
-        }
-        return getContentUri().buildUpon()
-                .appendPath(PATH_APKS)
-                .appendPath(builder.toString())
-                .build();
-    }
-
     @Override
     protected String getTableName() {
         return DBHelper.TABLE_APK;
@@ -358,27 +446,32 @@ public class ApkProvider extends FDroidProvider {
         return new QuerySelection(selection, args);
     }
 
-    private QuerySelection queryApks(String apkKeys) {
-        final String[] apkDetails = apkKeys.split(",");
-        final String[] args = new String[apkDetails.length * 2];
-        StringBuilder sb = new StringBuilder();
-        if (apkDetails.length > MAX_APKS_TO_QUERY) {
-            throw new IllegalArgumentException(
-                "Cannot query more than " + MAX_APKS_TO_QUERY + ". " +
-                "You tried to query " + apkDetails.length);
-        }
-        for (int i = 0; i < apkDetails.length; i++) {
-            String[] parts = apkDetails[i].split(":");
-            String id = parts[0];
-            String verCode = parts[1];
-            args[i * 2] = id;
-            args[i * 2 + 1] = verCode;
-            if (i != 0) {
-                sb.append(" OR ");
-            }
-            sb.append(" ( id = ? AND vercode = ? ) ");
-        }
-        return new QuerySelection(sb.toString(), args);
+    /**
+     * Goes from the (small) list of keys in the lookup to the apk table, using its primary key,
+     * rather than checking each apk against the list.
+     */
+    private QuerySelection queryLookup(long lookupId) {
+        final String selection = getTableName() + ".rowid IN (" +
+                "SELECT known.rowid FROM " + TABLE_LOOKUP + " AS lookup " +
+                "JOIN " + getTableName() + " AS known ON (known.id = lookup.id AND known.vercode = lookup.vercode) " +
+                "WHERE lookup.lookupId = ?)";
+        final String[] args = { Long.toString(lookupId) };
+        return new QuerySelection(selection, args);
+    }
+
+    /**
+     * Like the staging tables, this is a temporary table and so only exists for the
+     * connection of this provider. It is created the first time it is needed.
+     */
+    private void ensureLookupTable() {
+        write().execSQL("CREATE TEMP TABLE IF NOT EXISTS " + TABLE_LOOKUP + " (" +
+                "lookupId INTEGER NOT NULL, id TEXT NOT NULL, vercode INT NOT NULL, " +
+                "PRIMARY KEY (lookupId, id, vercode))");
+    }
+
+    private static long getLookupId(Uri uri) {
+        // The first path segment is the word "lookup".
+        return Long.parseLong(uri.getPathSegments().get(1));
     }
 
     @Override
@@ -398,10 +491,6 @@ public class ApkProvider extends FDroidProvider {
             query = query.add(queryApp(uri.getLastPathSegment()));
             break;
 
-        case CODE_APKS:
-            query = query.add(queryApks(uri.getLastPathSegment()));
-            break;
-
         case CODE_REPO:
             query = query.add(queryRepo(Long.parseLong(uri.getLastPathSegment())));
             break;
@@ -418,7 +507,7 @@ public class ApkProvider extends FDroidProvider {
         queryBuilder.addSelection(query.getSelection());
         queryBuilder.addOrderBy(sortOrder);
 
-        Cursor cursor = read().rawQuery(queryBuilder.toString(), query.getArgs());
+        Cursor cursor = rawQuery(queryBuilder.toString(), query.getArgs());
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
         return cursor;
     }
@@ -439,6 +528,14 @@ public class ApkProvider extends FDroidProvider {
     public Uri insert(Uri uri, ContentValues values) {
         removeRepoFields(values);
         validateFields(DataColumns.ALL, values);
+
+        if (matcher.match(uri) == CODE_STAGING) {
+            write().insertOrThrow(getStagingTableName(getStagingRepoId(uri)), null, values);
+            return getContentUri(
+                values.getAsString(DataColumns.APK_ID),
+                values.getAsInteger(DataColumns.VERSION_CODE));
+        }
+
         write().insertOrThrow(getTableName(), null, values);
         if (!isApplyingBatch()) {
             getContext().getContentResolver().notifyChange(uri, null);
@@ -449,6 +546,35 @@ public class ApkProvider extends FDroidProvider {
 
     }
 
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (matcher.match(uri) == CODE_LOOKUP) {
+            return addToLookup(getLookupId(uri), values);
+        }
+
+        if (matcher.match(uri) != CODE_STAGING) {
+            return super.bulkInsert(uri, values);
+        }
+
+        for (final ContentValues apk : values) {
+            removeRepoFields(apk);
+            validateFields(DataColumns.ALL, apk);
+        }
+        return bulkUpsert(getStagingTableName(getStagingRepoId(uri)), values);
+    }
+
+    private int addToLookup(long lookupId, ContentValues[] apks) {
+        final String[] keyFields = { DataColumns.APK_ID, DataColumns.VERSION_CODE };
+        ContentValues[] keys = new ContentValues[apks.length];
+        for (int i = 0; i < apks.length; i++) {
+            validateFields(keyFields, apks[i]);
+            keys[i] = new ContentValues(apks[i]);
+            keys[i].put("lookupId", lookupId);
+        }
+        ensureLookupTable();
+        return bulkUpsert(TABLE_LOOKUP, keys);
+    }
+
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
 
@@ -464,10 +590,19 @@ public class ApkProvider extends FDroidProvider {
             query = query.add(queryApp(uri.getLastPathSegment()));
             break;
 
-        case CODE_APKS:
-            query = query.add(queryApks(uri.getLastPathSegment()));
+        case CODE_STAGING:
+            dropStagingTable(getStagingRepoId(uri));
+            return 0;
+
+        case CODE_LOOKUP_APKS:
+            ensureLookupTable();
+            query = query.add(queryLookup(getLookupId(uri)));
             break;
 
+        case CODE_LOOKUP:
+            ensureLookupTable();
+            return write().delete(TABLE_LOOKUP, "lookupId = ?", new String[] { Long.toString(getLookupId(uri)) });
+
         case CODE_LIST:
             throw new UnsupportedOperationException("Can't delete all apks.");
 
@@ -479,7 +614,7 @@ public class ApkProvider extends FDroidProvider {
             throw new UnsupportedOperationException("Invalid URI for apk content provider: " + uri);
         }
 
-        int rowsAffected = write().delete(getTableName(), query.getSelection(), query.getArgs());
+        int rowsAffected = rawDelete(getTableName(), query.getSelection(), query.getArgs());
         getContext().getContentResolver().notifyChange(uri, null);
         return rowsAffected;
 
@@ -488,7 +623,18 @@ public class ApkProvider extends FDroidProvider {
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
 
-        if (matcher.match(uri) != CODE_SINGLE) {
+        switch (matcher.match(uri)) {
+        case CODE_STAGING_INIT:
+            initStagingTable(getStagingRepoId(uri));
+            return 0;
+
+        case CODE_STAGING_COMMIT:
+            return commitStaging(getStagingRepoId(uri));
+
+        case CODE_SINGLE:
+            break;
+
+        default:
             throw new UnsupportedOperationException("Cannot update anything other than a single apk.");
         }
 
@@ -506,4 +652,27 @@ public class ApkProvider extends FDroidProvider {
 
     }
 
+    /**
+     * Replaces apks in the apk table with those from the staging table of a repo, then
+     * drops the staging table.
+     */
+    private int commitStaging(long repoId) {
+        final String staging = getStagingTableName(repoId);
+
+        int count;
+        SQLiteDatabase db = write();
+        db.beginTransaction();
+        try {
+            db.execSQL("INSERT OR REPLACE INTO " + getTableName() + " SELECT * FROM " + staging);
+            count = (int) DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + staging, null);
+            dropStagingTable(repoId);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        getContext().getContentResolver().notifyChange(getContentUri(), null);
+        return count;
+    }
+
 }
@@ -8,6 +8,7 @@ import android.content.pm.FeatureInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -214,9 +215,12 @@ public class App extends ValueObject implements Comparable<App> {
 
     /**
      * Instantiate from a locally installed package.
+     * @param cache Where the hash, signature and SDK versions of the apk are looked up, which
+     *              take by far the longest to work out, and remembered once they have been.
+     *              May be null, in which case they are always worked out from the apk.
      */
     @TargetApi(9)
-    public App(Context context, PackageManager pm, String packageName)
+    public App(Context context, PackageManager pm, String packageName, @Nullable InstalledApkCache cache)
             throws CertificateEncodingException, IOException, PackageManager.NameNotFoundException {
         final ApplicationInfo appInfo = pm.getApplicationInfo(packageName,
                 PackageManager.GET_META_DATA);
@@ -258,11 +262,7 @@ public class App extends ValueObject implements Comparable<App> {
         final Apk apk = new Apk();
         apk.version = packageInfo.versionName;
         apk.vercode = packageInfo.versionCode;
-        apk.hashType = "sha256";
-        apk.hash = Utils.getBinaryHash(apkFile, apk.hashType);
         apk.added = this.added;
-        apk.minSdkVersion = Utils.getMinSdkVersion(context, packageName);
-        apk.maxSdkVersion = Utils.getMaxSdkVersion(context, packageName);
         apk.id = this.id;
         apk.installedFile = apkFile;
         apk.permissions = Utils.CommaSeparatedList.make(packageInfo.requestedPermissions);
@@ -277,6 +277,32 @@ public class App extends ValueObject implements Comparable<App> {
             apk.features = Utils.CommaSeparatedList.make(featureNames);
         }
 
+        final Apk cached = cache == null ? null : cache.get(packageInfo);
+        if (cached != null) {
+            apk.hashType = cached.hashType;
+            apk.hash = cached.hash;
+            apk.sig = cached.sig;
+            apk.minSdkVersion = cached.minSdkVersion;
+            apk.maxSdkVersion = cached.maxSdkVersion;
+        } else {
+            apk.hashType = "sha256";
+            apk.hash = Utils.getBinaryHash(apkFile, apk.hashType);
+            apk.sig = getSig(apkFile);
+            apk.minSdkVersion = Utils.getMinSdkVersion(context, packageName);
+            apk.maxSdkVersion = Utils.getMaxSdkVersion(context, packageName);
+            if (cache != null) {
+                cache.put(packageInfo, apk);
+            }
+        }
+
+        this.installedApk = apk;
+    }
+
+    /**
+     * @return The MD5 of the hex encoded certificate which the apk is signed with,
+     * which is how fdroidserver identifies signers.
+     */
+    private static String getSig(File apkFile) throws CertificateEncodingException, IOException {
         byte[] rawCertBytes;
 
         final JarFile apkJar = new JarFile(apkFile);
@@ -332,9 +358,7 @@ public class App extends ValueObject implements Comparable<App> {
             d = v & 0xF;
             fdroidSig[j * 2 + 1] = (byte) (d >= 10 ? ('a' + d - 10) : ('0' + d));
         }
-        apk.sig = Utils.hashBytes(fdroidSig, "md5");
-
-        this.installedApk = apk;
+        return Utils.hashBytes(fdroidSig, "md5");
     }
 
     public boolean isValid() {
@@ -5,7 +5,10 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import org.fdroid.fdroid.Preferences;
@@ -13,9 +16,8 @@ import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -23,8 +25,6 @@ public class AppProvider extends FDroidProvider {
 
     private static final String TAG = "AppProvider";
 
-    public static final int MAX_APPS_TO_QUERY = 900;
-
     public static final class Helper {
 
         private Helper() {}
@@ -89,27 +89,18 @@ public class AppProvider extends FDroidProvider {
 
         public static List<String> categories(Context context) {
             final ContentResolver resolver = context.getContentResolver();
-            final Uri uri = getContentUri();
-            final String[] projection = { DataColumns.CATEGORIES };
-            final Cursor cursor = resolver.query(uri, projection, null, null, null);
-            final Set<String> categorySet = new HashSet<>();
+            final Cursor cursor = resolver.query(getCategoriesUri(), null, null, null, null);
+            final List<String> categories = new ArrayList<>();
             if (cursor != null) {
                 if (cursor.getCount() > 0) {
                     cursor.moveToFirst();
                     while (!cursor.isAfterLast()) {
-                        final String categoriesString = cursor.getString(0);
-                        if (categoriesString != null) {
-                            for (final String s : Utils.CommaSeparatedList.make(categoriesString)) {
-                                categorySet.add(s);
-                            }
-                        }
+                        categories.add(cursor.getString(0));
                         cursor.moveToNext();
                     }
                 }
                 cursor.close();
             }
-            final List<String> categories = new ArrayList<>(categorySet);
-            Collections.sort(categories);
 
             // Populate the category list with the real categories, and the
             // locally generated meta-categories for "What's New", "Recently
@@ -150,6 +141,61 @@ public class AppProvider extends FDroidProvider {
             context.getContentResolver().update(fromUpstream, null, null, null);
         }
 
+        /**
+         * Like {@link Helper#calcDetailsFromIndex(Context)}, but only recalculates the details
+         * of the apps with these ids. After an update, that is usually the apps from repos which
+         * changed, plus any apps which lost apks along the way, rather than every app we know of.
+         * The full recalculation is still there for when everything needs doing, such as after
+         * the database has been upgraded.
+         */
+        public static void calcDetailsFromIndex(Context context, Collection<String> appIds) {
+            if (appIds.size() == 0) {
+                return;
+            }
+
+            ContentValues[] values = new ContentValues[appIds.size()];
+            int i = 0;
+            for (final String appId : appIds) {
+                values[i] = new ContentValues(1);
+                values[i].put(DataColumns.APP_ID, appId);
+                i++;
+            }
+            context.getContentResolver().bulkInsert(calcAppDetailsFromIndexUri(PATH_CHANGED_APPS), values);
+        }
+
+        /**
+         * Creates an empty staging table for apps from this repo, see
+         * {@link FDroidProvider#getStagingTableName(long)}. Apps are then added to it by
+         * inserting them at {@link AppProvider#getStagingUri(Repo)}.
+         */
+        public static void initStaging(Context context, Repo repo) {
+            context.getContentResolver().update(getStagingUri(repo, PATH_STAGING_INIT), new ContentValues(), null, null);
+        }
+
+        /**
+         * Adds a batch of apps to the staging table for this repo, all in one go.
+         * @see FDroidProvider#bulkUpsert(String, ContentValues[])
+         */
+        public static int stage(Context context, Repo repo, List<App> apps) {
+            ContentValues[] values = new ContentValues[apps.size()];
+            for (int i = 0; i < apps.size(); i++) {
+                values[i] = apps.get(i).toContentValues();
+            }
+            return context.getContentResolver().bulkInsert(getStagingUri(repo), values);
+        }
+
+        /**
+         * Moves everything from the staging table for this repo into the app table.
+         * @return The number of apps which were committed.
+         */
+        public static int commitStaging(Context context, Repo repo) {
+            return context.getContentResolver().update(getStagingUri(repo, PATH_STAGING_COMMIT), new ContentValues(), null, null);
+        }
+
+        public static void discardStaging(Context context, Repo repo) {
+            context.getContentResolver().delete(getStagingUri(repo), null, null);
+        }
+
     }
 
     public interface DataColumns {
@@ -399,39 +445,51 @@ public class AppProvider extends FDroidProvider {
     private static final String PATH_CAN_UPDATE = "canUpdate";
     private static final String PATH_SEARCH = "search";
     private static final String PATH_NO_APKS = "noApks";
-    private static final String PATH_APPS = "apps";
     private static final String PATH_RECENTLY_UPDATED = "recentlyUpdated";
     private static final String PATH_NEWLY_ADDED = "newlyAdded";
     private static final String PATH_CATEGORY = "category";
+    private static final String PATH_CATEGORIES = "categories";
     private static final String PATH_IGNORED = "ignored";
     private static final String PATH_CALC_APP_DETAILS_FROM_INDEX = "calcDetailsFromIndex";
+    private static final String PATH_CHANGED_APPS = "changed";
     private static final String PATH_REPO = "repo";
+    private static final String PATH_STAGING = "staging";
+    private static final String PATH_STAGING_INIT = "init";
+    private static final String PATH_STAGING_COMMIT = "commit";
 
     private static final int CAN_UPDATE       = CODE_SINGLE + 1;
     private static final int INSTALLED        = CAN_UPDATE + 1;
     private static final int SEARCH           = INSTALLED + 1;
     private static final int NO_APKS          = SEARCH + 1;
-    private static final int APPS             = NO_APKS + 1;
-    private static final int RECENTLY_UPDATED = APPS + 1;
+    private static final int RECENTLY_UPDATED = NO_APKS + 1;
     private static final int NEWLY_ADDED      = RECENTLY_UPDATED + 1;
     private static final int CATEGORY         = NEWLY_ADDED + 1;
     private static final int IGNORED          = CATEGORY + 1;
     private static final int CALC_APP_DETAILS_FROM_INDEX = IGNORED + 1;
     private static final int REPO             = CALC_APP_DETAILS_FROM_INDEX + 1;
+    private static final int STAGING          = REPO + 1;
+    private static final int STAGING_INIT     = STAGING + 1;
+    private static final int STAGING_COMMIT   = STAGING_INIT + 1;
+    private static final int CALC_APP_DETAILS_FOR_CHANGED_APPS = STAGING_COMMIT + 1;
+    private static final int CATEGORIES       = CALC_APP_DETAILS_FOR_CHANGED_APPS + 1;
 
     static {
         matcher.addURI(getAuthority(), null, CODE_LIST);
         matcher.addURI(getAuthority(), PATH_CALC_APP_DETAILS_FROM_INDEX, CALC_APP_DETAILS_FROM_INDEX);
+        matcher.addURI(getAuthority(), PATH_CALC_APP_DETAILS_FROM_INDEX + "/" + PATH_CHANGED_APPS, CALC_APP_DETAILS_FOR_CHANGED_APPS);
         matcher.addURI(getAuthority(), PATH_IGNORED, IGNORED);
         matcher.addURI(getAuthority(), PATH_RECENTLY_UPDATED, RECENTLY_UPDATED);
         matcher.addURI(getAuthority(), PATH_NEWLY_ADDED, NEWLY_ADDED);
         matcher.addURI(getAuthority(), PATH_CATEGORY + "/*", CATEGORY);
+        matcher.addURI(getAuthority(), PATH_CATEGORIES, CATEGORIES);
         matcher.addURI(getAuthority(), PATH_SEARCH + "/*", SEARCH);
         matcher.addURI(getAuthority(), PATH_REPO + "/#", REPO);
         matcher.addURI(getAuthority(), PATH_CAN_UPDATE, CAN_UPDATE);
         matcher.addURI(getAuthority(), PATH_INSTALLED, INSTALLED);
         matcher.addURI(getAuthority(), PATH_NO_APKS, NO_APKS);
-        matcher.addURI(getAuthority(), PATH_APPS + "/*", APPS);
+        matcher.addURI(getAuthority(), PATH_STAGING + "/#", STAGING);
+        matcher.addURI(getAuthority(), PATH_STAGING + "/#/" + PATH_STAGING_INIT, STAGING_INIT);
+        matcher.addURI(getAuthority(), PATH_STAGING + "/#/" + PATH_STAGING_COMMIT, STAGING_COMMIT);
         matcher.addURI(getAuthority(), "*", CODE_SINGLE);
     }
 
@@ -455,6 +513,10 @@ public class AppProvider extends FDroidProvider {
         return Uri.withAppendedPath(getContentUri(), PATH_CALC_APP_DETAILS_FROM_INDEX);
     }
 
+    private static Uri calcAppDetailsFromIndexUri(String action) {
+        return Uri.withAppendedPath(calcAppDetailsFromIndexUri(), action);
+    }
+
     public static Uri getCategoryUri(String category) {
         return getContentUri().buildUpon()
             .appendPath(PATH_CATEGORY)
@@ -462,6 +524,14 @@ public class AppProvider extends FDroidProvider {
             .build();
     }
 
+    /**
+     * Lists the name of each category which has at least one app in it (not counting
+     * apps which only come from swap repos), in alphabetical order.
+     */
+    public static Uri getCategoriesUri() {
+        return Uri.withAppendedPath(getContentUri(), PATH_CATEGORIES);
+    }
+
     public static Uri getNoApksUri() {
         return Uri.withAppendedPath(getContentUri(), PATH_NO_APKS);
     }
@@ -481,20 +551,17 @@ public class AppProvider extends FDroidProvider {
             .build();
     }
 
-    public static Uri getContentUri(List<App> apps) {
-        StringBuilder builder = new StringBuilder();
-        for (int i = 0; i < apps.size(); i++) {
-            if (i != 0) {
-                builder.append(',');
-            }
-            builder.append(apps.get(i).id);
-        }
+    public static Uri getStagingUri(Repo repo) {
         return getContentUri().buildUpon()
-            .appendPath(PATH_APPS)
-            .appendPath(builder.toString())
+            .appendPath(PATH_STAGING)
+            .appendPath(String.valueOf(repo.getId()))
             .build();
     }
 
+    private static Uri getStagingUri(Repo repo, String action) {
+        return Uri.withAppendedPath(getStagingUri(repo), action);
+    }
+
     public static Uri getContentUri(App app) {
         return getContentUri(app.id);
     }
@@ -541,49 +608,81 @@ public class AppProvider extends FDroidProvider {
         return new AppQuerySelection().requireNaturalInstalledTable();
     }
 
+    /**
+     * Finds apps with every word of the query somewhere in their id, name, summary or
+     * description, using the full text index in {@link DBHelper#TABLE_APP_SEARCH}.
+     * The last word only needs to be the start of a word, so that results can be shown
+     * while the user is still typing.
+     */
     private AppQuerySelection querySearch(String query) {
-        final String[] columns = {
-            "fdroid_app.id",
-            "fdroid_app.name",
-            "fdroid_app.summary",
-            "fdroid_app.description",
-        };
+        final List<String> terms = getSearchTerms(query);
+        if (terms.size() == 0) {
+            return new AppQuerySelection("0");
+        }
 
-        // Remove duplicates, surround in % for case insensitive searching
-        final Set<String> keywordSet = new HashSet<>(Arrays.asList(query.split("\\s")));
-        final String[] keywords = new String[keywordSet.size()];
-        int iKeyword = 0;
-        for (final String keyword : keywordSet) {
-            keywords[iKeyword] = "%" + keyword + "%";
-            iKeyword++;
-        }
-
-        // Build selection string and fill out keyword arguments
-        final StringBuilder selection = new StringBuilder();
-        final String[] selectionKeywords = new String[columns.length * keywords.length];
-        iKeyword = 0;
-        boolean firstColumn = true;
-        for (final String column : columns) {
-            if (firstColumn) {
-                firstColumn = false;
-            } else {
-                selection.append("OR ");
+        final String selection = "fdroid_app.rowid IN ( " +
+                " SELECT docid FROM " + DBHelper.TABLE_APP_SEARCH +
+                " WHERE " + DBHelper.TABLE_APP_SEARCH + " MATCH ? ) ";
+        final String[] args = { getSearchMatch(terms, null) };
+        return new AppQuerySelection(selection, args);
+    }
+
+    /**
+     * Sorts apps which have every word of the query in their name before those which only
+     * matched because of their id, summary or description.
+     */
+    private static String getSearchRanking(String query) {
+        final List<String> terms = getSearchTerms(query);
+        if (terms.size() == 0) {
+            return null;
+        }
+
+        final String nameMatch = DatabaseUtils.sqlEscapeString(getSearchMatch(terms, DataColumns.NAME));
+        return " fdroid_app.rowid IN ( " +
+                " SELECT docid FROM " + DBHelper.TABLE_APP_SEARCH +
+                " WHERE " + DBHelper.TABLE_APP_SEARCH + " MATCH " + nameMatch + " ) DESC ";
+    }
+
+    /**
+     * Splits a search query into words the same way that the FTS "simple" tokenizer does,
+     * so that punctuation in the query can't be mistaken for FTS query syntax. That is,
+     * only ASCII characters other than letters and digits separate words, and only ASCII
+     * letters are case folded, so e.g. "Über" only matches "Über" and not "über", just as
+     * with the LIKE search this replaced. Duplicates are removed.
+     */
+    private static List<String> getSearchTerms(String query) {
+        final Set<String> terms = new LinkedHashSet<>();
+        final StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= query.length(); i++) {
+            final char c = i < query.length() ? query.charAt(i) : ' ';
+            if (c >= 0x80 || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z')) {
+                term.append(c);
+            } else if (c >= 'A' && c <= 'Z') {
+                term.append((char) (c - 'A' + 'a'));
+            } else if (term.length() > 0) {
+                terms.add(term.toString());
+                term.setLength(0);
             }
-            selection.append('(');
-            boolean firstKeyword = true;
-            for (final String keyword : keywords) {
-                if (firstKeyword) {
-                    firstKeyword = false;
-                } else {
-                    selection.append(" AND ");
-                }
-                selection.append(column).append(" like ?");
-                selectionKeywords[iKeyword] = keyword;
-                iKeyword++;
+        }
+        return new ArrayList<>(terms);
+    }
+
+    /**
+     * @param column If specified, only matches words in this column.
+     * @return An FTS query matching rows which contain a word starting with each of the terms.
+     */
+    private static String getSearchMatch(List<String> terms, @Nullable String column) {
+        final StringBuilder match = new StringBuilder();
+        for (final String term : terms) {
+            if (match.length() > 0) {
+                match.append(' ');
             }
-            selection.append(") ");
+            if (column != null) {
+                match.append(column).append(':');
+            }
+            match.append(term).append('*');
         }
-        return new AppQuerySelection(selection.toString(), selectionKeywords);
+        return match.toString();
     }
 
     private AppQuerySelection querySingle(String id) {
@@ -619,33 +718,39 @@ public class AppProvider extends FDroidProvider {
     }
 
     private AppQuerySelection queryCategory(String category) {
-        // TODO: In the future, add a new table for categories,
-        // so we can join onto it.
-        final String selection =
-                " fdroid_app.categories = ? OR " +    // Only category e.g. "internet"
-                " fdroid_app.categories LIKE ? OR " + // First category e.g. "internet,%"
-                " fdroid_app.categories LIKE ? OR " + // Last category e.g. "%,internet"
-                " fdroid_app.categories LIKE ? ";     // One of many categories e.g. "%,internet,%"
-        final String[] args = {
-                category,
-                category + ",%",
-                "%," + category,
-                "%," + category + ",%",
-        };
+        final String selection = " fdroid_app.id IN ( " +
+                " SELECT appId FROM " + DBHelper.TABLE_APP_CATEGORY + " WHERE category = ? ) ";
+        final String[] args = { category };
         return new AppQuerySelection(selection, args);
     }
 
+    /**
+     * Apps which have apks in a swap repo, but none anywhere else, are left out of the
+     * category list to match what is shown when browsing categories.
+     */
+    private Cursor queryCategories() {
+        final String swapOnlyApps =
+                " SELECT swapApk.id FROM fdroid_repo AS swapRepo " +
+                // CROSS JOIN so that SQLite starts with the few swap repos, and then uses the
+                // index on repo, rather than looking at every apk.
+                " CROSS JOIN fdroid_apk AS swapApk ON ( swapApk.repo = swapRepo._id ) " +
+                " WHERE swapRepo.isSwap = 1 AND NOT EXISTS ( " +
+                    " SELECT 1 FROM fdroid_apk AS otherApk " +
+                    " JOIN fdroid_repo AS otherRepo ON ( otherRepo._id = otherApk.repo ) " +
+                    " WHERE otherApk.id = swapApk.id AND ( otherRepo.isSwap = 0 OR otherRepo.isSwap IS NULL ) ) ";
+
+        final String sql =
+                " SELECT DISTINCT category FROM " + DBHelper.TABLE_APP_CATEGORY +
+                " WHERE appId NOT IN ( " + swapOnlyApps + " ) " +
+                " ORDER BY category ";
+        return rawQuery(sql, null);
+    }
+
     private AppQuerySelection queryNoApks() {
         String selection = "(SELECT COUNT(*) FROM fdroid_apk WHERE fdroid_apk.id = fdroid_app.id) = 0";
         return new AppQuerySelection(selection);
     }
 
-    private AppQuerySelection queryApps(String appIds) {
-        String[] args = appIds.split(",");
-        String selection = "fdroid_app.id IN (" + generateQuestionMarksForInClause(args.length) + ")";
-        return new AppQuerySelection(selection, args);
-    }
-
     @Override
     public Cursor query(Uri uri, String[] projection, String customSelection, String[] selectionArgs, String sortOrder) {
         Query query = new Query();
@@ -653,12 +758,18 @@ public class AppProvider extends FDroidProvider {
 
         // Queries which are for the main list of apps should not include swap apps.
         boolean includeSwap = true;
+        String searchRanking = null;
 
         switch (matcher.match(uri)) {
         case CODE_LIST:
             includeSwap = false;
             break;
 
+        case CATEGORIES:
+            Cursor categories = queryCategories();
+            categories.setNotificationUri(getContext().getContentResolver(), uri);
+            return categories;
+
         case CODE_SINGLE:
             selection = selection.add(querySingle(uri.getLastPathSegment()));
             break;
@@ -679,6 +790,7 @@ public class AppProvider extends FDroidProvider {
 
         case SEARCH:
             selection = selection.add(querySearch(uri.getLastPathSegment()));
+            searchRanking = getSearchRanking(uri.getLastPathSegment());
             includeSwap = false;
             break;
 
@@ -686,10 +798,6 @@ public class AppProvider extends FDroidProvider {
             selection = selection.add(queryNoApks());
             break;
 
-        case APPS:
-            selection = selection.add(queryApps(uri.getLastPathSegment()));
-            break;
-
         case IGNORED:
             selection = selection.add(queryIgnored());
             break;
@@ -724,11 +832,15 @@ public class AppProvider extends FDroidProvider {
             sortOrder = " lower( fdroid_app." + sortOrder + " ) ";
         }
 
+        if (searchRanking != null) {
+            sortOrder = sortOrder == null ? searchRanking : searchRanking + ", " + sortOrder;
+        }
+
         query.addSelection(selection);
         query.addFields(projection); // TODO: Make the order of addFields/addSelection not dependent on each other...
         query.addOrderBy(sortOrder);
 
-        Cursor cursor = read().rawQuery(query.toString(), selection.getArgs());
+        Cursor cursor = rawQuery(query.toString(), selection.getArgs());
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
         return cursor;
     }
@@ -743,25 +855,62 @@ public class AppProvider extends FDroidProvider {
             query = query.add(queryNoApks());
             break;
 
+        case STAGING:
+            dropStagingTable(getStagingRepoId(uri));
+            return 0;
+
         default:
             throw new UnsupportedOperationException("Delete not supported for " + uri + ".");
 
         }
 
-        int count = write().delete(getTableName(), query.getSelection(), query.getArgs());
+        int count = rawDelete(getTableName(), query.getSelection(), query.getArgs());
+        if (count > 0) {
+            write().execSQL("DELETE FROM " + DBHelper.TABLE_APP_CATEGORY +
+                    " WHERE appId NOT IN ( SELECT id FROM " + getTableName() + " )");
+            write().execSQL("DELETE FROM " + DBHelper.TABLE_APP_SEARCH +
+                    " WHERE docid NOT IN ( SELECT rowid FROM " + getTableName() + " )");
+        }
         getContext().getContentResolver().notifyChange(uri, null);
         return count;
     }
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        if (matcher.match(uri) == STAGING) {
+            write().insertOrThrow(getStagingTableName(getStagingRepoId(uri)), null, values);
+            return getContentUri(values.getAsString(DataColumns.APP_ID));
+        }
+
         write().insertOrThrow(getTableName(), null, values);
+        final String[] appId = { values.getAsString(DataColumns.APP_ID) };
+        DBHelper.insertAppSearch(write(), "id = ?", appId);
+        if (values.containsKey(DataColumns.CATEGORIES)) {
+            updateCategories(appId[0]);
+        }
         if (!isApplyingBatch()) {
             getContext().getContentResolver().notifyChange(uri, null);
         }
         return getContentUri(values.getAsString(DataColumns.APP_ID));
     }
 
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        switch (matcher.match(uri)) {
+        case STAGING:
+            for (final ContentValues app : values) {
+                validateFields(DataColumns.ALL, app);
+            }
+            return bulkUpsert(getStagingTableName(getStagingRepoId(uri)), values);
+
+        case CALC_APP_DETAILS_FOR_CHANGED_APPS:
+            return updateAppDetails(values);
+
+        default:
+            return super.bulkInsert(uri, values);
+        }
+    }
+
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
         QuerySelection query = new QuerySelection(where, whereArgs);
@@ -771,6 +920,13 @@ public class AppProvider extends FDroidProvider {
             updateAppDetails();
             return 0;
 
+        case STAGING_INIT:
+            initStagingTable(getStagingRepoId(uri));
+            return 0;
+
+        case STAGING_COMMIT:
+            return commitStaging(getStagingRepoId(uri));
+
         case CODE_SINGLE:
             query = query.add(querySingle(uri.getLastPathSegment()));
             break;
@@ -779,18 +935,117 @@ public class AppProvider extends FDroidProvider {
             throw new UnsupportedOperationException("Update not supported for " + uri + ".");
 
         }
+        final String[] appId = { uri.getLastPathSegment() };
+        final boolean isSearchable = values.containsKey(DataColumns.NAME) || values.containsKey(DataColumns.SUMMARY)
+                || values.containsKey(DataColumns.DESCRIPTION);
+        if (isSearchable) {
+            DBHelper.deleteAppSearch(write(), "id = ?", appId);
+        }
         int count = write().update(getTableName(), values, query.getSelection(), query.getArgs());
+        if (isSearchable) {
+            DBHelper.insertAppSearch(write(), "id = ?", appId);
+        }
+        if (values.containsKey(DataColumns.CATEGORIES)) {
+            updateCategories(appId[0]);
+        }
         if (!isApplyingBatch()) {
             getContext().getContentResolver().notifyChange(uri, null);
         }
         return count;
     }
 
+    /**
+     * Replaces apps in the app table with those from the staging table of a repo, then
+     * drops the staging table. Whether the user chose to ignore updates can't come from an
+     * index, so for apps we already know about, those values are kept as they were.
+     */
+    private int commitStaging(long repoId) {
+        final String staging = getStagingTableName(repoId);
+        final String app = getTableName();
+        final String[] userFields = { DataColumns.IGNORE_ALLUPDATES, DataColumns.IGNORE_THISUPDATE };
+
+        StringBuilder keepUserFields = new StringBuilder("UPDATE " + staging + " SET ");
+        for (int i = 0; i < userFields.length; i++) {
+            if (i > 0) {
+                keepUserFields.append(", ");
+            }
+            keepUserFields.append(userFields[i]).append(" = (SELECT existing.").append(userFields[i])
+                .append(" FROM ").append(app).append(" AS existing WHERE existing.id = ").append(staging).append(".id)");
+        }
+        keepUserFields.append(" WHERE id IN (SELECT id FROM ").append(app).append(")");
+
+        int count;
+        SQLiteDatabase db = write();
+        db.beginTransaction();
+        try {
+            db.execSQL(keepUserFields.toString());
+            DBHelper.deleteAppSearch(db, "id IN (SELECT id FROM " + staging + ")", null);
+            db.execSQL("INSERT OR REPLACE INTO " + app + " SELECT * FROM " + staging);
+            DBHelper.insertAppSearch(db, "id IN (SELECT id FROM " + staging + ")", null);
+            db.execSQL("DELETE FROM " + DBHelper.TABLE_APP_CATEGORY + " WHERE appId IN (SELECT id FROM " + staging + ")");
+            DBHelper.insertAppCategories(db, "SELECT id, categories FROM " + staging, null);
+            count = (int) DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + staging, null);
+            dropStagingTable(repoId);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        getContext().getContentResolver().notifyChange(getContentUri(), null);
+        return count;
+    }
+
+    /**
+     * Rewrites the rows in the category table for this app, from its categories column.
+     */
+    private void updateCategories(String appId) {
+        final String[] args = { appId };
+        write().delete(DBHelper.TABLE_APP_CATEGORY, "appId = ?", args);
+        DBHelper.insertAppCategories(write(), "SELECT id, categories FROM " + getTableName() + " WHERE id = ?", args);
+    }
+
     private void updateAppDetails() {
-        updateCompatibleFlags();
-        updateSuggestedFromLatest();
-        updateSuggestedFromUpstream();
-        updateIconUrls();
+        updateAppDetailsWhere(null);
+    }
+
+    /**
+     * Writes the ids of the changed apps to a temporary table, and then only updates the
+     * details of apps which are in it.
+     * @return The number of apps which were updated.
+     */
+    private int updateAppDetails(ContentValues[] changedAppIds) {
+        final String changedApps = "temp_changed_apps";
+        int count;
+        SQLiteDatabase db = write();
+        db.beginTransaction();
+        try {
+            db.execSQL("DROP TABLE IF EXISTS " + changedApps);
+            db.execSQL("CREATE TEMP TABLE " + changedApps + " (id TEXT PRIMARY KEY)");
+            count = bulkUpsert(changedApps, changedAppIds);
+            updateAppDetailsWhere(getTableName() + ".id IN (SELECT id FROM " + changedApps + ")");
+            db.execSQL("DROP TABLE " + changedApps);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    /**
+     * @param appFilter Limits which apps are updated, or null to update every app.
+     */
+    private void updateAppDetailsWhere(@Nullable String appFilter) {
+        updateCompatibleFlags(appFilter);
+        updateSuggestedFromLatest(appFilter);
+        updateSuggestedFromUpstream(appFilter);
+        updateIconUrls(appFilter);
+    }
+
+    private static String andAppFilter(String where, @Nullable String appFilter) {
+        if (appFilter == null) {
+            return where;
+        }
+        return where.length() == 0 ? " WHERE " + appFilter : where + " AND " + appFilter;
     }
 
     /**
@@ -826,7 +1081,7 @@ public class AppProvider extends FDroidProvider {
      *   )
      *   WHERE upstreamVercode > 0
      */
-    private void updateSuggestedFromUpstream() {
+    private void updateSuggestedFromUpstream(@Nullable String appFilter) {
 
         Log.d(TAG, "Calculating suggested versions for all apps which specify an upstream version code.");
 
@@ -842,7 +1097,7 @@ public class AppProvider extends FDroidProvider {
                     app + ".id = " + apk + ".id AND " +
                     apk + ".vercode <= " + app + ".upstreamVercode AND " +
                     " ( " + app + ".compatible = 0 OR " + apk + ".compatible = 1 ) ) " +
-            " WHERE upstreamVercode > 0 ";
+            andAppFilter(" WHERE upstreamVercode > 0 ", appFilter);
 
         write().execSQL(updateSql);
     }
@@ -858,7 +1113,7 @@ public class AppProvider extends FDroidProvider {
      *      FROM fdroid_apk
      *      WHERE fdroid_apk.id = fdroid_app.id );
      */
-    private void updateCompatibleFlags() {
+    private void updateCompatibleFlags(@Nullable String appFilter) {
 
         Log.d(TAG, "Calculating whether apps are compatible, based on whether any of their apks are compatible");
 
@@ -869,7 +1124,8 @@ public class AppProvider extends FDroidProvider {
             "UPDATE " + app + " SET compatible = ( " +
                 " SELECT TOTAL( " + apk + ".compatible ) > 0 " +
                 " FROM " + apk +
-                " WHERE " + apk + ".id = " + app + ".id );";
+                " WHERE " + apk + ".id = " + app + ".id ) " +
+            andAppFilter("", appFilter);
 
         write().execSQL(updateSql);
     }
@@ -902,7 +1158,7 @@ public class AppProvider extends FDroidProvider {
      *  )
      *  WHERE upstreamVercode = 0 OR upstreamVercode IS NULL;
      */
-    private void updateSuggestedFromLatest() {
+    private void updateSuggestedFromLatest(@Nullable String appFilter) {
 
         Log.d(TAG, "Calculating suggested versions for all apps which don't specify an upstream version code.");
 
@@ -917,7 +1173,7 @@ public class AppProvider extends FDroidProvider {
                 " WHERE " +
                     app + ".id = " + apk + ".id AND " +
                     " ( " + app + ".compatible = 0 OR " + apk + ".compatible = 1 ) ) " +
-            " WHERE upstreamVercode = 0 OR upstreamVercode IS NULL ";
+            andAppFilter(" WHERE ( upstreamVercode = 0 OR upstreamVercode IS NULL ) ", appFilter);
 
         write().execSQL(updateSql);
     }
@@ -926,6 +1182,10 @@ public class AppProvider extends FDroidProvider {
      * Updates URLs to icons
      */
     public void updateIconUrls() {
+        updateIconUrls(null);
+    }
+
+    private void updateIconUrls(@Nullable String appFilter) {
         final String iconsDir = Utils.getIconsDir(getContext(), 1.0);
         final String iconsDirLarge = Utils.getIconsDir(getContext(), 1.5);
         String repoVersion = Integer.toString(Repo.VERSION_DENSITY_SPECIFIC_ICONS);
@@ -933,7 +1193,7 @@ public class AppProvider extends FDroidProvider {
                 + repoVersion);
         Log.d(TAG, "Using icons dir '" + iconsDir + "'");
         Log.d(TAG, "Using large icons dir '" + iconsDirLarge + "'");
-        String query = getIconUpdateQuery();
+        String query = getIconUpdateQuery(appFilter);
         final String[] params = {
             repoVersion, iconsDir, Utils.FALLBACK_ICONS_DIR,
             repoVersion, iconsDirLarge, Utils.FALLBACK_ICONS_DIR };
@@ -945,7 +1205,7 @@ public class AppProvider extends FDroidProvider {
      *  1) The repo version that introduced density specific icons
      *  2) The dir to density specific icons for the current device.
      */
-    private String getIconUpdateQuery() {
+    private String getIconUpdateQuery(@Nullable String appFilter) {
 
         final String apk = DBHelper.TABLE_APK;
         final String app = DBHelper.TABLE_APP;
@@ -996,7 +1256,8 @@ public class AppProvider extends FDroidProvider {
             " ), " +
             " iconUrlLarge = ( " +
                 iconUrlQuery +
-            " ) ";
+            " ) " +
+            andAppFilter("", appFilter);
     }
 
 }
@@ -3,8 +3,10 @@ package org.fdroid.fdroid.data;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import org.fdroid.fdroid.R;
@@ -34,7 +36,8 @@ public class DBHelper extends SQLiteOpenHelper {
             + "maxage integer not null default 0, "
             + "version integer not null default 0, "
             + "lastetag text, lastUpdated string,"
-            + "isSwap integer boolean default 0);";
+            + "isSwap integer boolean default 0,"
+            + "timestamp integer not null default 0);";
 
     private static final String CREATE_TABLE_APK =
             "CREATE TABLE " + TABLE_APK + " ( "
@@ -92,16 +95,38 @@ public class DBHelper extends SQLiteOpenHelper {
             + "iconUrlLarge text, "
             + "primary key(id));";
 
+    /**
+     * Each category of each app, so that apps in a category can be found with an index
+     * rather than by matching against the comma separated categories of every app.
+     * Kept in sync with {@link #TABLE_APP} by the {@link AppProvider}.
+     */
+    public static final String TABLE_APP_CATEGORY = "fdroid_app_category";
+    private static final String CREATE_TABLE_APP_CATEGORY = "CREATE TABLE " + TABLE_APP_CATEGORY
+            + " ( "
+            + "appId text not null, "
+            + "category text not null, "
+            + "primary key(appId, category));";
+
+    /**
+     * Full text index of the id, name, summary and description of each app, used when
+     * searching. The docid of each row is the rowid of the app in {@link #TABLE_APP}.
+     * FTS3 rather than FTS4, because the latter is not available before Honeycomb.
+     */
+    public static final String TABLE_APP_SEARCH = "fdroid_app_search";
+    private static final String CREATE_TABLE_APP_SEARCH = "CREATE VIRTUAL TABLE " + TABLE_APP_SEARCH
+            + " USING fts3(id, name, summary, description);";
+
     public static final String TABLE_INSTALLED_APP = "fdroid_installedApp";
     private static final String CREATE_TABLE_INSTALLED_APP = "CREATE TABLE " + TABLE_INSTALLED_APP
             + " ( "
             + InstalledAppProvider.DataColumns.APP_ID + " TEXT NOT NULL PRIMARY KEY, "
             + InstalledAppProvider.DataColumns.VERSION_CODE + " INT NOT NULL, "
             + InstalledAppProvider.DataColumns.VERSION_NAME + " TEXT NOT NULL, "
-            + InstalledAppProvider.DataColumns.APPLICATION_LABEL + " TEXT NOT NULL "
+            + InstalledAppProvider.DataColumns.APPLICATION_LABEL + " TEXT NOT NULL, "
+            + InstalledAppProvider.DataColumns.LAST_UPDATE_TIME + " INTEGER NOT NULL DEFAULT 0 "
             + " );";
 
-    private static final int DB_VERSION = 49;
+    private static final int DB_VERSION = 54;
 
     private final Context context;
 
@@ -191,6 +216,8 @@ public class DBHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
 
         createAppApk(db);
+        createAppCategory(db);
+        db.execSQL(CREATE_TABLE_APP_SEARCH);
         createInstalledApp(db);
         db.execSQL(CREATE_TABLE_REPO);
 
@@ -284,6 +311,11 @@ public class DBHelper extends SQLiteOpenHelper {
         addIsSwapToRepo(db, oldVersion);
         addChangelogToApp(db, oldVersion);
         addIconUrlLargeToApp(db, oldVersion);
+        addTimestampToRepo(db, oldVersion);
+        addAppCategoryTable(db, oldVersion);
+        addAppSearchTable(db, oldVersion);
+        addApkRepoIndex(db, oldVersion);
+        addLastUpdateTimeToInstalledApp(db, oldVersion);
     }
 
     /**
@@ -432,6 +464,48 @@ public class DBHelper extends SQLiteOpenHelper {
         }
     }
 
+    private void addTimestampToRepo(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion < 50 && !columnExists(db, TABLE_REPO, "timestamp")) {
+            Log.i(TAG, "Adding timestamp column to " + TABLE_REPO);
+            db.execSQL("alter table " + TABLE_REPO + " add column timestamp integer not null default 0");
+        }
+    }
+
+    private void addAppCategoryTable(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion < 51 && !tableExists(db, TABLE_APP_CATEGORY)) {
+            Log.i(TAG, "Creating " + TABLE_APP_CATEGORY + " table from the categories of each app");
+            createAppCategory(db);
+            insertAppCategories(db, "SELECT id, categories FROM " + TABLE_APP, null);
+        }
+    }
+
+    private void addAppSearchTable(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion < 52 && !tableExists(db, TABLE_APP_SEARCH)) {
+            Log.i(TAG, "Creating " + TABLE_APP_SEARCH + " table and indexing existing apps");
+            db.execSQL(CREATE_TABLE_APP_SEARCH);
+            insertAppSearch(db, "1", null);
+        }
+    }
+
+    private void addApkRepoIndex(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion < 53) {
+            Log.i(TAG, "Adding index on repo to " + TABLE_APK);
+            createApkRepoIndex(db);
+        }
+    }
+
+    /**
+     * Existing rows are left with 0, so they are each written once more by the next
+     * {@link InstalledAppCacheUpdater} run, and only when they change after that.
+     */
+    private void addLastUpdateTimeToInstalledApp(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion < 54 && !columnExists(db, TABLE_INSTALLED_APP, InstalledAppProvider.DataColumns.LAST_UPDATE_TIME)) {
+            Log.i(TAG, "Adding " + InstalledAppProvider.DataColumns.LAST_UPDATE_TIME + " column to " + TABLE_INSTALLED_APP);
+            db.execSQL("alter table " + TABLE_INSTALLED_APP + " add column "
+                    + InstalledAppProvider.DataColumns.LAST_UPDATE_TIME + " integer not null default 0");
+        }
+    }
+
     private void resetTransient(SQLiteDatabase db, int oldVersion) {
         // Before version 42, only transient info was stored in here. As of some time
         // just before 42 (F-Droid 0.60ish) it now has "ignore this version" info which
@@ -454,6 +528,70 @@ public class DBHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_TABLE_APK);
         db.execSQL("create index apk_vercode on " + TABLE_APK + " (vercode);");
         db.execSQL("create index apk_id on " + TABLE_APK + " (id);");
+        createApkRepoIndex(db);
+    }
+
+    /**
+     * Apks are looked up, deleted and joined onto apps by their repo, e.g. when removing the
+     * apks which are no longer in an index. Including the id and version code means that
+     * these lookups don't need to touch the table itself.
+     */
+    private static void createApkRepoIndex(SQLiteDatabase db) {
+        db.execSQL("create index if not exists apk_repo on " + TABLE_APK + " (repo, id, vercode);");
+    }
+
+    private static void createAppCategory(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE_APP_CATEGORY);
+        db.execSQL("create index app_category_category on " + TABLE_APP_CATEGORY + " (category, appId);");
+    }
+
+    /**
+     * Adds a row to the category table for each category of each app returned by
+     * {@code appQuery}, which should select the id and the categories (in that order)
+     * of the apps. Any existing rows for these apps should be deleted first.
+     */
+    static void insertAppCategories(SQLiteDatabase db, String appQuery, String[] args) {
+        SQLiteStatement insert = db.compileStatement(
+                "INSERT OR IGNORE INTO " + TABLE_APP_CATEGORY + " (appId, category) VALUES (?, ?)");
+        Cursor cursor = db.rawQuery(appQuery, args);
+        try {
+            while (cursor.moveToNext()) {
+                Utils.CommaSeparatedList categories = Utils.CommaSeparatedList.make(cursor.getString(1));
+                if (categories == null) {
+                    continue;
+                }
+                for (final String category : categories) {
+                    insert.bindString(1, cursor.getString(0));
+                    insert.bindString(2, category);
+                    insert.executeInsert();
+                }
+            }
+        } finally {
+            cursor.close();
+            insert.close();
+        }
+    }
+
+    /**
+     * Indexes each app matching {@code appSelection} (a WHERE clause on the app table)
+     * for searching. Apps which are already indexed need removing first, see
+     * {@link #deleteAppSearch(SQLiteDatabase, String, String[])}.
+     */
+    static void insertAppSearch(SQLiteDatabase db, String appSelection, String[] args) {
+        db.execSQL("INSERT INTO " + TABLE_APP_SEARCH + " (docid, id, name, summary, description) " +
+                "SELECT rowid, id, name, summary, description FROM " + TABLE_APP +
+                " WHERE " + appSelection, args == null ? new String[0] : args);
+    }
+
+    /**
+     * Removes each app matching {@code appSelection} (a WHERE clause on the app table) from the
+     * search index. Must be done before the rows in the app table are replaced or deleted,
+     * because the search index is keyed by their rowid.
+     */
+    static void deleteAppSearch(SQLiteDatabase db, String appSelection, String[] args) {
+        db.execSQL("DELETE FROM " + TABLE_APP_SEARCH + " WHERE docid IN " +
+                "(SELECT rowid FROM " + TABLE_APP + " WHERE " + appSelection + ")",
+                args == null ? new String[0] : args);
     }
 
     private void createInstalledApp(SQLiteDatabase db) {
@@ -472,6 +610,12 @@ public class DBHelper extends SQLiteOpenHelper {
         }
     }
 
+    private static boolean tableExists(SQLiteDatabase db, String table) {
+        return DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[] { table }) > 0;
+    }
+
     private static boolean columnExists(SQLiteDatabase db,
             String table, String column) {
         return (db.rawQuery("select * from " + table + " limit 0,1", null)
@@ -7,11 +7,16 @@ import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Build;
+import android.text.TextUtils;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -84,6 +89,22 @@ public abstract class FDroidProvider extends ContentProvider {
         return db().getWritableDatabase();
     }
 
+    /**
+     * All queries which back a {@link ContentProvider#query(Uri, String[], String, String[], String)}
+     * should go through here, so that tests can see what SQL each URI results in.
+     */
+    protected Cursor rawQuery(String sql, String[] args) {
+        return read().rawQuery(sql, args);
+    }
+
+    /**
+     * Likewise for the deletes which back a {@link ContentProvider#delete(Uri, String, String[])}.
+     * @return The number of rows deleted.
+     */
+    protected int rawDelete(String table, String selection, String[] args) {
+        return write().delete(table, selection, args);
+    }
+
     @Override
     public String getType(Uri uri) {
         String type;
@@ -101,6 +122,73 @@ public abstract class FDroidProvider extends ContentProvider {
 
     abstract protected UriMatcher getMatcher();
 
+    /**
+     * While an index is being parsed, its contents are written to a staging table rather
+     * than the real one, because the signature of the index can only be checked once all
+     * of it has been read. Each repo gets its own table, so that several can be parsed at
+     * once. They are temporary tables, so only exist for the connection of this provider,
+     * and will not outlive the process if an update is interrupted.
+     */
+    protected final String getStagingTableName(long repoId) {
+        return "temp_" + getTableName() + "_" + repoId;
+    }
+
+    /**
+     * Creates an empty staging table with exactly the same columns (in the same order)
+     * as the real table, so that rows can be copied straight across when committing.
+     */
+    protected final void initStagingTable(long repoId) {
+        dropStagingTable(repoId);
+        write().execSQL("CREATE TEMP TABLE " + getStagingTableName(repoId) +
+                " AS SELECT * FROM " + getTableName() + " WHERE 0");
+    }
+
+    protected final void dropStagingTable(long repoId) {
+        write().execSQL("DROP TABLE IF EXISTS " + getStagingTableName(repoId));
+    }
+
+    /**
+     * Writes all of the rows to the table in a single transaction, replacing any
+     * existing rows which conflict with them. Rather than building and compiling a new
+     * INSERT for every row (as {@link SQLiteDatabase#insert(String, String, ContentValues)}
+     * does), one statement is compiled for each distinct set of columns and then rebound
+     * for each row. Callers are responsible for validating the values first.
+     * @return The number of rows written.
+     */
+    protected final int bulkUpsert(String table, ContentValues[] rows) {
+        Map<String, SQLiteStatement> statements = new HashMap<>();
+        SQLiteDatabase db = write();
+        db.beginTransaction();
+        try {
+            for (final ContentValues row : rows) {
+                String[] columns = getKeySet(row).toArray(new String[row.size()]);
+                String columnList = TextUtils.join(", ", columns);
+                SQLiteStatement statement = statements.get(columnList);
+                if (statement == null) {
+                    statement = db.compileStatement("INSERT OR REPLACE INTO " + table +
+                            " (" + columnList + ") VALUES (" +
+                            generateQuestionMarksForInClause(columns.length) + ")");
+                    statements.put(columnList, statement);
+                }
+                for (int i = 0; i < columns.length; i++) {
+                    DatabaseUtils.bindObjectToProgram(statement, i + 1, row.get(columns[i]));
+                }
+                statement.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            for (final SQLiteStatement statement : statements.values()) {
+                statement.close();
+            }
+        }
+        return rows.length;
+    }
+
+    protected static long getStagingRepoId(Uri uri) {
+        return Long.parseLong(uri.getPathSegments().get(1));
+    }
+
     protected String generateQuestionMarksForInClause(int num) {
         StringBuilder sb = new StringBuilder(num * 2);
         for (int i = 0; i < num; i++) {
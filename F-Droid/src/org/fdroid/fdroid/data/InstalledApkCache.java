@@ -0,0 +1,108 @@
+package org.fdroid.fdroid.data;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the details of installed apks which are slow to work out, i.e. the hash of the
+ * whole apk, the signature from inside it and the SDK versions from its manifest, so that
+ * adding an app to the local repo only has to do that when it has been installed or
+ * upgraded since the last time. Each entry is only used for the exact same install of
+ * the package, i.e. the same version code and last update time.
+ *
+ * Apps are added from several threads at once, so new entries are kept in memory until
+ * {@link InstalledApkCache#save()} writes them all at once, rather than each thread
+ * writing the whole preferences file again for every app.
+ */
+@TargetApi(9)
+public class InstalledApkCache {
+
+    private static final String TAG = "InstalledApkCache";
+
+    private static final String PREFERENCES_FILE = "installedApkCache";
+
+    private static final String SEPARATOR = ";";
+
+    private final SharedPreferences prefs;
+
+    // Guarded by itself.
+    private final Map<String, String> unsaved = new HashMap<>();
+
+    public InstalledApkCache(Context context) {
+        prefs = context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return An {@link Apk} with only the hash, hash type, signature and SDK versions
+     * filled in, or null if they are not known for this install of the package.
+     */
+    @Nullable
+    public Apk get(PackageInfo info) {
+        String value;
+        synchronized (unsaved) {
+            value = unsaved.get(info.packageName);
+        }
+        if (value == null) {
+            value = prefs.getString(info.packageName, null);
+        }
+        if (value == null) {
+            return null;
+        }
+
+        String[] parts = TextUtils.split(value, SEPARATOR);
+        try {
+            if (parts.length != 7
+                    || Integer.parseInt(parts[0]) != info.versionCode
+                    || Long.parseLong(parts[1]) != info.lastUpdateTime) {
+                return null;
+            }
+            Apk apk = new Apk();
+            apk.hashType = parts[2];
+            apk.hash = parts[3];
+            apk.sig = parts[4];
+            apk.minSdkVersion = Integer.parseInt(parts[5]);
+            apk.maxSdkVersion = Integer.parseInt(parts[6]);
+            return apk;
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Ignoring unreadable entry for " + info.packageName + ": " + value);
+            return null;
+        }
+    }
+
+    public void put(PackageInfo info, Apk apk) {
+        String value = TextUtils.join(SEPARATOR, new Object[] {
+            info.versionCode, info.lastUpdateTime, apk.hashType, apk.hash, apk.sig,
+            apk.minSdkVersion, apk.maxSdkVersion,
+        });
+        synchronized (unsaved) {
+            unsaved.put(info.packageName, value);
+        }
+    }
+
+    /**
+     * Writes everything which has been {@link InstalledApkCache#put(PackageInfo, Apk)} since
+     * the last time, in a single edit which is saved in the background.
+     */
+    public void save() {
+        synchronized (unsaved) {
+            if (unsaved.isEmpty()) {
+                return;
+            }
+            SharedPreferences.Editor editor = prefs.edit();
+            for (Map.Entry<String, String> entry : unsaved.entrySet()) {
+                editor.putString(entry.getKey(), entry.getValue());
+            }
+            editor.apply();
+            Log.d(TAG, "Saved " + unsaved.size() + " installed apks");
+            unsaved.clear();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.fdroid.fdroid.data;
+
+import android.app.IntentService;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.fdroid.fdroid.BuildConfig;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The only thing which writes to the installed app cache, so that the changes from the
+ * package broadcasts and from comparing the whole cache with the {@link PackageManager}
+ * can't overwrite each other, as they used to when each was done on its own thread.
+ *
+ * Each package broadcast only queues the name of the package, and the cache row for it
+ * is then made to match whatever the {@link PackageManager} says about it by the time
+ * the queue is processed. That way, when a package is removed and added again as part
+ * of an upgrade, or several apps are installed in a row, the queue is processed once
+ * for all of them.
+ *
+ * The whole cache is only compared with the {@link PackageManager} (see
+ * {@link InstalledAppCacheUpdater}) when F-Droid starts and the installed packages
+ * are not the same as they were when that was last done, e.g. because F-Droid was
+ * not running to receive the broadcasts, or F-Droid itself has been upgraded.
+ */
+public class InstalledAppCacheService extends IntentService {
+
+    private static final String TAG = "InstalledAppCacheService";
+
+    private static final String ACTION_SCAN = "org.fdroid.fdroid.data.action.SCAN_INSTALLED_APPS";
+
+    private static final String PREFERENCES_FILE = "installedAppCache";
+    private static final String PREF_MARKER = "marker";
+
+    /**
+     * Each content provider has its own connection to the database, so while another one
+     * is upgrading it (e.g. the first time F-Droid starts after being upgraded), the
+     * installed app cache can find the database locked. The comparison is tried again a
+     * few times, each after waiting a bit longer, before leaving it until F-Droid next starts.
+     */
+    private static final int MAX_SCAN_ATTEMPTS = 5;
+    private static final long SCAN_RETRY_DELAY_MS = 2000;
+
+    private static final Set<String> queuedPackages = new LinkedHashSet<>();
+
+    public InstalledAppCacheService() {
+        super("InstalledAppCacheService");
+    }
+
+    /**
+     * Makes sure the cache has caught up with any packages which were installed, upgraded
+     * or removed without us hearing about it.
+     */
+    public static void scan(Context context) {
+        Intent intent = new Intent(context, InstalledAppCacheService.class);
+        intent.setAction(ACTION_SCAN);
+        context.startService(intent);
+    }
+
+    /**
+     * Updates the cache to reflect whether {@code packageName} is installed now,
+     * and which version of it.
+     */
+    public static void queue(Context context, String packageName) {
+        synchronized (queuedPackages) {
+            queuedPackages.add(packageName);
+        }
+        context.startService(new Intent(context, InstalledAppCacheService.class));
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (ACTION_SCAN.equals(intent.getAction())) {
+            scanIfChanged(this);
+        }
+        processQueue(this);
+    }
+
+    /**
+     * Writes the current state of each package which has been queued since this was last
+     * called, which is usually done by the service. Only public so that tests can have
+     * the package broadcasts applied straight away.
+     */
+    public static void processQueue(Context context) {
+        List<String> packageNames;
+        synchronized (queuedPackages) {
+            if (queuedPackages.isEmpty()) {
+                return;
+            }
+            packageNames = new ArrayList<>(queuedPackages);
+            queuedPackages.clear();
+        }
+
+        PackageManager pm = context.getPackageManager();
+        for (String packageName : packageNames) {
+            try {
+                PackageInfo info = pm.getPackageInfo(packageName, 0);
+                Log.d(TAG, "Caching installed app info for '" + packageName + "' (v" + info.versionCode + ")");
+                insertOrReplace(context, info);
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.d(TAG, "Removing installed app info for '" + packageName + "'");
+                context.getContentResolver().delete(InstalledAppProvider.getAppUri(packageName), null, null);
+            }
+            context.getContentResolver().notifyChange(AppProvider.getContentUri(packageName), null);
+            context.getContentResolver().notifyChange(ApkProvider.getAppUri(packageName), null);
+        }
+    }
+
+    private static void insertOrReplace(Context context, PackageInfo info) {
+        ContentValues values = new ContentValues(5);
+        values.put(InstalledAppProvider.DataColumns.APP_ID, info.packageName);
+        values.put(InstalledAppProvider.DataColumns.VERSION_CODE, info.versionCode);
+        values.put(InstalledAppProvider.DataColumns.VERSION_NAME, info.versionName);
+        values.put(InstalledAppProvider.DataColumns.APPLICATION_LABEL,
+                InstalledAppProvider.getApplicationLabel(context, info));
+        values.put(InstalledAppProvider.DataColumns.LAST_UPDATE_TIME,
+                InstalledAppProvider.getLastUpdateTime(info));
+        context.getContentResolver().insert(InstalledAppProvider.getContentUri(), values);
+    }
+
+    private static void scanIfChanged(Context context) {
+        List<PackageInfo> installedPackages = context.getPackageManager().getInstalledPackages(0);
+        String marker = getMarker(installedPackages);
+        SharedPreferences prefs = context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE);
+        if (marker.equals(prefs.getString(PREF_MARKER, null))) {
+            Log.d(TAG, "Installed apps are the same as when the cache was last compared with them");
+            return;
+        }
+
+        for (int attempt = 1; attempt <= MAX_SCAN_ATTEMPTS; attempt++) {
+            InstalledAppCacheUpdater updater = new InstalledAppCacheUpdater(context);
+            try {
+                if (updater.update(installedPackages)) {
+                    updater.notifyProviders();
+                }
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Could not compare installed apps with the cache (attempt " + attempt + "): " + e);
+                SystemClock.sleep(SCAN_RETRY_DELAY_MS * attempt);
+                continue;
+            }
+
+            // Only remember that the cache matches these packages once it really does,
+            // otherwise it would not be compared again until something else changed.
+            if (updater.isCacheWritten()) {
+                prefs.edit().putString(PREF_MARKER, marker).commit();
+            }
+            return;
+        }
+        Log.e(TAG, "Gave up comparing installed apps with the cache, will try again next time F-Droid starts");
+    }
+
+    /**
+     * Changes whenever a package is installed, upgraded (or reinstalled, from Gingerbread
+     * onwards) or removed, and when F-Droid is upgraded, in case that changed the cache.
+     * The hash of each package is summed, so the order of the packages doesn't matter.
+     */
+    private static String getMarker(List<PackageInfo> installedPackages) {
+        long sum = 0;
+        for (PackageInfo info : installedPackages) {
+            String packageVersion = info.packageName + ":" + info.versionCode + ":" + InstalledAppProvider.getLastUpdateTime(info);
+            sum += packageVersion.hashCode();
+        }
+        return BuildConfig.VERSION_CODE + "-" + installedPackages.size() + "-" + Long.toHexString(sum);
+    }
+}
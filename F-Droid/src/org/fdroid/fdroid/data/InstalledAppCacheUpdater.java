@@ -5,30 +5,47 @@ import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.pm.PackageInfo;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.RemoteException;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Compares what is in the fdroid_installedApp SQLite database table with the package
  * info that we can gleam from the {@link android.content.pm.PackageManager}. If there
  * is any updates/removals/insertions which need to take place, we will perform them.
- * TODO: The content providers are not thread safe, so it is possible we will be writing
- * to the database at the same time we respond to a broadcasted intent.
+ * Apps whose version code and last update time are the same as in the cache are left
+ * alone, so after the first run, this usually only has to read the cache and the list of
+ * installed packages, without loading any labels or writing anything.
+ * Outside of tests, this is only run by the {@link InstalledAppCacheService}, which is also
+ * what applies the package broadcasts, so the two can't write to the cache at the same time.
  */
 public class InstalledAppCacheUpdater {
 
     private static final String TAG = "InstalledAppCache";
 
+    /**
+     * Loading the label of an app means loading its resources, which is slow enough that when
+     * there are more than a few apps to label (e.g. when the cache is empty), it is worth
+     * doing it on all cores.
+     */
+    private static final int MIN_LABELS_TO_LOAD_IN_PARALLEL = 8;
+
     private final Context context;
 
     private final List<PackageInfo> toInsert = new ArrayList<>();
     private final List<String>      toDelete = new ArrayList<>();
 
+    private boolean cacheWritten = true;
+
     protected InstalledAppCacheUpdater(Context context) {
         this.context = context;
     }
@@ -49,19 +66,23 @@ public class InstalledAppCacheUpdater {
     /**
      * Ensure our database of installed apps is in sync with what the PackageManager tells us is installed.
      * Once completed, the relevant ContentProviders will be notified of any changes to installed statuses.
-     * This method returns immediately, and will continue to work in an AsyncTask.
+     * This method returns immediately, and the {@link InstalledAppCacheService} does the work, but
+     * only if something has been installed, upgraded or removed since it was last done.
      */
     public static void updateInBackground(Context context) {
-        InstalledAppCacheUpdater updater = new InstalledAppCacheUpdater(context);
-        updater.startBackgroundWorker();
+        InstalledAppCacheService.scan(context);
     }
 
     protected boolean update() {
+        return update(context.getPackageManager().getInstalledPackages(0));
+    }
+
+    boolean update(List<PackageInfo> installedPackages) {
 
         long startTime = System.currentTimeMillis();
 
-        compareCacheToPackageManager();
-        updateCache();
+        compareCacheToPackageManager(installedPackages);
+        cacheWritten = updateCache();
 
         long duration = System.currentTimeMillis() - startTime;
         Log.d(TAG, "Took " + duration + "ms to compare the installed app cache with PackageManager.");
@@ -69,16 +90,20 @@ public class InstalledAppCacheUpdater {
         return hasChanged();
     }
 
+    /**
+     * @return False if the changes which {@link InstalledAppCacheUpdater#update(List)} found
+     * could not be written to the cache, in which case it is still out of date.
+     */
+    boolean isCacheWritten() {
+        return cacheWritten;
+    }
+
     protected void notifyProviders() {
         Log.i(TAG, "Installed app cache has changed, notifying content providers (so they can update the relevant views).");
         context.getContentResolver().notifyChange(AppProvider.getContentUri(), null);
         context.getContentResolver().notifyChange(ApkProvider.getContentUri(), null);
     }
 
-    protected void startBackgroundWorker() {
-        new PostponedWorker().execute();
-    }
-
     /**
      * If any of the cached app details have been removed, updated or inserted,
      * then the cache has changed.
@@ -87,7 +112,7 @@ public class InstalledAppCacheUpdater {
         return toInsert.size() > 0 || toDelete.size() > 0;
     }
 
-    private void updateCache() {
+    private boolean updateCache() {
 
         ArrayList<ContentProviderOperation> ops = new ArrayList<>();
         ops.addAll(deleteFromCache(toDelete));
@@ -99,42 +124,42 @@ public class InstalledAppCacheUpdater {
                 Log.d(TAG, "Finished executing " + ops.size() + " CRUD operations on installed app cache.");
             } catch (RemoteException | OperationApplicationException e) {
                 Log.e(TAG, "Error updating installed app cache: " + e);
+                return false;
             }
         }
+        return true;
 
     }
 
-    private void compareCacheToPackageManager() {
+    private void compareCacheToPackageManager(List<PackageInfo> installedPackages) {
 
-        Map<String, Integer> cachedInfo = InstalledAppProvider.Helper.all(context);
+        Map<String, InstalledAppProvider.Helper.CachedVersion> cachedInfo = InstalledAppProvider.Helper.all(context);
 
-        List<PackageInfo> installedPackages = context.getPackageManager().getInstalledPackages(0);
         for (PackageInfo appInfo : installedPackages) {
-            toInsert.add(appInfo);
-            if (cachedInfo.containsKey(appInfo.packageName)) {
-                cachedInfo.remove(appInfo.packageName);
+            InstalledAppProvider.Helper.CachedVersion cached = cachedInfo.remove(appInfo.packageName);
+            if (cached == null || cached.versionCode != appInfo.versionCode
+                    || cached.lastUpdateTime != InstalledAppProvider.getLastUpdateTime(appInfo)) {
+                toInsert.add(appInfo);
             }
         }
 
-        if (cachedInfo.size() > 0) {
-            for (Map.Entry<String, Integer> entry : cachedInfo.entrySet()) {
-                toDelete.add(entry.getKey());
-            }
-        }
+        toDelete.addAll(cachedInfo.keySet());
     }
 
     private List<ContentProviderOperation> insertIntoCache(List<PackageInfo> appsToInsert) {
         List<ContentProviderOperation> ops = new ArrayList<>(appsToInsert.size());
         if (appsToInsert.size() > 0) {
-            Log.d(TAG, "Preparing to cache installed info for " + appsToInsert.size() + " new apps.");
+            Log.d(TAG, "Preparing to cache installed info for " + appsToInsert.size() + " new or changed apps.");
+            Map<String, String> labels = loadLabels(appsToInsert);
             Uri uri = InstalledAppProvider.getContentUri();
             for (PackageInfo info : appsToInsert) {
                 ContentProviderOperation op = ContentProviderOperation.newInsert(uri)
                     .withValue(InstalledAppProvider.DataColumns.APP_ID, info.packageName)
                     .withValue(InstalledAppProvider.DataColumns.VERSION_CODE, info.versionCode)
                     .withValue(InstalledAppProvider.DataColumns.VERSION_NAME, info.versionName)
-                    .withValue(InstalledAppProvider.DataColumns.APPLICATION_LABEL,
-                            InstalledAppProvider.getApplicationLabel(context, info.packageName))
+                    .withValue(InstalledAppProvider.DataColumns.APPLICATION_LABEL, labels.get(info.packageName))
+                    .withValue(InstalledAppProvider.DataColumns.LAST_UPDATE_TIME,
+                            InstalledAppProvider.getLastUpdateTime(info))
                     .build();
                 ops.add(op);
             }
@@ -142,6 +167,46 @@ public class InstalledAppCacheUpdater {
         return ops;
     }
 
+    /**
+     * @return The label of each app, keyed by package name.
+     */
+    private Map<String, String> loadLabels(List<PackageInfo> apps) {
+        Map<String, String> labels = new HashMap<>(apps.size());
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), apps.size() / MIN_LABELS_TO_LOAD_IN_PARALLEL);
+        if (threads <= 1) {
+            for (PackageInfo info : apps) {
+                labels.put(info.packageName, InstalledAppProvider.getApplicationLabel(context, info));
+            }
+            return labels;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Map<String, Future<String>> futures = new HashMap<>(apps.size());
+            for (final PackageInfo info : apps) {
+                futures.put(info.packageName, executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return InstalledAppProvider.getApplicationLabel(context, info);
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<String>> entry : futures.entrySet()) {
+                labels.put(entry.getKey(), entry.getValue().get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "Error loading app labels, using package names instead: " + e);
+            for (PackageInfo info : apps) {
+                if (labels.get(info.packageName) == null) {
+                    labels.put(info.packageName, info.packageName);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return labels;
+    }
+
     private List<ContentProviderOperation> deleteFromCache(List<String> appIds) {
         List<ContentProviderOperation> ops = new ArrayList<>(appIds.size());
         if (appIds.size() > 0) {
@@ -154,27 +219,4 @@ public class InstalledAppCacheUpdater {
         return ops;
     }
 
-    /**
-     * Waits 5 seconds before beginning to update cache of installed apps.
-     * This is due to a bug where the database was locked as F-Droid was starting,
-     * which caused a crash.
-     */
-    private class PostponedWorker extends AsyncTask<Void, Void, Boolean> {
-
-        @Override
-        protected Boolean doInBackground(Void... params) {
-            try {
-                Thread.sleep(10000);
-            } catch (InterruptedException ignored) {}
-            return update();
-        }
-
-        @Override
-        protected void onPostExecute(Boolean changed) {
-            if (changed) {
-                notifyProviders();
-            }
-        }
-    }
-
 }
@@ -1,13 +1,16 @@
 package org.fdroid.fdroid.data;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.util.Log;
 
 import org.fdroid.fdroid.R;
@@ -21,27 +24,36 @@ public class InstalledAppProvider extends FDroidProvider {
 
     public static class Helper {
 
+        /**
+         * What the cache knows about an installed app, which is enough to tell whether it has
+         * changed since, without having to look at its label.
+         */
+        public static class CachedVersion {
+            public final int versionCode;
+            public final long lastUpdateTime;
+
+            public CachedVersion(int versionCode, long lastUpdateTime) {
+                this.versionCode = versionCode;
+                this.lastUpdateTime = lastUpdateTime;
+            }
+        }
+
         /**
          * @return The keys are the app ids (package names), and their corresponding values are
-         * the version code which is installed.
+         * the version which is installed.
          */
-        public static Map<String, Integer> all(Context context) {
+        public static Map<String, CachedVersion> all(Context context) {
 
-            Map<String, Integer> cachedInfo = new HashMap<>();
+            Map<String, CachedVersion> cachedInfo = new HashMap<>();
 
             final Uri uri = InstalledAppProvider.getContentUri();
-            final String[] projection = InstalledAppProvider.DataColumns.ALL;
+            final String[] projection = {
+                DataColumns.APP_ID, DataColumns.VERSION_CODE, DataColumns.LAST_UPDATE_TIME,
+            };
             Cursor cursor = context.getContentResolver().query(uri, projection, null, null, null);
             if (cursor != null) {
-                if (cursor.getCount() > 0) {
-                    cursor.moveToFirst();
-                    while (!cursor.isAfterLast()) {
-                        cachedInfo.put(
-                            cursor.getString(cursor.getColumnIndex(InstalledAppProvider.DataColumns.APP_ID)),
-                            cursor.getInt(cursor.getColumnIndex(InstalledAppProvider.DataColumns.VERSION_CODE))
-                        );
-                        cursor.moveToNext();
-                    }
+                while (cursor.moveToNext()) {
+                    cachedInfo.put(cursor.getString(0), new CachedVersion(cursor.getInt(1), cursor.getLong(2)));
                 }
                 cursor.close();
             }
@@ -58,9 +70,10 @@ public class InstalledAppProvider extends FDroidProvider {
         String VERSION_CODE = "versionCode";
         String VERSION_NAME = "versionName";
         String APPLICATION_LABEL = "applicationLabel";
+        String LAST_UPDATE_TIME = "lastUpdateTime";
 
         String[] ALL = {
-                _ID, APP_ID, VERSION_CODE, VERSION_NAME, APPLICATION_LABEL,
+                _ID, APP_ID, VERSION_CODE, VERSION_NAME, APPLICATION_LABEL, LAST_UPDATE_TIME,
         };
 
     }
@@ -93,6 +106,31 @@ public class InstalledAppProvider extends FDroidProvider {
             .build();
     }
 
+    /**
+     * Uses the {@link ApplicationInfo} which {@link PackageManager#getInstalledPackages(int)}
+     * already included, rather than asking the {@link PackageManager} for it again.
+     */
+    public static String getApplicationLabel(Context context, PackageInfo info) {
+        if (info.applicationInfo == null) {
+            return getApplicationLabel(context, info.packageName);
+        }
+        try {
+            return info.applicationInfo.loadLabel(context.getPackageManager()).toString();
+        } catch (Resources.NotFoundException e) {
+            Log.d(TAG, "getApplicationLabel: " + e.getMessage());
+            return info.packageName;
+        }
+    }
+
+    /**
+     * {@link PackageInfo#lastUpdateTime} changes whenever the app is reinstalled, even with
+     * the same version code, but is only available from Gingerbread.
+     */
+    @TargetApi(9)
+    public static long getLastUpdateTime(PackageInfo info) {
+        return Build.VERSION.SDK_INT >= 9 ? info.lastUpdateTime : 0;
+    }
+
     public static String getApplicationLabel(Context context, String packageName) {
         PackageManager pm = context.getPackageManager();
         ApplicationInfo appInfo;
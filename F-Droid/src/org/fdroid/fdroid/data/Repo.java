@@ -28,6 +28,7 @@ public class Repo extends ValueObject {
     public String lastetag; // last etag we updated from, null forces update
     public Date lastUpdated;
     public boolean isSwap;
+    public long timestamp; // when the index we last read was generated, 0 if unknown
 
     public Repo() {
     }
@@ -77,6 +78,9 @@ public class Repo extends ValueObject {
             case RepoProvider.DataColumns.IS_SWAP:
                 isSwap = cursor.getInt(i) == 1;
                 break;
+            case RepoProvider.DataColumns.TIMESTAMP:
+                timestamp = cursor.getLong(i);
+                break;
             }
         }
     }
@@ -178,5 +182,10 @@ public class Repo extends ValueObject {
         if (values.containsKey(RepoProvider.DataColumns.IS_SWAP)) {
             isSwap= toInt(values.getAsInteger(RepoProvider.DataColumns.IS_SWAP)) == 1;
         }
+
+        if (values.containsKey(RepoProvider.DataColumns.TIMESTAMP)) {
+            Long ts = values.getAsLong(RepoProvider.DataColumns.TIMESTAMP);
+            timestamp = ts == null ? 0 : ts;
+        }
     }
 }
@@ -15,7 +15,9 @@ import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.Utils;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class RepoProvider extends FDroidProvider {
 
@@ -182,7 +184,18 @@ public class RepoProvider extends FDroidProvider {
             resolver.delete(uri, null, null);
         }
 
+        /**
+         * Removes the apks of this repo, and any apps which have none left. The apps which
+         * are still available from other repos have their details recalculated, because
+         * their suggested version (and so on) may have come from one of the apks removed.
+         */
         public static void purgeApps(Context context, Repo repo, FDroidApp app) {
+            final String[] projection = { ApkProvider.DataColumns.APK_ID };
+            Set<String> appIds = new HashSet<>();
+            for (final Apk apk : ApkProvider.Helper.findByRepo(context, repo, projection)) {
+                appIds.add(apk.id);
+            }
+
             Uri apkUri = ApkProvider.getRepoUri(repo.getId());
             ContentResolver resolver = context.getContentResolver();
             int apkCount = resolver.delete(apkUri, null, null);
@@ -191,6 +204,8 @@ public class RepoProvider extends FDroidProvider {
             Uri appUri = AppProvider.getNoApksUri();
             int appCount = resolver.delete(appUri, null, null);
             Log.d(TAG, "Removed " + appCount + " apps with no apks.");
+
+            AppProvider.Helper.calcDetailsFromIndex(context, appIds);
         }
 
         public static int countAppsForRepo(Context context, long repoId) {
@@ -224,10 +239,12 @@ public class RepoProvider extends FDroidProvider {
         String LAST_UPDATED = "lastUpdated";
         String VERSION      = "version";
         String IS_SWAP      = "isSwap";
+        String TIMESTAMP    = "timestamp";
 
         String[] ALL = {
             _ID, ADDRESS, NAME, DESCRIPTION, IN_USE, PRIORITY, PUBLIC_KEY,
-            FINGERPRINT, MAX_AGE, LAST_UPDATED, LAST_ETAG, VERSION, IS_SWAP
+            FINGERPRINT, MAX_AGE, LAST_UPDATED, LAST_ETAG, VERSION, IS_SWAP,
+            TIMESTAMP
         };
     }
 
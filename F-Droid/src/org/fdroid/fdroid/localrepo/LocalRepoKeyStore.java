@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.Socket;
 import java.security.GeneralSecurityException;
@@ -45,7 +46,7 @@ import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.X509KeyManager;
 
-import kellinwood.security.zipsigner.ZipSigner;
+import kellinwood.security.zipsigner.KeySet;
 
 // TODO Address exception handling in a uniform way throughout
 
@@ -194,22 +195,17 @@ public class LocalRepoKeyStore {
         return keyManagers;
     }
 
-    public void signZip(File input, File output) {
-        try {
-            ZipSigner zipSigner = new ZipSigner();
-
-            X509Certificate cert = (X509Certificate) keyStore.getCertificate(INDEX_CERT_ALIAS);
-
-            KeyPair kp = getKerplappKeypair();
-            PrivateKey priv = kp.getPrivate();
-
-            zipSigner.setKeys("kerplapp", cert, priv, DEFAULT_SIG_ALG, null);
-            zipSigner.signZip(input.getAbsolutePath(), output.getAbsolutePath());
-
-        } catch (ClassNotFoundException | IllegalAccessException | InstantiationException | GeneralSecurityException | IOException e) {
-            Log.e(TAG, "Unable to sign local repo index: " + e);
-            Log.e(TAG, Log.getStackTraceString(e));
+    /**
+     * @param output Where the jar is written to, which is closed once the jar is finished.
+     * @return A writer for a jar signed with the same key as the local repo index.
+     */
+    public SignedJarWriter createSignedJarWriter(OutputStream output) throws GeneralSecurityException, IOException {
+        X509Certificate cert = (X509Certificate) keyStore.getCertificate(INDEX_CERT_ALIAS);
+        KeyPair kp = getKerplappKeypair();
+        if (cert == null || kp == null) {
+            throw new KeyStoreException("No key to sign the local repo index with");
         }
+        return new SignedJarWriter(output, new KeySet("kerplapp", cert, kp.getPrivate(), DEFAULT_SIG_ALG, null));
     }
 
     private KeyPair getKerplappKeypair() throws KeyStoreException, UnrecoverableKeyException,
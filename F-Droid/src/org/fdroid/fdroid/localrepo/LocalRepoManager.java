@@ -17,43 +17,46 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
-import android.widget.Toast;
 
 import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.Hasher;
 import org.fdroid.fdroid.Preferences;
-import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.InstalledApkCache;
 import org.fdroid.fdroid.data.SanitizedFile;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 import org.xmlpull.v1.XmlSerializer;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.security.GeneralSecurityException;
 import java.security.cert.CertificateEncodingException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.jar.JarEntry;
-import java.util.jar.JarOutputStream;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class LocalRepoManager {
     private static final String TAG = "LocalRepoManager";
@@ -65,6 +68,7 @@ public class LocalRepoManager {
     private final PackageManager pm;
     private final AssetManager assetManager;
     private final String fdroidPackageName;
+    private final InstalledApkCache apkCache;
 
     private static final String[] WEB_ROOT_ASSET_FILES = {
         "swap-icon.png",
@@ -74,9 +78,7 @@ public class LocalRepoManager {
 
     private final Map<String, App> apps = new HashMap<>();
 
-    public final SanitizedFile xmlIndex;
     private SanitizedFile xmlIndexJar = null;
-    private SanitizedFile xmlIndexJarUnsigned = null;
     public final SanitizedFile webRoot;
     public final SanitizedFile fdroidDir;
     public final SanitizedFile fdroidDirCaps;
@@ -99,6 +101,7 @@ public class LocalRepoManager {
         pm = c.getPackageManager();
         assetManager = c.getAssets();
         fdroidPackageName = c.getPackageName();
+        apkCache = new InstalledApkCache(context);
 
         webRoot = SanitizedFile.knownSanitized(c.getFilesDir());
         /* /fdroid/repo is the standard path for user repos */
@@ -107,9 +110,7 @@ public class LocalRepoManager {
         repoDir = new SanitizedFile(fdroidDir, "repo");
         repoDirCaps = new SanitizedFile(fdroidDirCaps, "REPO");
         iconsDir = new SanitizedFile(repoDir, "icons");
-        xmlIndex = new SanitizedFile(repoDir, "index.xml");
         xmlIndexJar = new SanitizedFile(repoDir, "index.jar");
-        xmlIndexJarUnsigned = new SanitizedFile(repoDir, "index.unsigned.jar");
 
         if (!fdroidDir.exists())
             if (!fdroidDir.mkdir())
@@ -227,18 +228,26 @@ public class LocalRepoManager {
 
     public void deleteRepo() {
         deleteContents(repoDir);
+        synchronized (apps) {
+            apps.clear();
+        }
     }
 
     public void copyApksToRepo() {
-        copyApksToRepo(new ArrayList<>(apps.keySet()));
+        copyApksToRepo(getApps());
     }
 
     public void copyApksToRepo(List<String> appsToCopy) {
         for (final String packageName : appsToCopy) {
-            final App app = apps.get(packageName);
+            final App app;
+            synchronized (apps) {
+                app = apps.get(packageName);
+            }
 
             if (app.installedApk != null) {
                 SanitizedFile outFile = new SanitizedFile(repoDir, app.installedApk.apkName);
+                // A reinstalled apk can have moved, leaving the old link dangling.
+                outFile.delete();
                 if (Utils.symlinkOrCopyFile(app.installedApk.installedFile, outFile))
                     continue;
             }
@@ -247,10 +256,114 @@ public class LocalRepoManager {
         }
     }
 
+    /**
+     * Makes the repo contain exactly {@code packageNames}, only adding the apps which aren't in
+     * it yet or have been upgraded or reinstalled since they were added, rather than starting
+     * again from an empty repo. The files of apps which are no longer in the repo are left until
+     * {@link #deleteUnusedFiles()}, so that the repo can still be used with the current index
+     * until the new one is written.
+     * @return The apps which were added, and so need {@link #copyApksToRepo(List)}.
+     */
+    public List<String> updateApps(Context context, Set<String> packageNames) {
+        List<String> toAdd = new ArrayList<>();
+        synchronized (apps) {
+            apps.keySet().retainAll(packageNames);
+            for (String packageName : packageNames) {
+                App app = apps.get(packageName);
+                if (app == null || isOutOfDate(app)) {
+                    apps.remove(packageName);
+                    toAdd.add(packageName);
+                }
+            }
+        }
+        Log.i(TAG, "Adding " + toAdd.size() + " of the " + packageNames.size() + " apps to swap, the rest are already in the repo");
+
+        addApps(context, toAdd);
+
+        List<String> added = getApps();
+        added.retainAll(toAdd);
+        return added;
+    }
+
+    boolean isOutOfDate(App app) {
+        try {
+            PackageInfo info = pm.getPackageInfo(app.id, 0);
+            return info.versionCode != app.installedApk.vercode
+                    || info.lastUpdateTime != app.lastUpdated.getTime();
+        } catch (PackageManager.NameNotFoundException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Deletes the apks and icons of apps which are no longer in the repo. Should be done
+     * after writing the index, which no longer refers to them.
+     */
+    public void deleteUnusedFiles() {
+        Set<String> fileNames = new HashSet<>();
+        synchronized (apps) {
+            for (App app : apps.values()) {
+                fileNames.add(app.installedApk.apkName);
+                fileNames.add(app.icon);
+            }
+        }
+
+        File[] apks = repoDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String filename) {
+                return filename.endsWith(".apk");
+            }
+        });
+        File[] icons = iconsDir.listFiles();
+        for (File[] files : new File[][] {apks, icons}) {
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (!fileNames.contains(file.getName())) {
+                    Log.i(TAG, "Deleting " + file.getName() + ", which is no longer in the repo");
+                    attemptToDelete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds each of the apps, on as many threads as there are cores. Most of the time is spent
+     * hashing apks which haven't been hashed before (see {@link InstalledApkCache}), which
+     * can be done in parallel. What was learnt about them is saved once they are all done.
+     */
+    public void addApps(final Context context, Collection<String> packageNames) {
+        long startTime = System.currentTimeMillis();
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), packageNames.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>(packageNames.size());
+            for (final String packageName : packageNames) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        addApp(context, packageName);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "Error adding apps to local repo: " + e.getMessage());
+        } finally {
+            executor.shutdownNow();
+            apkCache.save();
+        }
+        Log.d(TAG, "Took " + (System.currentTimeMillis() - startTime) + "ms to add "
+                + packageNames.size() + " apps on " + threads + " threads");
+    }
+
     public void addApp(Context context, String packageName) {
         App app;
         try {
-            app = new App(context.getApplicationContext(), pm, packageName);
+            app = new App(context.getApplicationContext(), pm, packageName, apkCache);
             if (!app.isValid())
                 return;
             PackageInfo packageInfo = pm.getPackageInfo(packageName, PackageManager.GET_META_DATA);
@@ -261,17 +374,29 @@ public class LocalRepoManager {
             return;
         }
         Log.i(TAG, "apps.put: " + packageName);
-        apps.put(packageName, app);
+        synchronized (apps) {
+            apps.put(packageName, app);
+        }
     }
 
     public List<String> getApps() {
-        return new ArrayList<>(apps.keySet());
+        synchronized (apps) {
+            return new ArrayList<>(apps.keySet());
+        }
     }
 
+    /**
+     * Only renders the icons which aren't in the repo already. The file name includes the
+     * version code, so an app's icon is rendered again when it is upgraded.
+     */
     public void copyIconsToRepo() {
+        List<App> appsToCopy;
+        synchronized (apps) {
+            appsToCopy = new ArrayList<>(apps.values());
+        }
         ApplicationInfo appInfo;
-        for (final App app : apps.values()) {
-            if (app.installedApk != null) {
+        for (final App app : appsToCopy) {
+            if (app.installedApk != null && !getIconFile(app.id, app.installedApk.vercode).exists()) {
                 try {
                     appInfo = pm.getApplicationInfo(app.id, PackageManager.GET_META_DATA);
                     copyIconToRepo(appInfo.loadIcon(pm), app.id, app.installedApk.vercode);
@@ -474,42 +599,64 @@ public class LocalRepoManager {
         }
     }
 
+    /**
+     * Signs the index while it is being written, straight into the jar, rather than
+     * writing index.xml, copying it into an unsigned jar, and then reading that back to
+     * sign it into a third file.
+     *
+     * This is run in the background, so telling the user that it failed is left to the caller.
+     * @throws IOException If the index could not be written or signed, in which case the
+     * previous index (if any) is left in place.
+     */
     public void writeIndexJar() throws IOException {
-        try {
-            new IndexXmlBuilder(context, apps).build(new FileWriter(xmlIndex));
-        } catch (Exception e) {
-            Log.e(TAG, Log.getStackTraceString(e));
-            Toast.makeText(context, R.string.failed_to_create_index, Toast.LENGTH_LONG).show();
-            return;
-        }
-
-        BufferedOutputStream bo = new BufferedOutputStream(new FileOutputStream(xmlIndexJarUnsigned));
-        JarOutputStream jo = new JarOutputStream(bo);
-
-        BufferedInputStream bi = new BufferedInputStream(new FileInputStream(xmlIndex));
-
-        JarEntry je = new JarEntry("index.xml");
-        jo.putNextEntry(je);
-
-        byte[] buf = new byte[1024];
-        int bytesRead;
-
-        while ((bytesRead = bi.read(buf)) != -1) {
-            jo.write(buf, 0, bytesRead);
+        // Left behind by versions which wrote the index before signing it, and which
+        // peers would otherwise still be served.
+        for (String stale : new String[] {"index.xml", "index.unsigned.jar"}) {
+            File staleFile = new File(repoDir, stale);
+            if (staleFile.exists()) {
+                attemptToDelete(staleFile);
+            }
         }
 
-        bi.close();
-        jo.close();
-        bo.close();
-
+        // Peers may be fetching the index while it is written, so it is written beside the
+        // old one, and then moved into its place.
+        SanitizedFile xmlIndexJarTemp = new SanitizedFile(repoDir, xmlIndexJar.getName() + ".tmp");
+        OutputStream output = null;
         try {
-            LocalRepoKeyStore.get(context).signZip(xmlIndexJarUnsigned, xmlIndexJar);
-        } catch (LocalRepoKeyStore.InitException e) {
-            throw new IOException("Could not sign index - keystore failed to initialize");
+            Map<String, App> appsToIndex;
+            synchronized (apps) {
+                appsToIndex = new HashMap<>(apps);
+            }
+            output = new BufferedOutputStream(new FileOutputStream(xmlIndexJarTemp));
+            SignedJarWriter jar = LocalRepoKeyStore.get(context).createSignedJarWriter(output);
+            Writer writer = new OutputStreamWriter(jar.putNextEntry("index.xml"), "UTF-8");
+            new IndexXmlBuilder(context, appsToIndex).build(writer);
+            writer.close();
+            jar.finish();
+            moveIntoPlace(xmlIndexJarTemp, xmlIndexJar);
+        } catch (LocalRepoKeyStore.InitException | GeneralSecurityException e) {
+            IOException ioException = new IOException("Could not sign index - keystore failed to initialize");
+            ioException.initCause(e);
+            throw ioException;
+        } catch (XmlPullParserException e) {
+            IOException ioException = new IOException("Could not write index");
+            ioException.initCause(e);
+            throw ioException;
         } finally {
-            attemptToDelete(xmlIndexJarUnsigned);
+            // The jar is only closed by finish(), so after any failure the file is still
+            // open underneath it. Closing it again after finish() does no harm.
+            Utils.closeQuietly(output);
+            if (xmlIndexJarTemp.exists()) {
+                attemptToDelete(xmlIndexJarTemp);
+            }
         }
+    }
 
+    private static void moveIntoPlace(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            from.delete();
+            throw new IOException("Could not move " + from + " to " + to);
+        }
     }
 
 }
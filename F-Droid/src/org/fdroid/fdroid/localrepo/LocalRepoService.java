@@ -50,6 +50,9 @@ public class LocalRepoService extends Service {
 
     private Handler webServerThreadHandler = null;
     private LocalHTTPD localHttpd;
+
+    // The server of whichever service is running, so that the swap screens can show how busy it is.
+    private static volatile LocalHTTPD runningHttpd;
     private JmDNS jmdns;
     private ServiceInfo pairService;
 
@@ -57,6 +60,14 @@ public class LocalRepoService extends Service {
     public static final int STOP = 12345678;
     public static final int RESTART = 87654;
 
+    /**
+     * @return How busy the local repo web server is, or null if it is not running.
+     */
+    public static LocalHTTPD.Stats getWebServerStats() {
+        LocalHTTPD httpd = runningHttpd;
+        return httpd == null ? null : httpd.getStats();
+    }
+
     final Messenger messenger = new Messenger(new StartStopHandler(this));
 
     /**
@@ -218,10 +229,14 @@ public class LocalRepoService extends Service {
                     public void handleMessage(Message msg) {
                         Log.i(TAG, "we've been asked to stop the webserver: " + msg.obj);
                         localHttpd.stop();
+                        if (runningHttpd == localHttpd) {
+                            runningHttpd = null;
+                        }
                     }
                 };
                 try {
                     localHttpd.start();
+                    runningHttpd = localHttpd;
                 } catch (BindException e) {
                     int prev = FDroidApp.port;
                     FDroidApp.port = FDroidApp.port + new Random().nextInt(1111);
@@ -0,0 +1,161 @@
+package org.fdroid.fdroid.localrepo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import kellinwood.security.zipsigner.Base64;
+import kellinwood.security.zipsigner.KeySet;
+import kellinwood.security.zipsigner.optional.SignatureBlockGenerator;
+
+/**
+ * Writes a signed jar in a single pass, by digesting each entry while it is being
+ * written, rather than writing an unsigned jar and then having
+ * {@link kellinwood.security.zipsigner.ZipSigner} read it back to digest it and copy
+ * it into a third file. The manifest, signature file and signature block are the same
+ * as the ones {@link kellinwood.security.zipsigner.ZipSigner} produces, but they come
+ * after the entries they sign instead of before them. That is fine for
+ * {@link JarFile}, which is what {@link org.fdroid.fdroid.RepoUpdater} verifies the
+ * index with, but not for {@link java.util.jar.JarInputStream}.
+ *
+ * Entry names go into the manifest as they are, so they must be short enough not to
+ * need wrapping (i.e. less than 66 bytes).
+ */
+public class SignedJarWriter {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String CREATED_BY = "Created-By: 1.0 (Android SignApk)\r\n";
+    private static final String CERT_SF_NAME = "META-INF/CERT.SF";
+    private static final String CERT_RSA_NAME = "META-INF/CERT.RSA";
+
+    private final JarOutputStream jar;
+    private final KeySet keySet;
+
+    // Base64 SHA1 digest of each entry, in the order they were written.
+    private final Map<String, String> digests = new LinkedHashMap<>();
+
+    private String currentEntry;
+    private MessageDigest currentDigest;
+
+    SignedJarWriter(OutputStream output, KeySet keySet) throws IOException {
+        this.jar = new JarOutputStream(output);
+        this.keySet = keySet;
+    }
+
+    /**
+     * Starts a new entry, and returns the stream to write its contents to. Closing
+     * the returned stream only finishes the entry, not the whole jar.
+     */
+    public OutputStream putNextEntry(String name) throws IOException {
+        closeEntry();
+        jar.putNextEntry(new JarEntry(name));
+        currentEntry = name;
+        currentDigest = sha1();
+        return new DigestOutputStream(new EntryOutputStream(jar), currentDigest);
+    }
+
+    /**
+     * Writes the manifest, signature file and signature block for the entries
+     * written so far, and closes the jar, along with the stream it was written to.
+     */
+    public void finish() throws IOException {
+        closeEntry();
+
+        byte[] manifest = generateManifest();
+        putEntry(JarFile.MANIFEST_NAME, manifest);
+
+        byte[] signatureFile = generateSignatureFile(manifest);
+        putEntry(CERT_SF_NAME, signatureFile);
+
+        // Throws a RuntimeException if the block can't be generated, the same as ZipSigner.
+        putEntry(CERT_RSA_NAME, SignatureBlockGenerator.generate(keySet, signatureFile));
+
+        jar.close();
+    }
+
+    private void closeEntry() throws IOException {
+        if (currentEntry != null) {
+            jar.closeEntry();
+            digests.put(currentEntry, Base64.encode(currentDigest.digest()));
+            currentEntry = null;
+            currentDigest = null;
+        }
+    }
+
+    private void putEntry(String name, byte[] contents) throws IOException {
+        jar.putNextEntry(new JarEntry(name));
+        jar.write(contents);
+        jar.closeEntry();
+    }
+
+    private byte[] generateManifest() {
+        StringBuilder manifest = new StringBuilder("Manifest-Version: 1.0\r\n")
+                .append(CREATED_BY)
+                .append("\r\n");
+        for (Map.Entry<String, String> entry : digests.entrySet()) {
+            manifest.append(getManifestSection(entry.getKey(), entry.getValue()));
+        }
+        return manifest.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Each section of the signature file has the digest of the matching section of the
+     * manifest, and the header has the digest of the manifest as a whole.
+     */
+    private byte[] generateSignatureFile(byte[] manifest) throws IOException {
+        MessageDigest md = sha1();
+        ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+        signatureFile.write(("Signature-Version: 1.0\r\n" + CREATED_BY
+                + "SHA1-Digest-Manifest: " + Base64.encode(md.digest(manifest)) + "\r\n\r\n").getBytes(UTF_8));
+        for (Map.Entry<String, String> entry : digests.entrySet()) {
+            byte[] section = getManifestSection(entry.getKey(), entry.getValue()).getBytes(UTF_8);
+            signatureFile.write(("Name: " + entry.getKey() + "\r\n"
+                    + "SHA1-Digest: " + Base64.encode(md.digest(section)) + "\r\n\r\n").getBytes(UTF_8));
+        }
+        return signatureFile.toByteArray();
+    }
+
+    private static String getManifestSection(String name, String digest) {
+        return "Name: " + name + "\r\nSHA1-Digest: " + digest + "\r\n\r\n";
+    }
+
+    private static MessageDigest sha1() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA1 is not available to sign the jar: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Passes writes straight through to the jar, in blocks rather than the byte at a
+     * time of {@link FilterOutputStream}, and leaves the jar open when it is closed.
+     */
+    private static class EntryOutputStream extends FilterOutputStream {
+
+        EntryOutputStream(OutputStream jar) {
+            super(jar);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package org.fdroid.fdroid.net;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.fdroid.fdroid.ProgressListener;
+import org.fdroid.fdroid.data.Apk;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads any number of apks in the background, a few at a time, and keeps track of how
+ * far through all of them it is. Apks which the user is waiting on (e.g. after touching
+ * install on the app details screen) jump ahead of those being downloaded in bulk (e.g. when
+ * updating all apps). Only {@link ApkDownloadQueue#MAX_DOWNLOADS_PER_HOST} are downloaded
+ * from the same server at once, so that one slow repo can't take up every download, and so
+ * that small servers (such as another phone we are swapping with) aren't overwhelmed.
+ *
+ * Each download is an {@link ApkDownloader}, so events about a single apk are received by
+ * setting its progress listener as usual. {@link Listener}s added here hear about the queue
+ * as a whole. Both are always called on the main thread.
+ */
+public class ApkDownloadQueue {
+
+    private static final String TAG = "ApkDownloadQueue";
+
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_BACKGROUND  = 1;
+
+    public static final int MAX_DOWNLOADS = 3;
+    public static final int MAX_DOWNLOADS_PER_HOST = 2;
+
+    public interface Listener {
+
+        /**
+         * @param totalBytes The size of every apk which has been queued since the queue was
+         *                   last empty, according to the index.
+         */
+        void onQueueProgress(long bytesDownloaded, long totalBytes, int finishedCount, int totalCount);
+
+        /**
+         * Called once there is nothing left to download.
+         * @param completed Every apk which was downloaded and verified since the queue
+         *                  was last empty, ready to be installed.
+         */
+        void onQueueFinished(List<ApkDownloader> completed);
+    }
+
+    private static ApkDownloadQueue instance;
+
+    public static synchronized ApkDownloadQueue get(Context context) {
+        if (instance == null) {
+            instance = new ApkDownloadQueue(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private static class Job implements Comparable<Job> {
+
+        final ApkDownloader downloader;
+        final String host;
+        final long sequence;
+        int priority;
+        int bytesDownloaded = 0;
+        Future<?> future = null;
+
+        Job(ApkDownloader downloader, String host, int priority, long sequence) {
+            this.downloader = downloader;
+            this.host = host;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        long getSize() {
+            return downloader.getApk().size;
+        }
+
+        /**
+         * Higher priority first, then in the order they were queued.
+         */
+        @Override
+        public int compareTo(@NonNull Job other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final Context context;
+    private final ExecutorService workers = Executors.newFixedThreadPool(MAX_DOWNLOADS);
+    private final Handler mainThread = new Handler(Looper.getMainLooper());
+
+    // Only touched on the main thread.
+    private final List<Listener> listeners = new ArrayList<>();
+
+    // Everything below is guarded by "this".
+    private final PriorityQueue<Job> pending = new PriorityQueue<>();
+    private final Map<ApkDownloader, Job> jobs = new HashMap<>();
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+    private final List<ApkDownloader> completed = new ArrayList<>();
+    private int runningCount = 0;
+    private int finishedCount = 0;
+    private long finishedBytes = 0;
+    private long sequence = 0;
+
+    private ApkDownloadQueue(Context context) {
+        this.context = context;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Adds an apk to the queue, or if it is already there, returns the existing download
+     * (moving it up the queue if it is now wanted with a higher priority).
+     */
+    public synchronized ApkDownloader enqueue(Apk apk, String repoAddress, int priority) {
+        for (final Job job : jobs.values()) {
+            final Apk queuedApk = job.downloader.getApk();
+            if (queuedApk.id.equals(apk.id) && queuedApk.vercode == apk.vercode) {
+                if (priority < job.priority && pending.remove(job)) {
+                    job.priority = priority;
+                    pending.add(job);
+                }
+                return job.downloader;
+            }
+        }
+
+        ApkDownloader downloader = new ApkDownloader(context, apk, repoAddress);
+        downloader.setQueue(this);
+        Job job = new Job(downloader, getHost(repoAddress), priority, sequence++);
+        jobs.put(downloader, job);
+        pending.add(job);
+        schedule();
+        notifyProgress();
+        return downloader;
+    }
+
+    /**
+     * Called by {@link ApkDownloader#cancel()}. If it is still waiting its turn, then it is
+     * removed from the queue (and its listener told it was cancelled, as it would be if it
+     * had started), otherwise the thread downloading it is interrupted.
+     */
+    synchronized void cancel(ApkDownloader downloader) {
+        Job job = jobs.get(downloader);
+        if (job == null) {
+            return;
+        }
+
+        if (pending.remove(job)) {
+            Log.d(TAG, "Removing " + downloader.getApk().apkName + " from the queue");
+            finish(job);
+            downloader.onCancelledWhilePending();
+        } else if (job.future != null) {
+            Log.d(TAG, "Interrupting download of " + downloader.getApk().apkName);
+            job.future.cancel(true);
+        }
+    }
+
+    /**
+     * Called on the thread doing the download, for every event sent by each downloader.
+     */
+    void onProgress(ApkDownloader downloader, ProgressListener.Event event) {
+        if (!Downloader.EVENT_PROGRESS.equals(event.type)) {
+            return;
+        }
+
+        synchronized (this) {
+            Job job = jobs.get(downloader);
+            if (job != null) {
+                job.bytesDownloaded = event.progress;
+            }
+        }
+        notifyProgress();
+    }
+
+    private static String getHost(String repoAddress) {
+        String host = Uri.parse(repoAddress).getHost();
+        return host == null ? "" : host;
+    }
+
+    private int getRunningCount(String host) {
+        Integer count = runningPerHost.get(host);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Starts as many of the highest priority jobs as we are allowed to. Jobs whose host
+     * already has as many downloads as it can have are skipped over until one finishes.
+     */
+    private void schedule() {
+        List<Job> waitingForHost = new ArrayList<>();
+        while (runningCount < MAX_DOWNLOADS && !pending.isEmpty()) {
+            final Job job = pending.poll();
+            if (getRunningCount(job.host) >= MAX_DOWNLOADS_PER_HOST) {
+                waitingForHost.add(job);
+                continue;
+            }
+
+            runningCount++;
+            runningPerHost.put(job.host, getRunningCount(job.host) + 1);
+            job.future = workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        job.downloader.downloadOnThisThread();
+                    } finally {
+                        onJobFinished(job);
+                    }
+                }
+            });
+        }
+        pending.addAll(waitingForHost);
+    }
+
+    private synchronized void onJobFinished(Job job) {
+        runningCount--;
+        runningPerHost.put(job.host, getRunningCount(job.host) - 1);
+        finish(job);
+        schedule();
+    }
+
+    /**
+     * Must hold the lock on "this".
+     */
+    private void finish(Job job) {
+        jobs.remove(job.downloader);
+        finishedCount++;
+        finishedBytes += job.getSize();
+        if (job.downloader.isComplete()) {
+            completed.add(job.downloader);
+        }
+        notifyProgress();
+
+        if (jobs.isEmpty()) {
+            final List<ApkDownloader> finished = new ArrayList<>(completed);
+            Log.d(TAG, "Queue is empty, downloaded " + finished.size() + " of " + finishedCount + " apks");
+            HttpConnections.logStats();
+            completed.clear();
+            finishedCount = 0;
+            finishedBytes = 0;
+            mainThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Listeners often remove themselves once the queue is finished.
+                    for (final Listener listener : new ArrayList<>(listeners)) {
+                        listener.onQueueFinished(finished);
+                    }
+                }
+            });
+        }
+    }
+
+    private synchronized void notifyProgress() {
+        // Apks which have finished (successfully or not) are no longer in the list of jobs,
+        // but still count towards the total.
+        long downloaded = finishedBytes;
+        long total = finishedBytes;
+        for (final Job job : jobs.values()) {
+            downloaded += job.bytesDownloaded;
+            total += job.getSize();
+        }
+
+        final long bytesDownloaded = downloaded;
+        final long totalBytes = total;
+        final int finished = finishedCount;
+        final int totalCount = finishedCount + jobs.size();
+        mainThread.post(new Runnable() {
+            @Override
+            public void run() {
+                for (final Listener listener : new ArrayList<>(listeners)) {
+                    listener.onQueueProgress(bytesDownloaded, totalBytes, finished, totalCount);
+                }
+            }
+        });
+    }
+
+}
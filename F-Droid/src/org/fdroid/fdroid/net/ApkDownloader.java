@@ -22,6 +22,8 @@ package org.fdroid.fdroid.net;
 
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
@@ -36,6 +38,9 @@ import org.fdroid.fdroid.data.SanitizedFile;
 import java.io.File;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Downloads and verifies (against the Apk.hash) the apk file.
@@ -57,6 +62,16 @@ public class ApkDownloader implements AsyncDownloadWrapper.Listener {
     private static final String EVENT_SOURCE_ID = "sourceId";
     private static long downloadIdCounter = 0;
 
+    /**
+     * Apks which were partially downloaded before being cancelled or failing, mapped to
+     * what the server told us to use to make sure that the rest of the file we ask for
+     * later is from the same file. Only kept in memory, because partial downloads are
+     * cleared out along with the rest of the download dir when F-Droid starts.
+     * @see Downloader#getResumeValidator()
+     */
+    private static final Map<String, String> resumableDownloads =
+            Collections.synchronizedMap(new HashMap<String, String>());
+
     /**
      * Used as a key to pass data through with an error event, explaining the type of event.
      */
@@ -68,10 +83,13 @@ public class ApkDownloader implements AsyncDownloadWrapper.Listener {
     @NonNull private final SanitizedFile potentiallyCachedFile;
 
     private ProgressListener listener;
+    private Downloader downloader = null;
     private AsyncDownloadWrapper dlWrapper = null;
-    private int progress  = 0;
-    private int totalSize = 0;
-    private boolean isComplete = false;
+    private ApkDownloadQueue queue = null;
+    private Handler mainThread = null;
+    private volatile int progress  = 0;
+    private volatile int totalSize = 0;
+    private volatile boolean isComplete = false;
 
     private final long id = ++downloadIdCounter;
 
@@ -179,19 +197,12 @@ public class ApkDownloader implements AsyncDownloadWrapper.Listener {
      */
     public boolean download() {
 
-        // Can we use the cached version?
-        if (verifyOrDelete(potentiallyCachedFile)) {
-            delete(localFile);
-            Utils.copy(potentiallyCachedFile, localFile);
-            prepareApkFileAndSendCompleteMessage();
+        if (useCachedApk()) {
             return false;
         }
 
-        String remoteAddress = getRemoteAddress();
-        Log.d(TAG, "Downloading apk from " + remoteAddress + " to " + localFile);
-
         try {
-            Downloader downloader = DownloaderFactory.create(remoteAddress, localFile);
+            downloader = createDownloader();
             dlWrapper = new AsyncDownloadWrapper(downloader, this);
             dlWrapper.download();
             return true;
@@ -203,6 +214,84 @@ public class ApkDownloader implements AsyncDownloadWrapper.Listener {
         return false;
     }
 
+    /**
+     * Like {@link ApkDownloader#download()}, but downloads on the calling thread rather than
+     * starting one of its own, for callers which are already in the background, such as
+     * {@link ApkDownloadQueue}. Events are still sent to the progress listener on the main
+     * thread. Interrupting the calling thread cancels the download.
+     */
+    void downloadOnThisThread() {
+        mainThread = new Handler(Looper.getMainLooper());
+
+        if (useCachedApk()) {
+            return;
+        }
+
+        try {
+            downloader = createDownloader();
+            downloader.setProgressListener(this);
+            downloader.download();
+            onDownloadComplete();
+        } catch (IOException e) {
+            onErrorDownloading(e.getLocalizedMessage());
+        } catch (InterruptedException e) {
+            onDownloadCancelled();
+        }
+    }
+
+    /**
+     * Called by {@link ApkDownloadQueue} when this is cancelled before it got to start. Nothing
+     * was downloaded, so anything kept from an earlier attempt is left for resuming.
+     */
+    void onCancelledWhilePending() {
+        mainThread = new Handler(Looper.getMainLooper());
+        sendMessage(EVENT_APK_DOWNLOAD_CANCELLED);
+    }
+
+    /**
+     * Sets whoever is running {@link ApkDownloader#downloadOnThisThread()}, so that they
+     * can be told when {@link ApkDownloader#cancel()} is called.
+     */
+    void setQueue(ApkDownloadQueue queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * Can we use the cached version? If so, it is used straight away and the
+     * complete message is sent.
+     */
+    private boolean useCachedApk() {
+        if (verifyOrDelete(potentiallyCachedFile)) {
+            delete(localFile);
+            Utils.linkOrCopyFile(potentiallyCachedFile, localFile);
+            prepareApkFileAndSendCompleteMessage();
+            return true;
+        }
+        return false;
+    }
+
+    private Downloader createDownloader() throws IOException {
+        String remoteAddress = getRemoteAddress();
+        Log.d(TAG, "Downloading apk from " + remoteAddress + " to " + localFile);
+
+        // Unless it is what is left of an earlier attempt, the local file may be a link to
+        // an apk in the cache, which writing the download to would overwrite.
+        final String resumeValidator = resumableDownloads.remove(localFile.getAbsolutePath());
+        if (resumeValidator == null) {
+            delete(localFile);
+        }
+
+        Downloader downloader = DownloaderFactory.create(remoteAddress, localFile);
+        downloader.setResumeValidator(resumeValidator);
+        try {
+            downloader.setHashType(curApk.hashType);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "Will verify " + localFile + " once it is downloaded, because I don't understand " +
+                    "what the " + curApk.hashType + " hash algorithm is");
+        }
+        return downloader;
+    }
+
     private void sendMessage(String type) {
         sendProgressEvent(new ProgressListener.Event(type));
     }
@@ -225,6 +314,26 @@ public class ApkDownloader implements AsyncDownloadWrapper.Listener {
 
         event.getData().putLong(EVENT_SOURCE_ID, id);
 
+        if (queue != null) {
+            queue.onProgress(this, event);
+        }
+
+        if (mainThread == null) {
+            notifyListener(event);
+        } else {
+            // The downloader reuses its progress events, so this one may have changed by the
+            // time the main thread gets to it.
+            final Event mainThreadEvent = new Event(event.type, event.progress, event.total, event.data);
+            mainThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    notifyListener(mainThreadEvent);
+                }
+            });
+        }
+    }
+
+    private void notifyListener(Event event) {
         if (listener != null) {
             listener.onProgress(event);
         }
@@ -246,20 +355,53 @@ public class ApkDownloader implements AsyncDownloadWrapper.Listener {
     public void onErrorDownloading(String localisedExceptionDetails) {
         Log.e(TAG, "Download failed: " + localisedExceptionDetails);
         sendError(ERROR_DOWNLOAD_FAILED);
-        delete(localFile);
+        keepForResumingOrDelete();
+    }
+
+    /**
+     * If the server told us enough to be able to carry on with this download later,
+     * then keep what we have so far, otherwise there is no point.
+     */
+    private void keepForResumingOrDelete() {
+        String resumeValidator = downloader != null ? downloader.getResumeValidator() : null;
+        if (resumeValidator != null && localFile.exists()) {
+            Log.d(TAG, "Keeping " + localFile.length() + " bytes of " + localFile + " to resume later");
+            resumableDownloads.put(localFile.getAbsolutePath(), resumeValidator);
+        } else {
+            delete(localFile);
+        }
     }
 
     private void cacheIfRequired() {
         if (Preferences.get().shouldCacheApks()) {
-            Log.i(TAG, "Copying .apk file to cache at " + potentiallyCachedFile.getAbsolutePath());
-            Utils.copy(localFile, potentiallyCachedFile);
+            Log.i(TAG, "Linking or copying .apk file to cache at " + potentiallyCachedFile.getAbsolutePath());
+            delete(potentiallyCachedFile);
+            Utils.linkOrCopyFile(localFile, potentiallyCachedFile);
+        }
+    }
+
+    /**
+     * The downloader hashes the apk as it arrives, so it only needs to be read again
+     * here if that wasn't possible.
+     */
+    private boolean verifyDownloadOrDelete() {
+        String hash = downloader != null ? downloader.getHash() : null;
+        if (hash == null) {
+            return verifyOrDelete(localFile);
         }
+
+        if (hash.equalsIgnoreCase(curApk.hash)) {
+            return true;
+        }
+        Log.d(TAG, "Downloaded apk at " + localFile + " doesn't match the expected hash, will delete file");
+        delete(localFile);
+        return false;
     }
 
     @Override
     public void onDownloadComplete() {
 
-        if (!verifyOrDelete(localFile)) {
+        if (!verifyDownloadOrDelete()) {
             sendError(ERROR_HASH_MISMATCH);
             return;
         }
@@ -272,6 +414,7 @@ public class ApkDownloader implements AsyncDownloadWrapper.Listener {
 
     @Override
     public void onDownloadCancelled() {
+        keepForResumingOrDelete();
         sendMessage(EVENT_APK_DOWNLOAD_CANCELLED);
     }
 
@@ -288,6 +431,9 @@ public class ApkDownloader implements AsyncDownloadWrapper.Listener {
         if (dlWrapper != null) {
             dlWrapper.attemptCancel();
         }
+        if (queue != null) {
+            queue.cancel(this);
+        }
     }
 
     public Apk getApk() { return curApk; }
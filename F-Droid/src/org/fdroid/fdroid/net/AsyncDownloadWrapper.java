@@ -25,7 +25,6 @@ public class AsyncDownloadWrapper extends Handler {
     private static final int MSG_DOWNLOAD_COMPLETE  = 2;
     private static final int MSG_DOWNLOAD_CANCELLED = 3;
     private static final int MSG_ERROR              = 4;
-    private static final String MSG_DATA            = "data";
 
     private final Downloader downloader;
     private final Listener listener;
@@ -86,11 +85,9 @@ public class AsyncDownloadWrapper extends Handler {
      * @param message
      */
     public void handleMessage(Message message) {
-        switch (message.arg1) {
+        switch (message.what) {
         case MSG_PROGRESS:
-            Bundle data = message.getData();
-            ProgressListener.Event event = data.getParcelable(MSG_DATA);
-            listener.onProgress(event);
+            listener.onProgress(downloadThread.takeLatestProgress());
             break;
         case MSG_DOWNLOAD_COMPLETE:
             listener.onDownloadComplete();
@@ -99,7 +96,7 @@ public class AsyncDownloadWrapper extends Handler {
             listener.onDownloadCancelled();
             break;
         case MSG_ERROR:
-            listener.onErrorDownloading(message.getData().getString(MSG_DATA));
+            listener.onErrorDownloading((String) message.obj);
             break;
         }
     }
@@ -114,6 +111,15 @@ public class AsyncDownloadWrapper extends Handler {
 
     private class DownloadThread extends Thread implements ProgressListener {
 
+        /**
+         * The most recent progress, which hasn't been passed on to the listener yet.
+         * Guarded by "this".
+         */
+        private int latestProgress;
+        private int latestTotal;
+        private String latestType;
+        private Bundle latestData;
+
         public void run() {
             try {
                 downloader.setProgressListener(this);
@@ -123,29 +129,38 @@ public class AsyncDownloadWrapper extends Handler {
                 sendMessage(MSG_DOWNLOAD_CANCELLED);
             } catch (IOException e) {
                 Log.e(TAG, e.getMessage() + ": " + Log.getStackTraceString(e));
-                Bundle data = new Bundle(1);
-                data.putString(MSG_DATA, e.getLocalizedMessage());
-                Message message = new Message();
-                message.arg1 = MSG_ERROR;
-                message.setData(data);
-                AsyncDownloadWrapper.this.sendMessage(message);
+                obtainMessage(MSG_ERROR, e.getLocalizedMessage()).sendToTarget();
             }
         }
 
         private void sendMessage(int messageType) {
-            Message message = new Message();
-            message.arg1 = messageType;
-            AsyncDownloadWrapper.this.sendMessage(message);
+            sendEmptyMessage(messageType);
         }
 
+        /**
+         * The downloader reuses the same event each time, so only its values are kept.
+         * If the UI thread hasn't got around to the last progress message yet, then this
+         * just updates what it will see when it does, rather than queueing up another one.
+         */
         @Override
         public void onProgress(Event event) {
-            Message message = new Message();
-            Bundle  data    = new Bundle();
-            data.putParcelable(MSG_DATA, event);
-            message.setData(data);
-            message.arg1 = MSG_PROGRESS;
-            AsyncDownloadWrapper.this.sendMessage(message);
+            boolean alreadyQueued;
+            synchronized (this) {
+                alreadyQueued = latestType != null;
+                latestProgress = event.progress;
+                latestTotal = event.total;
+                latestType = event.type;
+                latestData = event.data;
+            }
+            if (!alreadyQueued) {
+                sendEmptyMessage(MSG_PROGRESS);
+            }
+        }
+
+        synchronized Event takeLatestProgress() {
+            Event event = new Event(latestType, latestProgress, latestTotal, latestData);
+            latestType = null;
+            return event;
         }
     }
 
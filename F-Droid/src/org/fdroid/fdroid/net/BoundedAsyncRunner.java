@@ -0,0 +1,178 @@
+package org.fdroid.fdroid.net;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Handles the connections to a {@link NanoHTTPD} server on a fixed number of threads,
+ * rather than the new thread per connection of {@link NanoHTTPD.DefaultAsyncRunner}.
+ * Connections which arrive while every thread is busy wait in a queue of limited size,
+ * and once that is full as well, they are turned away with "503 Service Unavailable"
+ * so that the client can try again shortly, instead of this device running out of memory
+ * when a whole room of people swap with it at once.
+ *
+ * NanoHTTPD doesn't tell an {@link NanoHTTPD.AsyncRunner} which socket it is being asked to
+ * handle, so the server needs to pass each one to {@link #onConnectionAccepted(Socket)}
+ * from {@link NanoHTTPD#registerConnection(Socket)}, which is called just before
+ * {@link #exec(Runnable)} on the same thread.
+ *
+ * A thread is taken for as long as its connection is kept alive, which includes the
+ * {@link NanoHTTPD#SOCKET_READ_TIMEOUT} it may sit idle for. So the server should ask
+ * clients to close their connections while {@link #getQueuedConnections()} is above zero.
+ */
+public class BoundedAsyncRunner implements NanoHTTPD.AsyncRunner {
+
+    private static final String TAG = "BoundedAsyncRunner";
+
+    public static final int DEFAULT_MAX_THREADS = 8;
+    public static final int DEFAULT_MAX_QUEUED = 16;
+
+    /**
+     * How long the client which was turned away should wait before trying again.
+     */
+    private static final int RETRY_AFTER_SECONDS = 5;
+
+    private static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable \r\n"
+            + "Content-Type: text/plain\r\n"
+            + "Content-Length: 0\r\n"
+            + "Retry-After: " + RETRY_AFTER_SECONDS + "\r\n"
+            + "Connection: close\r\n"
+            + "\r\n").getBytes(Charset.forName("US-ASCII"));
+
+    private final NanoHTTPD server;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicLong handledConnections = new AtomicLong();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+
+    // Only used by the server's listener thread, between registerConnection() and exec().
+    private Socket acceptedSocket;
+
+    public BoundedAsyncRunner(NanoHTTPD server) {
+        this(server, DEFAULT_MAX_THREADS, DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * @param maxThreads How many connections are handled at the same time.
+     * @param maxQueued How many more connections can wait for one of those to finish
+     *                  before they are turned away.
+     */
+    public BoundedAsyncRunner(NanoHTTPD server, int maxThreads, int maxQueued) {
+        this.server = server;
+        this.executor = new ThreadPoolExecutor(maxThreads, maxThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueued), new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "NanoHttpd Request Processor (#" + threadCount.incrementAndGet() + ")");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    void onConnectionAccepted(Socket socket) {
+        acceptedSocket = socket;
+    }
+
+    @Override
+    public void exec(final Runnable code) {
+        Socket socket = acceptedSocket;
+        acceptedSocket = null;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    activeConnections.incrementAndGet();
+                    try {
+                        code.run();
+                    } finally {
+                        activeConnections.decrementAndGet();
+                        handledConnections.incrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejectedConnections.incrementAndGet();
+            reject(socket);
+        }
+    }
+
+    /**
+     * This is on the listener thread, but the socket already has the server's read
+     * timeout, so a client which doesn't take its 503 can only hold up the accepting
+     * of new connections for so long.
+     */
+    private void reject(Socket socket) {
+        if (socket == null) {
+            Log.e(TAG, "Too many connections, and don't know which one to turn away");
+            return;
+        }
+        Log.w(TAG, "Too many connections, turning away " + socket.getInetAddress());
+        try {
+            OutputStream output = socket.getOutputStream();
+            output.write(SERVICE_UNAVAILABLE);
+            output.flush();
+        } catch (IOException e) {
+            Log.i(TAG, "Could not tell " + socket.getInetAddress() + " to try again later: " + e.getMessage());
+        } finally {
+            // Socket is only Closeable since android-19
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            server.unRegisterConnection(socket);
+        }
+    }
+
+    /**
+     * Stops the threads once the connections they are handling are closed, which
+     * {@link NanoHTTPD#stop()} takes care of.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @return How many connections are being handled right now.
+     */
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /**
+     * @return How many connections are waiting for a free thread.
+     */
+    public int getQueuedConnections() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return How many connections have been handled and closed since this started.
+     */
+    public long getHandledConnections() {
+        return handledConnections.get();
+    }
+
+    /**
+     * @return How many connections have been turned away since this started.
+     */
+    public long getRejectedConnections() {
+        return rejectedConnections.get();
+    }
+}
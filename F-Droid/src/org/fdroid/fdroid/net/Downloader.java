@@ -2,13 +2,17 @@ package org.fdroid.fdroid.net;
 
 import android.content.Context;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
+import org.fdroid.fdroid.Hasher;
 import org.fdroid.fdroid.ProgressListener;
 import org.fdroid.fdroid.Utils;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -16,6 +20,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public abstract class Downloader {
 
@@ -26,11 +32,36 @@ public abstract class Downloader {
     private Bundle eventData = null;
     private final File outputFile;
 
+    @Nullable private MessageDigest digest = null;
+    @Nullable private String hash = null;
+
     protected URL sourceUrl;
     protected String cacheTag = null;
+    protected String resumeValidator = null;
+
+    /**
+     * How much of the output file was kept from an earlier, interrupted download, so that
+     * only the rest of it is being downloaded now.
+     */
+    private long resumedBytes = 0;
 
     public static final String EVENT_PROGRESS = "downloadProgress";
 
+    /**
+     * Progress is sent at most this often, and only when the percentage downloaded has
+     * changed, so that fast downloads don't flood the UI thread with events. The first
+     * and last progress of each download are always sent.
+     */
+    public static final long PROGRESS_INTERVAL_MS = 50;
+
+    /**
+     * The same event is sent every time, with its progress updated, so listeners which
+     * hang on to it (e.g. to pass it to another thread) must copy it first.
+     */
+    private ProgressListener.Event progressEvent = null;
+    private long lastProgressTime = 0;
+    private int lastProgressPercent = -1;
+
     public abstract InputStream getInputStream() throws IOException;
 
     // The context is required for opening the file to write to.
@@ -44,10 +75,13 @@ public abstract class Downloader {
         this(File.createTempFile("dl-", "", ctx.getCacheDir()));
     }
 
+    /**
+     * The file isn't opened until the download starts, because only then do we know
+     * whether to append to what is already there or to start again.
+     */
     Downloader(File destFile)
             throws FileNotFoundException, MalformedURLException {
         outputFile = destFile;
-        outputStream = new FileOutputStream(outputFile);
     }
 
     Downloader(OutputStream output)
@@ -86,6 +120,68 @@ public abstract class Downloader {
         return cacheTag != null;
     }
 
+    /**
+     * After a download which didn't finish, this is what to pass to
+     * {@link Downloader#setResumeValidator(String)} so that the next attempt can carry on
+     * from where it left off. Null if the server didn't give us any way to tell whether the
+     * file will be the same next time, in which case the partial download should be deleted.
+     */
+    public String getResumeValidator() {
+        return resumeValidator;
+    }
+
+    /**
+     * If the output file already contains the start of the download, from an attempt which
+     * didn't finish, this lets the rest of it be downloaded instead of starting again. If the
+     * file has changed on the server since then, it will be downloaded from scratch.
+     * @see Downloader#getResumeValidator()
+     */
+    public void setResumeValidator(String resumeValidator) {
+        this.resumeValidator = resumeValidator;
+    }
+
+    protected boolean wantToResume() {
+        return resumeValidator != null && outputFile != null && outputFile.length() > 0;
+    }
+
+    /**
+     * Subclasses call this once the server has agreed to send only the part of the file
+     * after the first {@code bytes}, which are already in the output file.
+     */
+    protected void setResumedBytes(long bytes) {
+        resumedBytes = bytes;
+    }
+
+    protected long getResumedBytes() {
+        return resumedBytes;
+    }
+
+    /**
+     * Calculates the hash of the download as it is written, so that it doesn't need to be
+     * read back in again afterwards to verify it. Must be called before download().
+     * @see Downloader#getHash()
+     */
+    public void setHashType(String hashType) throws NoSuchAlgorithmException {
+        try {
+            digest = MessageDigest.getInstance(hashType);
+        } catch (Exception e) {
+            throw new NoSuchAlgorithmException(e);
+        }
+        hash = null;
+    }
+
+    /**
+     * The hash (as lowercase hexadecimal) of everything which was downloaded, or null if
+     * {@link Downloader#setHashType(String)} wasn't called. Only valid after download().
+     */
+    @Nullable
+    public String getHash() {
+        if (hash == null && digest != null) {
+            hash = Hasher.hex(digest.digest());
+        }
+        return hash;
+    }
+
     /**
      * Only available if you passed a context object into the constructor
      * (rather than an outputStream, which may or  may not be associated with
@@ -127,6 +223,7 @@ public abstract class Downloader {
             // we were interrupted before proceeding to the download.
             throwExceptionIfInterrupted();
 
+            openOutputStream();
             copyInputToOutputStream(getInputStream());
         } finally {
             Utils.closeQuietly(outputStream);
@@ -138,6 +235,41 @@ public abstract class Downloader {
         throwExceptionIfInterrupted();
     }
 
+    private void openOutputStream() throws IOException {
+        if (outputStream != null) {
+            return;
+        }
+
+        if (resumedBytes > 0) {
+            Log.d(TAG, "Resuming download after " + resumedBytes + " bytes");
+            if (digest != null) {
+                digestExistingBytes();
+            }
+        }
+        outputStream = new FileOutputStream(outputFile, resumedBytes > 0);
+    }
+
+    /**
+     * The hash has to cover the part of the file which was downloaded last time too.
+     */
+    private void digestExistingBytes() throws IOException {
+        InputStream existing = new FileInputStream(outputFile);
+        try {
+            byte[] buffer = new byte[Utils.BUFFER_SIZE];
+            long remaining = resumedBytes;
+            while (remaining > 0) {
+                int count = existing.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count == -1) {
+                    throw new IOException("Partially downloaded file " + outputFile + " is shorter than expected");
+                }
+                digest.update(buffer, 0, count);
+                remaining -= count;
+            }
+        } finally {
+            Utils.closeQuietly(existing);
+        }
+    }
+
     /**
      * In a synchronous download (the usual usage of the Downloader interface),
      * you will not be able to interrupt this because the thread will block
@@ -160,14 +292,17 @@ public abstract class Downloader {
     protected void copyInputToOutputStream(InputStream input) throws IOException, InterruptedException {
 
         byte[] buffer = new byte[Utils.BUFFER_SIZE];
-        int bytesRead = 0;
+        int bytesRead = (int) resumedBytes;
         int totalBytes = totalDownloadSize();
 
         // Getting the total download size could potentially take time, depending on how
         // it is implemented, so we may as well check this before we proceed.
         throwExceptionIfInterrupted();
 
-        sendProgress(bytesRead, totalBytes);
+        progressEvent = new ProgressListener.Event(EVENT_PROGRESS, bytesRead, totalBytes, eventData);
+        lastProgressTime = 0;
+        lastProgressPercent = -1;
+        sendProgress(bytesRead, true);
         while (true) {
 
             int count = input.read(buffer);
@@ -178,14 +313,42 @@ public abstract class Downloader {
                 break;
             }
             bytesRead += count;
-            sendProgress(bytesRead, totalBytes);
             outputStream.write(buffer, 0, count);
+            if (digest != null) {
+                digest.update(buffer, 0, count);
+            }
+            sendProgress(bytesRead, false);
         }
         outputStream.flush();
+        sendProgress(bytesRead, true);
     }
 
-    protected void sendProgress(int bytesRead, int totalBytes) {
-        sendProgress(new ProgressListener.Event(EVENT_PROGRESS, bytesRead, totalBytes, eventData));
+    /**
+     * @param force Send it even if it is too soon since the last one. Nothing is sent if
+     *              this is the same progress as last time.
+     */
+    private void sendProgress(int bytesRead, boolean force) {
+        if (progressListener == null) {
+            return;
+        }
+
+        boolean isFirst = lastProgressTime == 0;
+        if (!isFirst && bytesRead == progressEvent.progress) {
+            return;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        int percent = progressEvent.total > 0 ? (int) (100L * bytesRead / progressEvent.total) : -1;
+        boolean tooSoon = now - lastProgressTime < PROGRESS_INTERVAL_MS;
+        boolean samePercent = percent != -1 && percent == lastProgressPercent;
+        if (!force && (tooSoon || samePercent)) {
+            return;
+        }
+
+        lastProgressTime = now;
+        lastProgressPercent = percent;
+        progressEvent.progress = bytesRead;
+        sendProgress(progressEvent);
     }
 
     protected void sendProgress(ProgressListener.Event event) {
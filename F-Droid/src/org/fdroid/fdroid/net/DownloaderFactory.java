@@ -4,6 +4,7 @@ import android.content.Context;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.Proxy;
 
 public class DownloaderFactory {
 
@@ -23,6 +24,18 @@ public class DownloaderFactory {
         return new HttpDownloader(url, destFile);
     }
 
+    /**
+     * The proxy which a downloader created by this factory would use for this url,
+     * for requests which are made without a {@link Downloader}, such as for icons.
+     * @return Null to connect directly.
+     */
+    public static Proxy getProxy(String url) {
+        if (isOnionAddress(url)) {
+            return HttpConnections.TOR_PROXY;
+        }
+        return HttpConnections.getUserProxy();
+    }
+
     private static boolean isOnionAddress(String url) {
         return url.matches("^[a-zA-Z0-9]+://[^/]+\\.onion/.*");
     }
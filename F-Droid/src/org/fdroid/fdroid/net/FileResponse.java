@@ -0,0 +1,137 @@
+package org.fdroid.fdroid.net;
+
+import android.util.Log;
+
+import org.fdroid.fdroid.Utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * A response whose body is (part of) a file, for serving apks and the index to swap peers.
+ *
+ * The responses built into NanoHTTPD read their body from an {@link InputStream} into a
+ * 16 KiB buffer on the heap, and take the Content-Length from {@link InputStream#available()},
+ * which is an int. This instead hands the file to {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+ * which can use sendfile(2) when the socket has a channel, and otherwise writes straight out of
+ * a memory mapping of the file rather than reading it first. Offsets and lengths are longs, so
+ * files of any size can be served, and ranges of them.
+ */
+class FileResponse extends NanoHTTPD.Response {
+
+    private static final String TAG = "FileResponse";
+
+    /**
+     * How much of the file to map into memory at a time when sendfile can't be used.
+     */
+    private static final long MAX_TRANSFER_SIZE = 8 * 1024 * 1024;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final File file;
+    private final long offset;
+    private final long length;
+    private final AtomicLong bytesServed;
+
+    // The map in the superclass is private, and this class writes the headers itself.
+    private final Map<String, String> headers = new LinkedHashMap<>();
+
+    /**
+     * @param bytesServed Added to as the body of the response is sent.
+     */
+    FileResponse(IStatus status, String mimeType, File file, long offset, long length, AtomicLong bytesServed) {
+        super(status, mimeType, (InputStream) null);
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        this.bytesServed = bytesServed;
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        headers.put(name, value);
+    }
+
+    @Override
+    protected void send(OutputStream outputStream) {
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            outputStream.write(getHeaderBytes());
+            if (getRequestMethod() != NanoHTTPD.Method.HEAD) {
+                transfer(input.getChannel(), Channels.newChannel(outputStream));
+            }
+            outputStream.flush();
+            if (isClosingConnection()) {
+                // NanoHTTPD would otherwise keep the thread waiting for the client to hang up.
+                Utils.closeQuietly(outputStream);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error sending " + file + ": " + e.getMessage());
+            // The client has already been told how long the response is, so the only way
+            // left to tell it that something went wrong is to hang up.
+            Utils.closeQuietly(outputStream);
+        } finally {
+            Utils.closeQuietly(input);
+        }
+    }
+
+    private void transfer(FileChannel source, WritableByteChannel target) throws IOException {
+        long position = offset;
+        long remaining = length;
+        while (remaining > 0) {
+            long sent = source.transferTo(position, Math.min(remaining, MAX_TRANSFER_SIZE), target);
+            if (sent <= 0) {
+                throw new IOException(file + " is shorter than the " + (offset + length) + " bytes expected");
+            }
+            position += sent;
+            remaining -= sent;
+            bytesServed.addAndGet(sent);
+        }
+    }
+
+    private boolean isClosingConnection() {
+        return "close".equalsIgnoreCase(headers.get("Connection"));
+    }
+
+    private byte[] getHeaderBytes() {
+        SimpleDateFormat gmtFormat = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        gmtFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        StringBuilder builder = new StringBuilder(256);
+        builder.append("HTTP/1.1 ").append(getStatus().getDescription()).append(" \r\n");
+        if (getMimeType() != null) {
+            builder.append("Content-Type: ").append(getMimeType()).append("\r\n");
+        }
+        if (!headers.containsKey("Date")) {
+            builder.append("Date: ").append(gmtFormat.format(new Date())).append("\r\n");
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            builder.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (!headers.containsKey("Connection")) {
+            builder.append("Connection: keep-alive\r\n");
+        }
+        builder.append("Content-Length: ").append(length).append("\r\n");
+        builder.append("\r\n");
+
+        // Header values are all ASCII, i.e. file names, dates and numbers.
+        return builder.toString().getBytes(ASCII);
+    }
+}
@@ -0,0 +1,274 @@
+package org.fdroid.fdroid.net;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.Utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Every HTTP request made to a repo, whether for its index, its icons or its apks, is
+ * opened here, so that they are all set up the same way.
+ *
+ * {@link HttpURLConnection} already keeps a pool of idle keep-alive connections for each
+ * host, and reuses them for later requests to the same host. That only works if each
+ * response is read all the way to the end and its stream closed, rather than
+ * {@link HttpURLConnection#disconnect()}ing, so use {@link HttpConnections#release(HttpURLConnection)}
+ * for responses which aren't going to be read. The pool is shared by everything in the
+ * process, so it is only effective when all of the requests are configured the same way
+ * (e.g. with the same proxy and SSL socket factory), which is what this class is for.
+ *
+ * Also keeps count of how many requests are made to each host, and how many new
+ * connections had to be made for them, see {@link HttpConnections#getStats()}.
+ * New connections can only be counted for HTTPS, because for plain HTTP there is
+ * no way to find out whether a pooled connection was used.
+ */
+public final class HttpConnections {
+
+    private static final String TAG = "HttpConnections";
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 30 * 1000;
+
+    /**
+     * The number of idle connections kept open to each host. The icon loader alone
+     * makes four requests at once, and apks are downloaded two at a time per host.
+     * Set as the "http.maxConnections" system property in {@link org.fdroid.fdroid.FDroidApp#onCreate()}.
+     */
+    public static final int MAX_IDLE_CONNECTIONS_PER_HOST = 6;
+
+    public static final Proxy TOR_PROXY = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", 8118));
+
+    private static int connectTimeout = DEFAULT_CONNECT_TIMEOUT_MS;
+    private static int readTimeout = DEFAULT_READ_TIMEOUT_MS;
+
+    private static final Map<String, HostStats> STATS = new HashMap<>();
+    private static SSLSocketFactory sslSocketFactory;
+
+    private HttpConnections() { }
+
+    public static class HostStats {
+        public int requests;
+        public int secureRequests;
+        public int newSecureConnections;
+
+        /**
+         * The proportion of HTTPS requests which didn't need a new connection, or -1 if
+         * there haven't been any.
+         */
+        public float getReuseRate() {
+            if (secureRequests == 0) {
+                return -1;
+            }
+            return (float) (secureRequests - newSecureConnections) / secureRequests;
+        }
+
+        @Override
+        public String toString() {
+            float reuseRate = getReuseRate();
+            return requests + " requests" + (reuseRate < 0 ? "" :
+                    ", reused " + (secureRequests - newSecureConnections) + " of " + secureRequests
+                            + " HTTPS connections (" + Math.round(reuseRate * 100) + "%)");
+        }
+    }
+
+    /**
+     * Applies to connections opened after this is called.
+     */
+    public static synchronized void setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+        connectTimeout = connectTimeoutMs;
+        readTimeout = readTimeoutMs;
+    }
+
+    /**
+     * The HTTP proxy which the user has asked us to use, or null if they haven't.
+     */
+    @Nullable
+    public static Proxy getUserProxy() {
+        Preferences prefs = Preferences.get();
+        if (!prefs.isProxyEnabled()) {
+            return null;
+        }
+        SocketAddress address = new InetSocketAddress(prefs.getProxyHost(), prefs.getProxyPort());
+        return new Proxy(Proxy.Type.HTTP, address);
+    }
+
+    public static HttpURLConnection open(URL url, @Nullable Proxy proxy) throws IOException {
+        int connect;
+        int read;
+        synchronized (HttpConnections.class) {
+            connect = connectTimeout;
+            read = readTimeout;
+        }
+        return open(url, proxy, connect, read);
+    }
+
+    public static HttpURLConnection open(URL url, @Nullable Proxy proxy, int connectTimeoutMs, int readTimeoutMs)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) (proxy == null
+                ? url.openConnection()
+                : url.openConnection(proxy));
+        connection.setConnectTimeout(connectTimeoutMs);
+        connection.setReadTimeout(readTimeoutMs);
+
+        boolean isSecure = connection instanceof HttpsURLConnection;
+        if (isSecure) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(getSSLSocketFactory());
+        }
+
+        synchronized (STATS) {
+            HostStats stats = getStats(url.getHost());
+            stats.requests++;
+            if (isSecure) {
+                stats.secureRequests++;
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Finishes with a connection without reading its response, in a way which lets it go
+     * back into the pool to be used again, rather than being closed.
+     */
+    public static void release(HttpURLConnection connection) {
+        InputStream input = null;
+        try {
+            input = connection.getResponseCode() >= 400
+                    ? connection.getErrorStream()
+                    : connection.getInputStream();
+            if (input != null) {
+                byte[] buffer = new byte[Utils.BUFFER_SIZE];
+                while (input.read(buffer) != -1) {
+                    // Only reading to the end of the response, so that it can be reused.
+                }
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Couldn't read the rest of the response from " + connection.getURL() + ", closing it instead");
+            connection.disconnect();
+        } finally {
+            Utils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * A copy of the number of requests and connections made to each host.
+     */
+    public static Map<String, HostStats> getStats() {
+        Map<String, HostStats> copy = new HashMap<>();
+        synchronized (STATS) {
+            for (Map.Entry<String, HostStats> entry : STATS.entrySet()) {
+                HostStats stats = new HostStats();
+                stats.requests = entry.getValue().requests;
+                stats.secureRequests = entry.getValue().secureRequests;
+                stats.newSecureConnections = entry.getValue().newSecureConnections;
+                copy.put(entry.getKey(), stats);
+            }
+        }
+        return copy;
+    }
+
+    public static void logStats() {
+        for (Map.Entry<String, HostStats> entry : getStats().entrySet()) {
+            Log.d(TAG, entry.getKey() + ": " + entry.getValue());
+        }
+    }
+
+    /**
+     * Must hold the lock on STATS.
+     */
+    private static HostStats getStats(String host) {
+        HostStats stats = STATS.get(host);
+        if (stats == null) {
+            stats = new HostStats();
+            STATS.put(host, stats);
+        }
+        return stats;
+    }
+
+    private static void onNewSecureConnection(String host) {
+        synchronized (STATS) {
+            getStats(host).newSecureConnections++;
+        }
+    }
+
+    /**
+     * The same instance has to be used for every connection, because connections made
+     * with a different SSL socket factory can't be shared.
+     */
+    private static synchronized SSLSocketFactory getSSLSocketFactory() {
+        if (sslSocketFactory == null) {
+            sslSocketFactory = new CountingSSLSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+        }
+        return sslSocketFactory;
+    }
+
+    /**
+     * Counts each new connection, and otherwise does exactly what the default one does.
+     * Connections taken from the pool don't go through the socket factory at all.
+     */
+    private static class CountingSSLSocketFactory extends SSLSocketFactory {
+
+        private final SSLSocketFactory wrapped;
+
+        CountingSSLSocketFactory(SSLSocketFactory wrapped) {
+            this.wrapped = wrapped;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return wrapped.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return wrapped.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            onNewSecureConnection(host);
+            return wrapped.createSocket(socket, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            onNewSecureConnection(host);
+            return wrapped.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            onNewSecureConnection(host);
+            return wrapped.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            onNewSecureConnection(host.getHostName());
+            return wrapped.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            onNewSecureConnection(address.getHostName());
+            return wrapped.createSocket(address, port, localAddress, localPort);
+        }
+    }
+
+}
@@ -3,17 +3,13 @@ package org.fdroid.fdroid.net;
 import android.content.Context;
 import android.util.Log;
 
-import org.fdroid.fdroid.Preferences;
-
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Proxy;
-import java.net.SocketAddress;
 import java.net.URL;
 
 import javax.net.ssl.SSLHandshakeException;
@@ -23,6 +19,11 @@ public class HttpDownloader extends Downloader {
 
     protected static final String HEADER_IF_NONE_MATCH = "If-None-Match";
     protected static final String HEADER_FIELD_ETAG = "ETag";
+    protected static final String HEADER_FIELD_LAST_MODIFIED = "Last-Modified";
+    protected static final String HEADER_FIELD_CONTENT_RANGE = "Content-Range";
+    protected static final String HEADER_RANGE = "Range";
+    protected static final String HEADER_IF_RANGE = "If-Range";
+    protected static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
 
     protected HttpURLConnection connection;
     private int statusCode = -1;
@@ -75,32 +76,83 @@ public class HttpDownloader extends Downloader {
     protected void setupConnection() throws IOException {
         if (connection != null)
             return;
-        Preferences prefs = Preferences.get();
-        if (prefs.isProxyEnabled()) {
-            SocketAddress sa = new InetSocketAddress(prefs.getProxyHost(), prefs.getProxyPort());
-            Proxy proxy = new Proxy(Proxy.Type.HTTP, sa);
-            connection = (HttpURLConnection) sourceUrl.openConnection(proxy);
-        } else {
-            connection = (HttpURLConnection) sourceUrl.openConnection();
-        }
+        connection = HttpConnections.open(sourceUrl, getProxy());
+    }
+
+    /**
+     * @return Null to connect directly.
+     */
+    protected Proxy getProxy() {
+        return HttpConnections.getUserProxy();
     }
 
     protected void doDownload() throws IOException, InterruptedException {
+        if (getFile() != null) {
+            // Byte ranges have to refer to the file as it is stored, not after decompressing it.
+            connection.setRequestProperty(HEADER_ACCEPT_ENCODING, "identity");
+        }
+
         if (wantToCheckCache()) {
             setupCacheCheck();
             Log.i(TAG, "Checking cached status of " + sourceUrl);
             statusCode = connection.getResponseCode();
+        } else if (wantToResume()) {
+            requestRemainder();
         }
 
         if (isCached()) {
             Log.i(TAG, sourceUrl + " is cached, so not downloading (HTTP " + statusCode + ")");
+            HttpConnections.release(connection);
         } else {
             Log.i(TAG, "Downloading from " + sourceUrl);
+            // Before reading the body, so that it is known even if the download is interrupted.
+            updateResumeValidator();
             downloadFromStream();
             updateCacheCheck();
         }
     }
 
+    /**
+     * Asks for only the part of the file we don't have yet. Thanks to the If-Range header,
+     * if the file has changed since we downloaded the start of it, the server sends the
+     * whole thing (with a 200 rather than a 206), and the download starts again from scratch.
+     */
+    private void requestRemainder() throws IOException {
+        final long existingBytes = getFile().length();
+        connection.setRequestProperty(HEADER_RANGE, "bytes=" + existingBytes + "-");
+        connection.setRequestProperty(HEADER_IF_RANGE, resumeValidator);
+        statusCode = connection.getResponseCode();
+
+        if (statusCode == HttpURLConnection.HTTP_PARTIAL) {
+            String contentRange = connection.getHeaderField(HEADER_FIELD_CONTENT_RANGE);
+            if (contentRange == null || !contentRange.startsWith("bytes " + existingBytes + "-")) {
+                throw new IOException("Asked " + sourceUrl + " for bytes from " + existingBytes + ", but got " + contentRange);
+            }
+            Log.i(TAG, "Resuming download of " + sourceUrl + " from " + existingBytes + " bytes");
+            setResumedBytes(existingBytes);
+        } else if (statusCode == 416) { // HttpURLConnection has no constant for "Range Not Satisfiable"
+            // Most likely the file got smaller, so the part we have can't be from the same file.
+            Log.i(TAG, "Can't resume download of " + sourceUrl + ", starting again");
+            HttpConnections.release(connection);
+            connection = null;
+            setupConnection();
+            connection.setRequestProperty(HEADER_ACCEPT_ENCODING, "identity");
+        }
+    }
+
+    /**
+     * Weak ETags can't be used in an If-Range header, in which case we fall back to the
+     * last modified date.
+     */
+    private void updateResumeValidator() {
+        String etag = connection.getHeaderField(HEADER_FIELD_ETAG);
+        if (etag != null && !etag.startsWith("W/")) {
+            resumeValidator = etag;
+        } else {
+            resumeValidator = connection.getHeaderField(HEADER_FIELD_LAST_MODIFIED);
+        }
+    }
+
     @Override
     public boolean isCached() {
         return wantToCheckCache() && statusCode == 304;
@@ -126,7 +178,8 @@ public class HttpDownloader extends Downloader {
     // become more worth it.
     @Override
     public int totalDownloadSize() {
-        return connection.getContentLength();
+        int length = connection.getContentLength();
+        return length < 0 ? length : length + (int) getResumedBytes();
     }
 
     @Override
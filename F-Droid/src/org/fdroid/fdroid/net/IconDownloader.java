@@ -2,11 +2,28 @@ package org.fdroid.fdroid.net;
 
 import android.content.Context;
 
+import com.nostra13.universalimageloader.core.assist.ContentLengthInputStream;
 import com.nostra13.universalimageloader.core.download.BaseImageDownloader;
 
+import org.fdroid.fdroid.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
 
+/**
+ * Fetches icons through the same connections (and so the same proxy, or Tor for .onion
+ * repos) as everything else which is downloaded from a repo. Unlike a {@link Downloader},
+ * nothing is written to disk here, the image loader reads straight from the response
+ * and looks after caching it.
+ *
+ * Icons which were unpacked from an {@link org.fdroid.fdroid.IconBundle} are already on
+ * disk, so they are read from there rather than asking the repo for them again.
+ */
 public class IconDownloader extends BaseImageDownloader {
 
     public IconDownloader(Context context) {
@@ -22,10 +39,30 @@ public class IconDownloader extends BaseImageDownloader {
         switch (Scheme.ofUri(imageUri)) {
         case HTTP:
         case HTTPS:
-            Downloader downloader = DownloaderFactory.create(imageUri, context);
-            return downloader.getInputStream();
+            return getStreamFromRepo(imageUri);
         default:
             return super.getStream(imageUri, extra);
         }
     }
+
+    private InputStream getStreamFromRepo(String imageUri) throws IOException {
+        File cached = new File(Utils.getIconCacheDir(context), Utils.getIconCacheFileName(imageUri));
+        if (cached.exists()) {
+            InputStream input = new BufferedInputStream(new FileInputStream(cached), BUFFER_SIZE);
+            return new ContentLengthInputStream(input, (int) cached.length());
+        }
+
+        HttpURLConnection connection = HttpConnections.open(
+                new URL(imageUri), DownloaderFactory.getProxy(imageUri), connectTimeout, readTimeout);
+
+        int statusCode = connection.getResponseCode();
+        if (statusCode != HttpURLConnection.HTTP_OK) {
+            // Reading what's left lets the connection be used for the next icon.
+            HttpConnections.release(connection);
+            throw new IOException("Icon request for " + imageUri + " failed with response code " + statusCode);
+        }
+
+        InputStream input = new BufferedInputStream(connection.getInputStream(), BUFFER_SIZE);
+        return new ContentLengthInputStream(input, connection.getContentLength());
+    }
 }
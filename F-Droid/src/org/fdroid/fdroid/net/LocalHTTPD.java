@@ -11,11 +11,10 @@ import org.fdroid.fdroid.localrepo.LocalRepoKeyStore;
 import org.fdroid.fdroid.views.swap.ConnectSwapActivity;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.Socket;
 import java.net.URLEncoder;
 import java.util.Arrays;
 import java.util.Collections;
@@ -24,6 +23,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLServerSocketFactory;
 
@@ -35,16 +35,73 @@ public class LocalHTTPD extends NanoHTTPD {
     private final Context context;
     private final File webRoot;
     private final boolean logRequests;
+    private final BoundedAsyncRunner asyncRunner;
+    private final AtomicLong bytesServed = new AtomicLong();
 
     public LocalHTTPD(Context context, File webRoot, boolean useHttps) {
+        this(context, webRoot, useHttps, BoundedAsyncRunner.DEFAULT_MAX_THREADS, BoundedAsyncRunner.DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * @param maxConnections How many peers are served at the same time.
+     * @param maxQueuedConnections How many more peers wait for their turn before
+     *                             being told to come back later.
+     * @see BoundedAsyncRunner
+     */
+    public LocalHTTPD(Context context, File webRoot, boolean useHttps, int maxConnections, int maxQueuedConnections) {
         super(FDroidApp.ipAddressString, FDroidApp.port);
         this.logRequests = false;
         this.webRoot = webRoot;
         this.context = context.getApplicationContext();
+        this.asyncRunner = new BoundedAsyncRunner(this, maxConnections, maxQueuedConnections);
+        setAsyncRunner(asyncRunner);
         if (useHttps)
             enableHTTPS();
     }
 
+    /**
+     * A snapshot of how busy the server is, e.g. to show while swapping.
+     */
+    public static class Stats {
+        public final int activeConnections;
+        public final int queuedConnections;
+        public final long handledConnections;
+        public final long rejectedConnections;
+        public final long bytesServed;
+
+        Stats(BoundedAsyncRunner runner, long bytesServed) {
+            this.activeConnections = runner.getActiveConnections();
+            this.queuedConnections = runner.getQueuedConnections();
+            this.handledConnections = runner.getHandledConnections();
+            this.rejectedConnections = runner.getRejectedConnections();
+            this.bytesServed = bytesServed;
+        }
+
+        @Override
+        public String toString() {
+            return activeConnections + " active, " + queuedConnections + " queued, "
+                    + handledConnections + " handled and " + rejectedConnections + " rejected connections, "
+                    + bytesServed + " bytes served";
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(asyncRunner, bytesServed.get());
+    }
+
+    @Override
+    public synchronized void registerConnection(Socket socket) {
+        super.registerConnection(socket);
+        asyncRunner.onConnectionAccepted(socket);
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        asyncRunner.shutdown();
+        Log.i(TAG, "Stopped after " + getStats());
+    }
+
     /**
      * URL-encodes everything between "/"-characters. Encodes spaces as '%20'
      * instead of '+'.
@@ -84,8 +141,22 @@ public class LocalHTTPD extends NanoHTTPD {
         context.startActivity(intent);
     }
 
+    /**
+     * Keep-alive connections hold on to their thread until the client hangs up, or until
+     * they have been idle for {@link NanoHTTPD#SOCKET_READ_TIMEOUT}. So while other peers
+     * are waiting for a thread, the client is asked to hang up once it has its response,
+     * rather than leaving the queue to fill up until later peers are turned away.
+     */
     @Override
     public Response serve(IHTTPSession session) {
+        Response response = respond(session);
+        if (asyncRunner.getQueuedConnections() > 0) {
+            response.addHeader("Connection", "close");
+        }
+        return response;
+    }
+
+    private Response respond(IHTTPSession session) {
 
         if (session.getMethod() == Method.POST) {
             try {
@@ -252,7 +323,7 @@ public class LocalHTTPD extends NanoHTTPD {
                     res.addHeader("Content-Range", "bytes 0-0/" + fileLen);
                     res.addHeader("ETag", etag);
                 } else {
-                    if (endAt < 0) {
+                    if (endAt < 0 || endAt >= fileLen) {
                         endAt = fileLen - 1;
                     }
                     long newLen = endAt - startFrom + 1;
@@ -260,17 +331,7 @@ public class LocalHTTPD extends NanoHTTPD {
                         newLen = 0;
                     }
 
-                    final long dataLen = newLen;
-                    FileInputStream fis = new FileInputStream(file) {
-                        @Override
-                        public int available() throws IOException {
-                            return (int) dataLen;
-                        }
-                    };
-                    fis.skip(startFrom);
-
-                    res = createResponse(Response.Status.PARTIAL_CONTENT, mime, fis);
-                    res.addHeader("Content-Length", "" + dataLen);
+                    res = createFileResponse(Response.Status.PARTIAL_CONTENT, mime, file, startFrom, newLen);
                     res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/"
                             + fileLen);
                     res.addHeader("ETag", etag);
@@ -279,8 +340,7 @@ public class LocalHTTPD extends NanoHTTPD {
                 if (etag.equals(header.get("if-none-match")))
                     res = createResponse(Response.Status.NOT_MODIFIED, mime, "");
                 else {
-                    res = createResponse(Response.Status.OK, mime, new FileInputStream(file));
-                    res.addHeader("Content-Length", "" + fileLen);
+                    res = createFileResponse(Response.Status.OK, mime, file, 0, fileLen);
                     res.addHeader("ETag", etag);
                 }
             }
@@ -293,8 +353,8 @@ public class LocalHTTPD extends NanoHTTPD {
     }
 
     // Announce that the file server accepts partial content requests
-    private Response createResponse(Response.Status status, String mimeType, InputStream message) {
-        Response res = new Response(status, mimeType, message);
+    private Response createFileResponse(Response.Status status, String mimeType, File file, long offset, long length) {
+        Response res = new FileResponse(status, mimeType, file, offset, length, bytesServed);
         res.addHeader("Accept-Ranges", "bytes");
         return res;
     }
@@ -18,15 +18,9 @@
 
 package org.fdroid.fdroid.receiver;
 
-import android.content.ContentValues;
-import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageInfo;
-import android.net.Uri;
 import android.util.Log;
 
-import org.fdroid.fdroid.data.InstalledAppProvider;
-
 public class PackageAddedReceiver extends PackageReceiver {
 
     private static final String TAG = "PackageAddedReceiver";
@@ -40,20 +34,4 @@ public class PackageAddedReceiver extends PackageReceiver {
         return false;
     }
 
-    @Override
-    protected void handle(Context context, String appId) {
-        PackageInfo info = getPackageInfo(context, appId);
-
-        Log.d(TAG, "Inserting installed app info for '" + appId + "' (v" + info.versionCode + ")");
-
-        Uri uri = InstalledAppProvider.getContentUri();
-        ContentValues values = new ContentValues(4);
-        values.put(InstalledAppProvider.DataColumns.APP_ID, appId);
-        values.put(InstalledAppProvider.DataColumns.VERSION_CODE, info.versionCode);
-        values.put(InstalledAppProvider.DataColumns.VERSION_NAME, info.versionName);
-        values.put(InstalledAppProvider.DataColumns.APPLICATION_LABEL,
-                InstalledAppProvider.getApplicationLabel(context, appId));
-        context.getContentResolver().insert(uri, values);
-    }
-
 }
@@ -22,27 +22,19 @@ package org.fdroid.fdroid.receiver;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageInfo;
 import android.util.Log;
 
-import org.fdroid.fdroid.data.ApkProvider;
-import org.fdroid.fdroid.data.AppProvider;
+import org.fdroid.fdroid.data.InstalledAppCacheService;
 
+/**
+ * Package broadcasts are only passed on to the {@link InstalledAppCacheService}, which looks
+ * up what has happened to the package and updates the installed app cache to match.
+ */
 abstract class PackageReceiver extends BroadcastReceiver {
 
     private static final String TAG = "PackageReceiver";
 
     abstract protected boolean toDiscard(Intent intent);
-    abstract protected void handle(Context context, String appId);
-
-    protected PackageInfo getPackageInfo(Context context, String appId) {
-        for (PackageInfo info : context.getPackageManager().getInstalledPackages(0)) {
-            if (info.packageName.equals(appId)) {
-                return info;
-            }
-        }
-        return null;
-    }
 
     @Override
     public void onReceive(Context context, Intent intent) {
@@ -51,9 +43,7 @@ abstract class PackageReceiver extends BroadcastReceiver {
             return;
         }
         String appId = intent.getData().getSchemeSpecificPart();
-        handle(context, appId);
-        context.getContentResolver().notifyChange(AppProvider.getContentUri(appId), null);
-        context.getContentResolver().notifyChange(ApkProvider.getAppUri(appId), null);
+        InstalledAppCacheService.queue(context, appId);
     }
 
 }
@@ -18,13 +18,9 @@
 
 package org.fdroid.fdroid.receiver;
 
-import android.content.Context;
 import android.content.Intent;
-import android.net.Uri;
 import android.util.Log;
 
-import org.fdroid.fdroid.data.InstalledAppProvider;
-
 public class PackageRemovedReceiver extends PackageReceiver {
 
     private static final String TAG = "PackageRemovedReceiver";
@@ -38,13 +34,4 @@ public class PackageRemovedReceiver extends PackageReceiver {
         return false;
     }
 
-    @Override
-    protected void handle(Context context, String appId) {
-
-        Log.d(TAG, "Removing installed app info for '" + appId + "'");
-
-        Uri uri = InstalledAppProvider.getAppUri(appId);
-        context.getContentResolver().delete(uri, null, null);
-    }
-
 }
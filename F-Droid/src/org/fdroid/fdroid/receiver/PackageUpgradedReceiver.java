@@ -18,14 +18,7 @@
 
 package org.fdroid.fdroid.receiver;
 
-import android.content.ContentValues;
-import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageInfo;
-import android.net.Uri;
-import android.util.Log;
-
-import org.fdroid.fdroid.data.InstalledAppProvider;
 
 /**
  * For some reason, devices seem to be keen on sending a REMOVED and then an INSTALLED
@@ -35,27 +28,9 @@ import org.fdroid.fdroid.data.InstalledAppProvider;
  */
 public class PackageUpgradedReceiver extends PackageReceiver {
 
-    private static final String TAG = "PackageUpgradedReceiver";
-
     @Override
     protected boolean toDiscard(Intent intent) {
         return false;
     }
 
-    @Override
-    protected void handle(Context context, String appId) {
-        PackageInfo info = getPackageInfo(context, appId);
-
-        Log.d(TAG, "Updating installed app info for '" + appId + "' to v" + info.versionCode + " (" + info.versionName + ")");
-
-        Uri uri = InstalledAppProvider.getContentUri();
-        ContentValues values = new ContentValues(4);
-        values.put(InstalledAppProvider.DataColumns.APP_ID, appId);
-        values.put(InstalledAppProvider.DataColumns.VERSION_CODE, info.versionCode);
-        values.put(InstalledAppProvider.DataColumns.VERSION_NAME, info.versionName);
-        values.put(InstalledAppProvider.DataColumns.APPLICATION_LABEL,
-                InstalledAppProvider.getApplicationLabel(context, appId));
-        context.getContentResolver().insert(uri, values);
-    }
-
 }
@@ -1,8 +1,10 @@
 package org.fdroid.fdroid.views.fragments;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -16,12 +18,25 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import org.fdroid.fdroid.R;
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.ApkProvider;
+import org.fdroid.fdroid.data.App;
 import org.fdroid.fdroid.data.AppProvider;
+import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.installer.Installer;
+import org.fdroid.fdroid.net.ApkDownloadQueue;
+import org.fdroid.fdroid.net.ApkDownloader;
 import org.fdroid.fdroid.views.AppListAdapter;
 import org.fdroid.fdroid.views.CanUpdateAppListAdapter;
 
-public class CanUpdateAppsFragment extends AppListFragment {
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CanUpdateAppsFragment extends AppListFragment implements ApkDownloadQueue.Listener {
+
+    private static final String TAG = "CanUpdateAppsFragment";
 
     // copied from ListFragment
     static final int INTERNAL_EMPTY_ID = 0x00ff0001;
@@ -68,12 +83,96 @@ public class CanUpdateAppsFragment extends AppListFragment {
 
             @Override
             public void onClick(View v) {
-                // TODO
-
+                updateAll();
             }
         });
     }
 
+    @Override
+    public void onDestroy() {
+        final Context context = getActivity();
+        if (context != null) {
+            ApkDownloadQueue.get(context).removeListener(this);
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Queues the suggested version of every app which can be updated, behind anything
+     * the user has asked to install themselves, and installs them all once they are
+     * downloaded.
+     */
+    private void updateAll() {
+        final Context context = getActivity();
+        final String[] appProjection = {
+            AppProvider.DataColumns.APP_ID,
+            AppProvider.DataColumns.SUGGESTED_VERSION_CODE,
+        };
+        final String[] repoProjection = { RepoProvider.DataColumns.ADDRESS };
+
+        ApkDownloadQueue queue = ApkDownloadQueue.get(context);
+        Cursor cursor = context.getContentResolver().query(AppProvider.getCanUpdateUri(), appProjection, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+
+        int count = 0;
+        while (cursor.moveToNext()) {
+            App app = new App(cursor);
+            Apk apk = ApkProvider.Helper.find(context, app.id, app.suggestedVercode);
+            if (apk == null) {
+                continue;
+            }
+            Repo repo = RepoProvider.Helper.findById(context, apk.repo, repoProjection);
+            if (repo == null || repo.address == null) {
+                continue;
+            }
+            queue.enqueue(apk, repo.address, ApkDownloadQueue.PRIORITY_BACKGROUND);
+            count++;
+        }
+        cursor.close();
+
+        Log.d(TAG, "Queued " + count + " updates");
+
+        // The queue only finishes (and so re-enables the button) if something was queued. This
+        // is on the main thread, so it can't finish before we are listening.
+        if (count > 0) {
+            queue.addListener(this);
+            mUpdateAllButton.setEnabled(false);
+        }
+    }
+
+    @Override
+    public void onQueueProgress(long bytesDownloaded, long totalBytes, int finishedCount, int totalCount) {
+        // Nothing to show yet, other than the button being disabled until they are all done.
+    }
+
+    @Override
+    public void onQueueFinished(List<ApkDownloader> completed) {
+        // The queue may finish after this has been detached, in which case there is
+        // nothing to show the updates being installed from.
+        final Context context = getActivity();
+        if (context == null) {
+            return;
+        }
+        ApkDownloadQueue.get(context).removeListener(this);
+        mUpdateAllButton.setEnabled(true);
+
+        List<File> apkFiles = new ArrayList<>(completed.size());
+        for (final ApkDownloader downloader : completed) {
+            apkFiles.add(downloader.localFile());
+        }
+        if (apkFiles.size() == 0) {
+            return;
+        }
+
+        try {
+            mInstaller.installPackage(apkFiles);
+        } catch (Installer.AndroidNotCompatibleException e) {
+            Log.e(TAG, "Android not compatible with this Installer!", e);
+        }
+    }
+
     // TODO: not really called again after coming back from preference
     @Override
     public void onResume() {
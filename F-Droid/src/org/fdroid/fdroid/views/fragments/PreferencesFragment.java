@@ -31,6 +31,7 @@ public class PreferencesFragment extends PreferenceFragment
         Preferences.PREF_UPD_INTERVAL,
         Preferences.PREF_UPD_WIFI_ONLY,
         Preferences.PREF_UPD_NOTIFY,
+        Preferences.PREF_ICON_BUNDLES,
         Preferences.PREF_UPD_HISTORY,
         Preferences.PREF_ROOTED,
         Preferences.PREF_INCOMP_VER,
@@ -97,6 +98,10 @@ public class PreferencesFragment extends PreferenceFragment
             checkSummary(key, R.string.notify_on);
             break;
 
+        case Preferences.PREF_ICON_BUNDLES:
+            checkSummary(key, R.string.icon_bundles_on);
+            break;
+
         case Preferences.PREF_UPD_HISTORY:
             textSummary(key, R.string.update_history_summ);
             break;
@@ -20,6 +20,7 @@ import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.localrepo.LocalRepoManager;
 
+import java.util.List;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -229,6 +230,12 @@ public class SwapActivity extends ActionBarActivity implements SwapProcessManage
         @NonNull
         private final Uri sharingUri;
 
+        /**
+         * Set when the repo could not be updated, so that the user can be told about it
+         * once we are back on the UI thread.
+         */
+        private boolean failed = false;
+
         public UpdateAsyncTask(Context c, @NonNull Set<String> apps) {
             selectedApps = apps;
             progressDialog = new ProgressDialog(c);
@@ -246,17 +253,14 @@ public class SwapActivity extends ActionBarActivity implements SwapProcessManage
         protected Void doInBackground(Void... params) {
             try {
                 final LocalRepoManager lrm = LocalRepoManager.get(SwapActivity.this);
-                publishProgress(getString(R.string.deleting_repo));
-                lrm.deleteRepo();
-                for (String app : selectedApps) {
-                    publishProgress(String.format(getString(R.string.adding_apks_format), app));
-                    lrm.addApp(SwapActivity.this, app);
-                }
+                publishProgress(getResources().getQuantityString(R.plurals.adding_apps, selectedApps.size(), selectedApps.size()));
+                List<String> addedApps = lrm.updateApps(SwapActivity.this, selectedApps);
                 lrm.writeIndexPage(sharingUri.toString());
+                publishProgress(getString(R.string.linking_apks));
+                lrm.copyApksToRepo(addedApps);
                 publishProgress(getString(R.string.writing_index_jar));
                 lrm.writeIndexJar();
-                publishProgress(getString(R.string.linking_apks));
-                lrm.copyApksToRepo();
+                lrm.deleteUnusedFiles();
                 publishProgress(getString(R.string.copying_icons));
                 // run the icon copy without progress, its not a blocker
                 new AsyncTask<Void, Void, Void>() {
@@ -269,6 +273,7 @@ public class SwapActivity extends ActionBarActivity implements SwapProcessManage
                 }.execute();
             } catch (Exception e) {
                 e.printStackTrace();
+                failed = true;
             }
             return null;
         }
@@ -282,7 +287,11 @@ public class SwapActivity extends ActionBarActivity implements SwapProcessManage
         @Override
         protected void onPostExecute(Void result) {
             progressDialog.dismiss();
-            Toast.makeText(SwapActivity.this, R.string.updated_local_repo, Toast.LENGTH_SHORT).show();
+            if (failed) {
+                Toast.makeText(SwapActivity.this, R.string.failed_to_create_index, Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(SwapActivity.this, R.string.updated_local_repo, Toast.LENGTH_SHORT).show();
+            }
             onLocalRepoPrepared();
         }
     }
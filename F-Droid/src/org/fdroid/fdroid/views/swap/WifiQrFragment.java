@@ -8,9 +8,11 @@ import android.content.IntentFilter;
 import android.graphics.LightingColorFilter;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v4.app.Fragment;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -32,6 +34,8 @@ import org.fdroid.fdroid.QrGenAsyncTask;
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.NewRepoConfig;
+import org.fdroid.fdroid.localrepo.LocalRepoService;
+import org.fdroid.fdroid.net.LocalHTTPD;
 import org.fdroid.fdroid.net.WifiStateChangeService;
 
 import java.net.URI;
@@ -44,6 +48,8 @@ public class WifiQrFragment extends Fragment {
 
     private static final String TAG = "WifiQrFragment";
 
+    private static final long SERVER_STATS_INTERVAL_MS = 1000;
+
     private final BroadcastReceiver onWifiChange = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent i) {
@@ -53,6 +59,16 @@ public class WifiQrFragment extends Fragment {
 
     private SwapProcessManager swapManager;
 
+    private final Handler handler = new Handler();
+
+    private final Runnable updateServerStats = new Runnable() {
+        @Override
+        public void run() {
+            setUIFromServerStats();
+            handler.postDelayed(this, SERVER_STATS_INTERVAL_MS);
+        }
+    };
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.swap_wifi_qr, container, false);
@@ -109,6 +125,33 @@ public class WifiQrFragment extends Fragment {
 
         LocalBroadcastManager.getInstance(getActivity()).registerReceiver(onWifiChange,
                 new IntentFilter(WifiStateChangeService.BROADCAST));
+        handler.post(updateServerStats);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        handler.removeCallbacks(updateServerStats);
+    }
+
+    /**
+     * Only shown once someone has connected, so that it is clear when the other
+     * swapper is getting apps, or is waiting for others in the room to finish.
+     */
+    private void setUIFromServerStats() {
+        if (getView() == null)
+            return;
+
+        TextView statsView = (TextView) getView().findViewById(R.id.server_stats);
+        LocalHTTPD.Stats stats = LocalRepoService.getWebServerStats();
+        if (stats == null || stats.activeConnections + stats.handledConnections + stats.rejectedConnections == 0) {
+            statsView.setVisibility(View.GONE);
+            return;
+        }
+
+        statsView.setText(getString(R.string.swap_server_stats, stats.activeConnections,
+                stats.queuedConnections, Formatter.formatShortFileSize(getActivity(), stats.bytesServed)));
+        statsView.setVisibility(View.VISIBLE);
     }
 
     private void setUIFromWifi() {
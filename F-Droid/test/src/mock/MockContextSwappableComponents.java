@@ -1,5 +1,7 @@
 package mock;
 
+import android.content.ComponentName;
+import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.test.mock.MockContentResolver;
@@ -41,4 +43,19 @@ public class MockContextSwappableComponents extends MockContext {
     public MockContentResolver getContentResolver() {
         return contentResolver;
     }
+
+    // Needed to make Intents for our own components.
+    @Override
+    public String getPackageName() {
+        return "org.fdroid.fdroid";
+    }
+
+    /**
+     * Services are not run, tests need to do what the service would have done themselves,
+     * e.g. {@link org.fdroid.fdroid.data.InstalledAppCacheService#processQueue(android.content.Context)}.
+     */
+    @Override
+    public ComponentName startService(Intent service) {
+        return service.getComponent();
+    }
 }
@@ -7,11 +7,15 @@ import android.test.mock.MockPackageManager;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MockInstallablePackageManager extends MockPackageManager {
 
     private List<PackageInfo> info = new ArrayList<>();
 
+    private long lastUpdateTime;
+    private final AtomicInteger applicationInfoRequests = new AtomicInteger();
+
     @Override
     public List<PackageInfo> getInstalledPackages(int flags) {
         return info;
@@ -22,20 +26,40 @@ public class MockInstallablePackageManager extends MockPackageManager {
         if (existing != null) {
             existing.versionCode = version;
             existing.versionName = versionName;
+            existing.lastUpdateTime = ++lastUpdateTime;
         } else {
             PackageInfo p = new PackageInfo();
             p.packageName = id;
             p.versionCode = version;
             p.versionName = versionName;
+            p.lastUpdateTime = ++lastUpdateTime;
             info.add(p);
         }
     }
 
     @Override
     public ApplicationInfo getApplicationInfo(String packageName, int flags) throws NameNotFoundException {
+        applicationInfoRequests.incrementAndGet();
         return new MockApplicationInfo(getPackageInfo(packageName));
     }
 
+    /**
+     * @return How many times {@link #getApplicationInfo(String, int)} has been called, e.g.
+     * to load the label of an app.
+     */
+    public int getApplicationInfoRequests() {
+        return applicationInfoRequests.get();
+    }
+
+    @Override
+    public PackageInfo getPackageInfo(String packageName, int flags) throws NameNotFoundException {
+        PackageInfo info = getPackageInfo(packageName);
+        if (info == null) {
+            throw new NameNotFoundException(packageName);
+        }
+        return info;
+    }
+
     public PackageInfo getPackageInfo(String id) {
         for (PackageInfo i : info) {
             if (i.packageName.equals(id)) {
@@ -0,0 +1,195 @@
+package org.fdroid.fdroid;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.mock.MockApk;
+import org.fdroid.fdroid.mock.MockRepoServer;
+import org.fdroid.fdroid.net.ApkDownloadQueue;
+import org.fdroid.fdroid.net.ApkDownloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ApkDownloadQueueTest extends InstrumentationTestCase {
+
+    private Context context;
+    private MockRepoServer server;
+    private File simpleIndexJar;
+    private String simpleIndexHash;
+
+    /**
+     * Unique to each run, so that apks cached by earlier runs aren't used instead of downloading.
+     */
+    private String apkNamePrefix;
+
+    private final List<ApkDownloader> finished = new ArrayList<>();
+    private long lastBytesDownloaded;
+    private long lastTotalBytes;
+    private CountDownLatch queueFinished;
+
+    private final ApkDownloadQueue.Listener listener = new ApkDownloadQueue.Listener() {
+        @Override
+        public void onQueueProgress(long bytesDownloaded, long totalBytes, int finishedCount, int totalCount) {
+            lastBytesDownloaded = bytesDownloaded;
+            lastTotalBytes = totalBytes;
+        }
+
+        @Override
+        public void onQueueFinished(List<ApkDownloader> completed) {
+            finished.addAll(completed);
+            queueFinished.countDown();
+        }
+    };
+
+    @Override
+    protected void setUp() throws IOException {
+        context = getInstrumentation().getTargetContext();
+        File testFilesDir = TestUtils.getWriteableDir(getInstrumentation());
+        simpleIndexJar = TestUtils.copyAssetToDir(getInstrumentation().getContext(), "simpleIndex.jar", testFilesDir);
+        simpleIndexHash = Utils.getBinaryHash(simpleIndexJar, "sha256").toLowerCase(Locale.ENGLISH);
+        apkNamePrefix = "queued" + System.currentTimeMillis() + "-";
+
+        server = new MockRepoServer(getInstrumentation().getContext());
+        for (int i = 0; i < 6; i++) {
+            server.serveAsset("/" + apkNamePrefix + i + ".apk", "simpleIndex.jar");
+        }
+        server.start();
+
+        queueFinished = new CountDownLatch(1);
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                ApkDownloadQueue.get(context).addListener(listener);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                ApkDownloadQueue.get(context).removeListener(listener);
+            }
+        });
+        for (ApkDownloader downloader : finished) {
+            downloader.localFile().delete();
+        }
+        simpleIndexJar.delete();
+        server.stop();
+    }
+
+    public void testDownloadsEverything() throws InterruptedException {
+        ApkDownloadQueue queue = ApkDownloadQueue.get(context);
+        for (int i = 0; i < 5; i++) {
+            queue.enqueue(createApk(i), server.getAddress(), ApkDownloadQueue.PRIORITY_BACKGROUND);
+        }
+
+        assertTrue(queueFinished.await(30, TimeUnit.SECONDS));
+        getInstrumentation().waitForIdleSync();
+
+        assertEquals(5, finished.size());
+        for (ApkDownloader downloader : finished) {
+            assertTrue(downloader.isComplete());
+            assertEquals(simpleIndexJar.length(), downloader.localFile().length());
+        }
+        assertEquals(5 * simpleIndexJar.length(), lastTotalBytes);
+        assertEquals(lastTotalBytes, lastBytesDownloaded);
+    }
+
+    public void testInteractiveDownloadsJumpTheQueue() throws InterruptedException {
+        ApkDownloadQueue queue = ApkDownloadQueue.get(context);
+        for (int i = 0; i < 5; i++) {
+            queue.enqueue(createApk(i), server.getAddress(), ApkDownloadQueue.PRIORITY_BACKGROUND);
+        }
+        queue.enqueue(createApk(5), server.getAddress(), ApkDownloadQueue.PRIORITY_INTERACTIVE);
+
+        assertTrue(queueFinished.await(30, TimeUnit.SECONDS));
+        assertEquals(6, finished.size());
+
+        // Only MAX_DOWNLOADS_PER_HOST background downloads had already started, because they
+        // are all from the same server, so the interactive one was next.
+        List<String> paths = server.getRequestedPaths();
+        assertEquals(ApkDownloadQueue.MAX_DOWNLOADS_PER_HOST, paths.indexOf("/" + apkNamePrefix + 5 + ".apk"));
+    }
+
+    public void testQueueingTwiceDownloadsOnce() throws InterruptedException {
+        ApkDownloadQueue queue = ApkDownloadQueue.get(context);
+        ApkDownloader first = queue.enqueue(createApk(0), server.getAddress(), ApkDownloadQueue.PRIORITY_BACKGROUND);
+        ApkDownloader second = queue.enqueue(createApk(0), server.getAddress(), ApkDownloadQueue.PRIORITY_INTERACTIVE);
+        assertSame(first, second);
+
+        assertTrue(queueFinished.await(30, TimeUnit.SECONDS));
+        assertEquals(1, finished.size());
+        assertEquals(1, server.getRequestedPaths().size());
+    }
+
+    public void testCancellingPendingDownloadTellsItsListener() throws InterruptedException {
+        ApkDownloadQueue queue = ApkDownloadQueue.get(context);
+        for (int i = 0; i < 4; i++) {
+            queue.enqueue(createApk(i), server.getAddress(), ApkDownloadQueue.PRIORITY_BACKGROUND);
+        }
+
+        // Behind the others from the same server, so it can't have started yet.
+        ApkDownloader pending = queue.enqueue(createApk(4), server.getAddress(), ApkDownloadQueue.PRIORITY_BACKGROUND);
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        pending.setProgressListener(new ProgressListener() {
+            @Override
+            public void onProgress(Event event) {
+                if (ApkDownloader.EVENT_APK_DOWNLOAD_CANCELLED.equals(event.type)) {
+                    cancelled.countDown();
+                }
+            }
+        });
+        pending.cancel();
+
+        assertTrue(cancelled.await(30, TimeUnit.SECONDS));
+        assertTrue(queueFinished.await(30, TimeUnit.SECONDS));
+        assertEquals(4, finished.size());
+        assertFalse(server.getRequestedPaths().contains("/" + apkNamePrefix + 4 + ".apk"));
+    }
+
+    public void testListenerCanRemoveItselfWhenFinished() throws InterruptedException {
+        final CountDownLatch removed = new CountDownLatch(1);
+        final ApkDownloadQueue.Listener oneOff = new ApkDownloadQueue.Listener() {
+            @Override
+            public void onQueueProgress(long bytesDownloaded, long totalBytes, int finishedCount, int totalCount) {
+            }
+
+            @Override
+            public void onQueueFinished(List<ApkDownloader> completed) {
+                ApkDownloadQueue.get(context).removeListener(this);
+                removed.countDown();
+            }
+        };
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                ApkDownloadQueue.get(context).addListener(oneOff);
+            }
+        });
+
+        ApkDownloadQueue.get(context).enqueue(createApk(0), server.getAddress(), ApkDownloadQueue.PRIORITY_BACKGROUND);
+
+        assertTrue(removed.await(30, TimeUnit.SECONDS));
+        assertTrue(queueFinished.await(30, TimeUnit.SECONDS));
+        assertEquals(1, finished.size());
+    }
+
+    private Apk createApk(int i) {
+        Apk apk = new MockApk("org.example.queued" + i, 1);
+        apk.apkName = apkNamePrefix + i + ".apk";
+        apk.hash = simpleIndexHash;
+        apk.hashType = "sha256";
+        apk.size = (int) simpleIndexJar.length();
+        return apk;
+    }
+
+}
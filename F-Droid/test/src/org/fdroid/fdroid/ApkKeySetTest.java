@@ -0,0 +1,64 @@
+package org.fdroid.fdroid;
+
+import android.test.AndroidTestCase;
+
+import org.fdroid.fdroid.data.ApkKeySet;
+import org.fdroid.fdroid.mock.MockApk;
+
+public class ApkKeySetTest extends AndroidTestCase {
+
+    public void testEmpty() {
+        ApkKeySet set = new ApkKeySet();
+        assertEquals(0, set.size());
+        assertFalse(set.contains("org.fdroid.fdroid", 1));
+        assertFalse(set.contains(new MockApk("org.fdroid.fdroid", 1)));
+    }
+
+    public void testContains() {
+        ApkKeySet set = new ApkKeySet();
+        assertTrue(set.add(new MockApk("org.fdroid.fdroid", 1)));
+        assertTrue(set.add(new MockApk("org.fdroid.fdroid", 2)));
+        assertTrue(set.add(new MockApk("org.example", 1)));
+        assertFalse(set.add(new MockApk("org.fdroid.fdroid", 1)));
+
+        assertEquals(3, set.size());
+
+        assertTrue(set.contains(new MockApk("org.fdroid.fdroid", 1)));
+        assertTrue(set.contains("org.fdroid.fdroid", 2));
+        assertTrue(set.contains("org.example", 1));
+
+        assertFalse(set.contains("org.fdroid.fdroid", 3));
+        assertFalse(set.contains("org.example", 2));
+        assertFalse(set.contains("com.example", 1));
+    }
+
+    public void testSameIdWithDifferentVersionCodes() {
+        ApkKeySet set = new ApkKeySet();
+        for (int versionCode = 0; versionCode < 10; versionCode++) {
+            assertTrue(set.add("org.fdroid.fdroid", versionCode));
+            assertEquals(versionCode + 1, set.size());
+        }
+
+        for (int versionCode = 0; versionCode < 10; versionCode++) {
+            assertTrue(set.contains("org.fdroid.fdroid", versionCode));
+            assertFalse(set.add("org.fdroid.fdroid", versionCode));
+        }
+        assertEquals(10, set.size());
+
+        assertFalse(set.contains("org.fdroid.fdroid", -1));
+        assertFalse(set.contains("org.fdroid.fdroid", 10));
+    }
+
+    public void testSameVersionCodeWithDifferentIds() {
+        ApkKeySet set = new ApkKeySet();
+        assertTrue(set.add("org.fdroid.fdroid", 1));
+        assertTrue(set.add("org.fdroid.fdroid.privileged", 1));
+        assertTrue(set.add("org.fdroid", 1));
+        assertEquals(3, set.size());
+
+        assertTrue(set.contains("org.fdroid.fdroid.privileged", 1));
+        assertFalse(set.contains("org.fdroid.f", 1));
+        assertFalse(set.contains("org.fdroid.fdroid.privileged", 2));
+    }
+
+}
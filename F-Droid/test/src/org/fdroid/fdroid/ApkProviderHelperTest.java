@@ -6,66 +6,47 @@ import android.net.Uri;
 
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.ApkProvider;
-import org.fdroid.fdroid.mock.MockApk;
+import org.fdroid.fdroid.mock.MockRepo;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
 public class ApkProviderHelperTest extends BaseApkProviderTest {
 
-    public void testKnownApks() {
+    public void testFindByRepoAndApps() {
 
         for (int i = 0; i < 7; i ++)
-            TestUtils.insertApk(this, "org.fdroid.fdroid", i);
+            insertApkForRepo("org.fdroid.fdroid", i, 1);
 
         for (int i = 0; i < 9; i ++)
-            TestUtils.insertApk(this, "org.example", i);
+            insertApkForRepo("org.example", i, i % 2 == 0 ? 1 : 2);
 
         for (int i = 0; i < 3; i ++)
-            TestUtils.insertApk(this, "com.example", i);
-
-        TestUtils.insertApk(this, "com.apk.thingo", 1);
-
-        Apk[] known = {
-            new MockApk("org.fdroid.fdroid", 1),
-            new MockApk("org.fdroid.fdroid", 3),
-            new MockApk("org.fdroid.fdroid", 5),
+            insertApkForRepo("com.example", i, 2);
 
-            new MockApk("com.example", 1),
-            new MockApk("com.example", 2),
-        };
-
-        Apk[] unknown = {
-            new MockApk("org.fdroid.fdroid", 7),
-            new MockApk("org.fdroid.fdroid", 9),
-            new MockApk("org.fdroid.fdroid", 11),
-            new MockApk("org.fdroid.fdroid", 13),
-
-            new MockApk("com.example", 3),
-            new MockApk("com.example", 4),
-            new MockApk("com.example", 5),
+        insertApkForRepo("com.apk.thingo", 1, 1);
 
-            new MockApk("info.example", 1),
-            new MockApk("info.example", 2),
-        };
-
-        List<Apk> apksToCheck = new ArrayList<Apk>(known.length + unknown.length);
-        Collections.addAll(apksToCheck, known);
-        Collections.addAll(apksToCheck, unknown);
+        assertTotalApkCount(7 + 9 + 3 + 1);
 
         String[] projection = {
             ApkProvider.DataColumns.APK_ID,
-            ApkProvider.DataColumns.VERSION_CODE
+            ApkProvider.DataColumns.VERSION_CODE,
+            ApkProvider.DataColumns.REPO_ID,
         };
 
-        List<Apk> knownApks = ApkProvider.Helper.knownApks(getMockContext(), apksToCheck, projection);
+        List<String> appIds = Arrays.asList("org.fdroid.fdroid", "org.example", "com.example", "info.example");
+        List<Apk> apks = ApkProvider.Helper.findByRepo(getMockContext(), new MockRepo(1), appIds, projection);
 
-        assertResultCount(known.length, knownApks);
+        // Every apk of org.fdroid.fdroid, and the even versions of org.example.
+        assertResultCount(7 + 5, apks);
+        for (Apk apk : apks) {
+            assertEquals(1, apk.repo);
+            assertTrue(apk.id.equals("org.fdroid.fdroid") || (apk.id.equals("org.example") && apk.vercode % 2 == 0));
+        }
 
-        for (Apk knownApk : knownApks)
-            assertContains(knownApks, knownApk);
+        assertResultCount(0, ApkProvider.Helper.findByRepo(getMockContext(), new MockRepo(1), Collections.<String>emptyList(), projection));
     }
 
     public void testFindByApp() {
@@ -6,66 +6,29 @@ import android.net.Uri;
 
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.ApkProvider;
+import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.mock.MockApk;
 import org.fdroid.fdroid.mock.MockApp;
 import org.fdroid.fdroid.mock.MockRepo;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ApkProviderTest extends BaseApkProviderTest {
 
-    /**
-     * I want to test the protected {@link org.fdroid.fdroid.data.ApkProvider#getContentUri(java.util.List)}
-     * method, but don't want to make it public. This exposes it.
-     */
-    private static class PublicApkProvider extends ApkProvider {
-
-        public static final int MAX_APKS_TO_QUERY = ApkProvider.MAX_APKS_TO_QUERY;
-
-        public static Uri getContentUri(List<Apk> apks) {
-            return ApkProvider.getContentUri(apks);
-        }
-    }
-
     public void testUris() {
         assertInvalidUri(ApkProvider.getAuthority());
         assertInvalidUri(RepoProvider.getContentUri());
 
-        List<Apk> apks = new ArrayList<Apk>(3);
-        for (int i = 0; i < 10; i ++) {
-            apks.add(new MockApk("com.example." + i, i));
-        }
-
         assertValidUri(ApkProvider.getContentUri());
         assertValidUri(ApkProvider.getAppUri("org.fdroid.fdroid"));
         assertValidUri(ApkProvider.getContentUri(new MockApk("org.fdroid.fdroid", 100)));
         assertValidUri(ApkProvider.getContentUri());
-        assertValidUri(PublicApkProvider.getContentUri(apks));
         assertValidUri(ApkProvider.getContentUri("org.fdroid.fdroid", 100));
         assertValidUri(ApkProvider.getRepoUri(1000));
-
-        List<Apk> manyApks = new ArrayList<Apk>(PublicApkProvider.MAX_APKS_TO_QUERY - 5);
-        for (int i = 0; i < PublicApkProvider.MAX_APKS_TO_QUERY - 1; i ++) {
-            manyApks.add(new MockApk("com.example." + i, i));
-        }
-        assertValidUri(PublicApkProvider.getContentUri(manyApks));
-
-        manyApks.add(new MockApk("org.fdroid.fdroid.1", 1));
-        manyApks.add(new MockApk("org.fdroid.fdroid.2", 2));
-        try {
-            // Technically, it is a valid URI, because it doesn't
-            // throw an UnsupportedOperationException. However it
-            // is still not okay (we run out of bindable parameters
-            // in the sqlite query.
-            assertValidUri(PublicApkProvider.getContentUri(manyApks));
-            fail();
-        } catch (IllegalArgumentException e) {
-            // This is the expected error behaviour.
-        } catch (Exception e) {
-            fail();
-        }
     }
 
     public void testAppApks() {
@@ -98,15 +61,9 @@ public class ApkProviderTest extends BaseApkProviderTest {
     }
 
     public void testInvalidUpdateUris() {
-        Apk apk = new MockApk("org.fdroid.fdroid", 10);
-
-        List<Apk> apks = new ArrayList<Apk>();
-        apks.add(apk);
-
         assertCantUpdate(ApkProvider.getContentUri());
         assertCantUpdate(ApkProvider.getAppUri("org.fdroid.fdroid"));
         assertCantUpdate(ApkProvider.getRepoUri(1));
-        assertCantUpdate(PublicApkProvider.getContentUri(apks));
         assertCantUpdate(Uri.withAppendedPath(ApkProvider.getContentUri(), "some-random-path"));
 
         // The only valid ones are:
@@ -322,4 +279,92 @@ public class ApkProviderTest extends BaseApkProviderTest {
         assertEquals(10, apk.repo);
     }
 
+    public void testStageInBulk() {
+        final int size = 10000;
+        Repo repo = new MockRepo(10);
+        List<Apk> apks = generateStagedApks(size, repo);
+
+        ApkProvider.Helper.initStaging(getSwappableContext(), repo);
+        assertEquals(size, ApkProvider.Helper.stage(getSwappableContext(), repo, apks));
+        assertEquals(size, ApkProvider.Helper.commitStaging(getSwappableContext(), repo));
+
+        List<Apk> committed = ApkProvider.Helper.findByRepo(getSwappableContext(), repo, ApkProvider.DataColumns.ALL);
+        assertResultCount(size, committed);
+        Map<String, Apk> staged = new HashMap<>(size);
+        for (Apk apk : apks) {
+            staged.put(apk.id + ":" + apk.vercode, apk);
+        }
+        for (Apk apk : committed) {
+            Apk expected = staged.remove(apk.id + ":" + apk.vercode);
+            assertNotNull("Unexpected apk " + apk.id + ":" + apk.vercode, expected);
+            assertEquals(expected.version, apk.version);
+            assertEquals(expected.hash, apk.hash);
+            assertEquals(expected.apkName, apk.apkName);
+            assertEquals(repo.getId(), apk.repo);
+        }
+        assertEquals(0, staged.size());
+
+        // Staging the same apks again replaces them, rather than duplicating them.
+        ApkProvider.Helper.initStaging(getSwappableContext(), repo);
+        assertEquals(size, ApkProvider.Helper.stage(getSwappableContext(), repo, apks));
+        assertEquals(size, ApkProvider.Helper.commitStaging(getSwappableContext(), repo));
+        assertTotalApkCount(size);
+    }
+
+    public void testStageReplacesExisting() {
+        Repo repo = new MockRepo(10);
+        List<Apk> apks = generateStagedApks(10, repo);
+        ApkProvider.Helper.initStaging(getSwappableContext(), repo);
+        ApkProvider.Helper.stage(getSwappableContext(), repo, apks);
+        ApkProvider.Helper.commitStaging(getSwappableContext(), repo);
+
+        for (Apk apk : apks) {
+            apk.hash = "updated";
+        }
+        ApkProvider.Helper.initStaging(getSwappableContext(), repo);
+        ApkProvider.Helper.stage(getSwappableContext(), repo, apks);
+        ApkProvider.Helper.commitStaging(getSwappableContext(), repo);
+
+        assertTotalApkCount(10);
+        Apk apk = ApkProvider.Helper.find(getSwappableContext(), "org.example.app0", 0, new String[] {
+            ApkProvider.DataColumns.HASH,
+        });
+        assertNotNull(apk);
+        assertEquals("updated", apk.hash);
+    }
+
+    public void testDeleteApksBeyondUriLimit() {
+        // More than SQLite would allow as parameters to a single query.
+        final int size = 1500;
+        Repo repo = new MockRepo(10);
+        List<Apk> apks = generateStagedApks(size, repo);
+        ApkProvider.Helper.initStaging(getSwappableContext(), repo);
+        ApkProvider.Helper.stage(getSwappableContext(), repo, apks);
+        ApkProvider.Helper.commitStaging(getSwappableContext(), repo);
+        assertTotalApkCount(size);
+
+        ApkProvider.Helper.deleteApks(getSwappableContext(), apks.subList(0, size - 1));
+
+        List<Apk> remaining = ApkProvider.Helper.findByRepo(getSwappableContext(), repo, ApkProvider.DataColumns.ALL);
+        assertResultCount(1, remaining);
+        assertContains(remaining, apks.get(size - 1));
+
+        // The lookup which was used is thrown away, and doesn't add to the next one.
+        ApkProvider.Helper.deleteApks(getSwappableContext(), apks.subList(0, 1));
+        assertResultCount(1, ApkProvider.Helper.findByRepo(getSwappableContext(), repo, ApkProvider.DataColumns.ALL));
+    }
+
+    private static List<Apk> generateStagedApks(int count, Repo repo) {
+        List<Apk> apks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Apk apk = new MockApk("org.example.app" + (i / 5), i % 5);
+            apk.repo = repo.getId();
+            apk.version = "v" + apk.vercode;
+            apk.hash = "hash" + i;
+            apk.apkName = "app" + i + ".apk";
+            apks.add(apk);
+        }
+        return apks;
+    }
+
 }
@@ -4,13 +4,19 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.util.Log;
 
 import org.fdroid.fdroid.data.ApkProvider;
 import org.fdroid.fdroid.data.App;
 import org.fdroid.fdroid.data.AppProvider;
 import org.fdroid.fdroid.data.InstalledAppCacheUpdater;
+import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.data.RepoProvider;
+import org.fdroid.fdroid.mock.MockRepo;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import mock.MockCategoryResources;
@@ -19,6 +25,8 @@ import mock.MockInstallablePackageManager;
 
 public class AppProviderTest extends FDroidProviderTest<AppProvider> {
 
+    private static final String TAG = "AppProviderTest";
+
     public AppProviderTest() {
         super(AppProvider.class, AppProvider.getAuthority());
     }
@@ -282,6 +290,68 @@ public class AppProviderTest extends FDroidProviderTest<AppProvider> {
         assertEquals("F-Droid", app.name);
     }
 
+    public void testStagingRejectsUnknownFields() {
+        Repo repo = new MockRepo(10);
+        AppProvider.Helper.initStaging(getSwappableContext(), repo);
+
+        ContentValues invalidApp = new ContentValues();
+        invalidApp.put(AppProvider.DataColumns.APP_ID, "org.fdroid.fdroid");
+        invalidApp.put("notAField", "Test data");
+        try {
+            getMockContentResolver().bulkInsert(AppProvider.getStagingUri(repo), new ContentValues[] {invalidApp});
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Success!
+        } finally {
+            AppProvider.Helper.discardStaging(getSwappableContext(), repo);
+        }
+    }
+
+    public void testCalcDetailsForChangedAppsOnly() {
+        ContentValues incompatible = new ContentValues();
+        incompatible.put(AppProvider.DataColumns.IS_COMPATIBLE, 0);
+        insertApp("com.example.changed", "Changed", incompatible);
+        insertApp("com.example.unchanged", "Unchanged", incompatible);
+        for (int i = 1; i <= 3; i++) {
+            TestUtils.insertApk(this, "com.example.changed", i);
+            TestUtils.insertApk(this, "com.example.unchanged", i);
+        }
+
+        AppProvider.Helper.calcDetailsFromIndex(getSwappableContext(), Collections.singleton("com.example.changed"));
+
+        App changed = AppProvider.Helper.findById(getMockContentResolver(), "com.example.changed");
+        assertTrue(changed.compatible);
+        assertEquals(3, changed.suggestedVercode);
+
+        App unchanged = AppProvider.Helper.findById(getMockContentResolver(), "com.example.unchanged");
+        assertFalse(unchanged.compatible);
+        assertEquals(0, unchanged.suggestedVercode);
+
+        AppProvider.Helper.calcDetailsFromIndex(getSwappableContext());
+
+        unchanged = AppProvider.Helper.findById(getMockContentResolver(), "com.example.unchanged");
+        assertTrue(unchanged.compatible);
+        assertEquals(3, unchanged.suggestedVercode);
+    }
+
+    public void testPurgingRepoRecalculatesDetails() {
+        insertApp("com.example.shared", "Shared");
+        ContentValues otherRepo = new ContentValues();
+        otherRepo.put(ApkProvider.DataColumns.REPO_ID, 2);
+        TestUtils.insertApk(this, "com.example.shared", 1);
+        TestUtils.insertApk(this, "com.example.shared", 2);
+        TestUtils.insertApk(this, "com.example.shared", 3, otherRepo);
+        AppProvider.Helper.calcDetailsFromIndex(getSwappableContext());
+        assertEquals(3, AppProvider.Helper.findById(getMockContentResolver(), "com.example.shared").suggestedVercode);
+
+        // The app is still available from the first repo, but not its newest version.
+        RepoProvider.Helper.purgeApps(getSwappableContext(), new MockRepo(2), null);
+
+        App shared = AppProvider.Helper.findById(getMockContentResolver(), "com.example.shared");
+        assertNotNull(shared);
+        assertEquals(2, shared.suggestedVercode);
+    }
+
     private Cursor queryAllApps() {
         return getMockContentResolver().query(AppProvider.getContentUri(), getMinimalProjection(), null, null, null);
     }
@@ -356,6 +426,118 @@ public class AppProviderTest extends FDroidProviderTest<AppProvider> {
         TestUtils.assertContainsOnly(categoriesLonger, expectedLonger);
     }
 
+    public void testQueryCategory() {
+        insertAppWithCategory("com.rock.dog", "Rock-Dog", "Mineral,Animal");
+        insertAppWithCategory("com.dog.rock.apple", "Dog-Rock-Apple", "Animal,Mineral,Vegetable");
+        insertAppWithCategory("com.banana.apple", "Banana", "Vegetable,Vegetable");
+        insertAppWithCategory("com.animalfarm", "Animal Farm", "Animalia");
+
+        assertAppsInCategory("Animal", "com.rock.dog", "com.dog.rock.apple");
+        assertAppsInCategory("Vegetable", "com.dog.rock.apple", "com.banana.apple");
+        assertAppsInCategory("Animalia", "com.animalfarm");
+        assertAppsInCategory("Anim");
+
+        // Changing the categories of an app should move it between categories...
+        ContentValues values = new ContentValues(1);
+        values.put(AppProvider.DataColumns.CATEGORIES, "Vegetable");
+        getMockContentResolver().update(AppProvider.getContentUri("com.rock.dog"), values, null, null);
+
+        assertAppsInCategory("Animal", "com.dog.rock.apple");
+        assertAppsInCategory("Vegetable", "com.dog.rock.apple", "com.banana.apple", "com.rock.dog");
+
+        // ...and removing the last app in a category removes it from the list of categories.
+        getMockContentResolver().delete(AppProvider.getNoApksUri(), null, null);
+        assertAppsInCategory("Vegetable");
+        assertEquals(3, AppProvider.Helper.categories(getMockContext()).size());
+    }
+
+    public void testSearch() {
+        insertAppWithDescription("org.fdroid.fdroid", "F-Droid", "Install free software");
+        insertAppWithDescription("com.example.browser", "Firefox Browser", "Browse the web");
+        insertAppWithDescription("com.example.reader", "Reader", "A fast, free browser of feeds");
+        insertAppWithDescription("com.example.notes", "Notes", "Keep notes");
+        insertAppWithDescription("com.example.tram", "Über Tram", "Straßenbahn timetables");
+
+        // Name matches come before those in other columns, then alphabetical...
+        assertSearchResults("browser", "com.example.browser", "com.example.reader");
+
+        // ...words can be prefixes of what was typed so far...
+        assertSearchResults("brow", "com.example.browser", "com.example.reader");
+        assertSearchResults("fre", "org.fdroid.fdroid", "com.example.reader");
+
+        // ...every word needs to match somewhere...
+        assertSearchResults("free browser", "com.example.reader");
+        assertSearchResults("notes browser");
+
+        // ...and punctuation is not treated as part of the query.
+        assertSearchResults("F-Droid", "org.fdroid.fdroid");
+        assertSearchResults("'searching!'");
+        assertSearchResults("\"*");
+
+        // Only ASCII letters are case insensitive, and other characters are part of words,
+        // the same as the full text index.
+        assertSearchResults("Über", "com.example.tram");
+        assertSearchResults("TRAM straßen", "com.example.tram");
+        assertSearchResults("über");
+    }
+
+    /**
+     * Not a test of correctness, but logs how long searches take as more apps are added,
+     * to make it easier to notice if search stops scaling with the size of the catalogue.
+     */
+    public void testSearchLatency() {
+        final String[] queries = { "app", "app 1", "description", "nothing matches this" };
+        final int[] sizes = { 100, 1000, 3000 };
+        int inserted = 0;
+        for (int size : sizes) {
+            for (; inserted < size; inserted++) {
+                insertAppWithDescription("com.example.app" + inserted, "App " + inserted,
+                        "<p>A longer description of app " + inserted + ", which is here to give the search index some text</p>");
+            }
+
+            long start = System.currentTimeMillis();
+            for (String query : queries) {
+                Cursor cursor = getMockContentResolver().query(
+                        AppProvider.getSearchUri(query), getMinimalProjection(), null, null, AppProvider.DataColumns.NAME);
+                assertNotNull(cursor);
+                cursor.getCount();
+                cursor.close();
+            }
+            long duration = System.currentTimeMillis() - start;
+            Log.i(TAG, "Searching " + size + " apps took " + (duration / queries.length) + "ms per query");
+        }
+    }
+
+    private void assertSearchResults(String query, String... expectedAppIds) {
+        Cursor cursor = getMockContentResolver().query(
+                AppProvider.getSearchUri(query), getMinimalProjection(), null, null, AppProvider.DataColumns.NAME);
+        assertNotNull(cursor);
+        List<String> appIds = new ArrayList<>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            appIds.add(cursor.getString(cursor.getColumnIndex(AppProvider.DataColumns.APP_ID)));
+        }
+        cursor.close();
+        assertEquals(Arrays.asList(expectedAppIds), appIds);
+    }
+
+    private void insertAppWithDescription(String id, String name, String description) {
+        ContentValues values = new ContentValues(1);
+        values.put(AppProvider.DataColumns.DESCRIPTION, description);
+        insertApp(id, name, values);
+    }
+
+    private void assertAppsInCategory(String category, String... expectedAppIds) {
+        Cursor cursor = getMockContentResolver().query(
+                AppProvider.getCategoryUri(category), getMinimalProjection(), null, null, null);
+        assertNotNull(cursor);
+        List<String> appIds = new ArrayList<>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            appIds.add(cursor.getString(cursor.getColumnIndex(AppProvider.DataColumns.APP_ID)));
+        }
+        cursor.close();
+        TestUtils.assertContainsOnly(appIds, expectedAppIds);
+    }
+
     // =======================================================================
     //  Misc helper functions
     //  (to be used by any tests in this suite)
@@ -69,4 +69,24 @@ public class FileCompatTest extends InstrumentationTestCase {
         }
     }
 
+    public void testLinkOs() {
+
+        if (Build.VERSION.SDK_INT >= 21) {
+            FileCompatForTest.linkOsTest(sourceFile, destFile);
+            assertTrue(destFile.getAbsolutePath() + " should exist after linking", destFile.exists());
+            assertEquals(sourceFile.length(), destFile.length());
+
+            // Unlike a symlink, the data is still there after the original is removed.
+            assertTrue(sourceFile.delete());
+            assertTrue(destFile.exists());
+        } else {
+            Log.w(TAG, "Cannot test link-os on this device. Requires android-21, but only has android-" + Build.VERSION.SDK_INT);
+        }
+    }
+
+    public void testLinkOrCopy() {
+        assertTrue(Utils.linkOrCopyFile(sourceFile, destFile));
+        assertEquals(sourceFile.length(), destFile.length());
+    }
+
 }
@@ -0,0 +1,182 @@
+package org.fdroid.fdroid;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+
+import org.fdroid.fdroid.mock.MockRepoServer;
+import org.fdroid.fdroid.net.Downloader;
+import org.fdroid.fdroid.net.DownloaderFactory;
+import org.fdroid.fdroid.net.HttpConnections;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+public class HttpDownloaderTest extends InstrumentationTestCase {
+
+    private Context context;
+    private File testFilesDir;
+    private MockRepoServer server;
+
+    @Override
+    protected void setUp() throws IOException {
+        context = getInstrumentation().getContext();
+        testFilesDir = TestUtils.getWriteableDir(getInstrumentation());
+        server = new MockRepoServer(context)
+                .serveAsset("/index.jar", "simpleIndex.jar")
+                .serveAsset("/large.jar", "masterKeyIndex.jar");
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() {
+        server.stop();
+    }
+
+    public void testHashWhileDownloading() throws IOException, NoSuchAlgorithmException {
+        File downloaded = new File(testFilesDir, "downloaded.jar");
+        Downloader downloader = DownloaderFactory.create(server.getAddress() + "/index.jar", downloaded);
+        downloader.setHashType("sha256");
+        downloader.downloadUninterrupted();
+
+        File expected = TestUtils.copyAssetToDir(context, "simpleIndex.jar", testFilesDir);
+        // getBinaryHash() is upper case, the hashes in the index (and so getHash()) are lower case.
+        assertEquals(Utils.getBinaryHash(expected, "sha256").toLowerCase(Locale.ENGLISH), downloader.getHash());
+        assertEquals(Utils.getBinaryHash(downloaded, "sha256").toLowerCase(Locale.ENGLISH), downloader.getHash());
+        downloaded.delete();
+        expected.delete();
+    }
+
+    public void testNoHashUnlessAskedFor() throws IOException {
+        File downloaded = new File(testFilesDir, "downloaded.jar");
+        Downloader downloader = DownloaderFactory.create(server.getAddress() + "/index.jar", downloaded);
+        downloader.downloadUninterrupted();
+        assertNull(downloader.getHash());
+        downloaded.delete();
+    }
+
+    public void testUnknownHashType() throws IOException {
+        File downloaded = new File(testFilesDir, "downloaded.jar");
+        Downloader downloader = DownloaderFactory.create(server.getAddress() + "/index.jar", downloaded);
+        try {
+            downloader.setHashType("not-a-hash");
+            fail();
+        } catch (NoSuchAlgorithmException e) {
+            // This is the expected error behaviour.
+        }
+        downloaded.delete();
+    }
+
+    public void testResumesAfterDroppedConnections() throws IOException, NoSuchAlgorithmException {
+        File expected = TestUtils.copyAssetToDir(context, "simpleIndex.jar", testFilesDir);
+        File downloaded = new File(testFilesDir, "downloaded.jar");
+        downloaded.delete();
+
+        // Enough for the headers and some of the file, but nowhere near all of it.
+        server.dropConnectionsAfter(1024);
+
+        String hash = null;
+        String resumeValidator = null;
+        int attempts = 0;
+        while (hash == null) {
+            assertTrue("Should have finished downloading by now", attempts++ < expected.length() / 256);
+            Downloader downloader = DownloaderFactory.create(server.getAddress() + "/index.jar", downloaded);
+            downloader.setHashType("sha256");
+            downloader.setResumeValidator(resumeValidator);
+            try {
+                downloader.downloadUninterrupted();
+                hash = downloader.getHash();
+            } catch (IOException e) {
+                resumeValidator = downloader.getResumeValidator();
+                assertEquals(MockRepoServer.getETag("simpleIndex.jar"), resumeValidator);
+            }
+        }
+
+        assertTrue(attempts > 1);
+        assertEquals(expected.length(), downloaded.length());
+        assertEquals(Utils.getBinaryHash(expected, "sha256").toLowerCase(Locale.ENGLISH), hash);
+
+        // Every attempt after the first only asked for what it didn't have yet.
+        List<Map<String, String>> headers = server.getRequestedHeaders();
+        assertNull(headers.get(0).get("range"));
+        for (int i = 1; i < headers.size(); i++) {
+            assertNotNull(headers.get(i).get("range"));
+            assertEquals(MockRepoServer.getETag("simpleIndex.jar"), headers.get(i).get("if-range"));
+        }
+
+        downloaded.delete();
+        expected.delete();
+    }
+
+    public void testStartsAgainIfFileChanged() throws IOException, NoSuchAlgorithmException {
+        File expected = TestUtils.copyAssetToDir(context, "simpleIndex.jar", testFilesDir);
+        File downloaded = new File(testFilesDir, "downloaded.jar");
+        FileOutputStream partial = new FileOutputStream(downloaded);
+        partial.write("Not the start of simpleIndex.jar".getBytes());
+        partial.close();
+
+        Downloader downloader = DownloaderFactory.create(server.getAddress() + "/index.jar", downloaded);
+        downloader.setHashType("sha256");
+        downloader.setResumeValidator("\"a-different-version\"");
+        downloader.downloadUninterrupted();
+
+        assertEquals(expected.length(), downloaded.length());
+        assertEquals(Utils.getBinaryHash(expected, "sha256").toLowerCase(Locale.ENGLISH), downloader.getHash());
+        downloaded.delete();
+        expected.delete();
+    }
+
+    public void testProgressIsThrottled() throws IOException {
+        File expected = TestUtils.copyAssetToDir(context, "masterKeyIndex.jar", testFilesDir);
+        File downloaded = new File(testFilesDir, "downloaded.jar");
+        downloaded.delete();
+
+        final List<ProgressListener.Event> events = new ArrayList<>();
+        final List<Integer> progress = new ArrayList<>();
+        Downloader downloader = DownloaderFactory.create(server.getAddress() + "/large.jar", downloaded);
+        downloader.setProgressListener(new ProgressListener() {
+            @Override
+            public void onProgress(Event event) {
+                events.add(event);
+                progress.add(event.progress);
+            }
+        });
+        downloader.downloadUninterrupted();
+
+        // Far fewer than one per buffer read, but always the start and the end.
+        assertTrue(events.size() < expected.length() / Utils.BUFFER_SIZE);
+        assertTrue(events.size() <= 102);
+        assertEquals(0, (int) progress.get(0));
+        assertEquals(expected.length(), (long) progress.get(progress.size() - 1));
+        for (int i = 1; i < progress.size(); i++) {
+            assertTrue(progress.get(i) > progress.get(i - 1));
+            assertSame(events.get(0), events.get(i));
+        }
+
+        downloaded.delete();
+        expected.delete();
+    }
+
+    public void testReusesConnections() throws IOException {
+        File downloaded = new File(testFilesDir, "downloaded.jar");
+        String host = "127.0.0.1";
+        HttpConnections.HostStats before = HttpConnections.getStats().get(host);
+        int requestsBefore = before == null ? 0 : before.requests;
+
+        for (int i = 0; i < 5; i++) {
+            downloaded.delete();
+            DownloaderFactory.create(server.getAddress() + "/index.jar", downloaded).downloadUninterrupted();
+        }
+
+        assertEquals(5, server.getRequestedPaths().size());
+        assertEquals(1, server.getConnectionCount());
+        assertEquals(requestsBefore + 5, HttpConnections.getStats().get(host).requests);
+        downloaded.delete();
+    }
+
+}
@@ -0,0 +1,84 @@
+package org.fdroid.fdroid;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+
+import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.mock.MockRepo;
+import org.fdroid.fdroid.mock.MockRepoServer;
+
+import java.io.File;
+import java.io.IOException;
+
+public class IconBundleTest extends InstrumentationTestCase {
+
+    private static final String[] ICONS = {
+        "org.example.first.1.png",
+        "org.example.second.2.png",
+        "org.example.escaped.3.png",
+    };
+
+    private Context context;
+    private File testFilesDir;
+    private MockRepoServer server;
+
+    @Override
+    protected void setUp() throws IOException {
+        context = getInstrumentation().getTargetContext();
+        testFilesDir = TestUtils.getWriteableDir(getInstrumentation());
+        server = new MockRepoServer(getInstrumentation().getContext()).serveAsset("/icons.zip", "iconBundle.zip");
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() {
+        server.stop();
+        for (String icon : ICONS) {
+            new File(Utils.getIconCacheDir(context), icon).delete();
+        }
+    }
+
+    public void testUnpack() throws IOException {
+        File bundle = TestUtils.copyAssetToDir(getInstrumentation().getContext(), "iconBundle.zip", testFilesDir);
+        File destDir = new File(testFilesDir, "icons");
+        destDir.mkdir();
+
+        assertEquals(3, IconBundle.unpack(bundle, destDir));
+
+        // Directories in the bundle are ignored, so nothing ends up outside of destDir.
+        for (String icon : ICONS) {
+            assertTrue(new File(destDir, icon).exists());
+            assertFalse(new File(testFilesDir, icon).exists());
+            new File(destDir, icon).delete();
+        }
+        assertEquals(0, destDir.list().length);
+        destDir.delete();
+        bundle.delete();
+    }
+
+    public void testUpdateUnpacksIntoIconCache() {
+        Repo repo = new MockRepo(1);
+        repo.address = server.getAddress();
+
+        // Repos this old keep their icons in /icons/, so their bundle is /icons.zip
+        IconBundle bundle = new IconBundle(context, repo, Repo.VERSION_DENSITY_SPECIFIC_ICONS - 1);
+        assertEquals(server.getAddress() + "/icons.zip", bundle.getAddress());
+        assertEquals(3, bundle.update());
+
+        for (String icon : ICONS) {
+            assertTrue(new File(Utils.getIconCacheDir(context), icon).exists());
+        }
+        assertEquals(1, server.getRequestedPaths().size());
+    }
+
+    public void testRepoWithoutBundle() {
+        Repo repo = new MockRepo(1);
+        repo.address = server.getAddress() + "/no-bundle-here";
+
+        assertEquals(0, new IconBundle(context, repo, 0).update());
+        for (String icon : ICONS) {
+            assertFalse(new File(Utils.getIconCacheDir(context), icon).exists());
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+package org.fdroid.fdroid;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+
+import org.fdroid.fdroid.mock.MockRepoServer;
+import org.fdroid.fdroid.net.IconDownloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class IconDownloaderTest extends InstrumentationTestCase {
+
+    private Context context;
+    private MockRepoServer server;
+
+    @Override
+    protected void setUp() throws IOException {
+        context = getInstrumentation().getContext();
+        server = new MockRepoServer(context).serveAsset("/icons/org.example.png", "simpleIndex.jar");
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() {
+        server.stop();
+    }
+
+    public void testStreamsWithoutTempFiles() throws IOException {
+        Context targetContext = getInstrumentation().getTargetContext();
+        int filesBefore = countFiles(targetContext.getCacheDir());
+
+        IconDownloader downloader = new IconDownloader(targetContext);
+        byte[] icon = read(downloader.getStream(server.getAddress() + "/icons/org.example.png", null));
+        byte[] expected = read(context.getAssets().open("simpleIndex.jar"));
+
+        assertEquals(expected.length, icon.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], icon[i]);
+        }
+        assertEquals(filesBefore, countFiles(targetContext.getCacheDir()));
+    }
+
+    public void testMissingIcon() {
+        IconDownloader downloader = new IconDownloader(getInstrumentation().getTargetContext());
+        try {
+            downloader.getStream(server.getAddress() + "/icons/missing.png", null);
+            fail();
+        } catch (IOException e) {
+            // This is the expected error behaviour.
+        }
+    }
+
+    private static int countFiles(File dir) {
+        String[] files = dir.list();
+        return files == null ? 0 : files.length;
+    }
+
+    private static byte[] read(InputStream input) throws IOException {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            Utils.copy(input, output);
+            return output.toByteArray();
+        } finally {
+            Utils.closeQuietly(input);
+        }
+    }
+
+}
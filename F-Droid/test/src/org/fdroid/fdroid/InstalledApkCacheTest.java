@@ -0,0 +1,82 @@
+package org.fdroid.fdroid;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.InstalledApkCache;
+
+public class InstalledApkCacheTest extends InstrumentationTestCase {
+
+    private static final String TAG = "InstalledApkCacheTest";
+
+    private Context context;
+    private PackageManager pm;
+
+    @Override
+    protected void setUp() {
+        context = getInstrumentation().getTargetContext();
+        pm = context.getPackageManager();
+        context.getSharedPreferences("installedApkCache", Context.MODE_PRIVATE).edit().clear().commit();
+    }
+
+    public void testOnlyUsedForSameInstall() throws PackageManager.NameNotFoundException {
+        InstalledApkCache cache = new InstalledApkCache(context);
+        PackageInfo info = pm.getPackageInfo(context.getPackageName(), 0);
+        assertNull(cache.get(info));
+
+        Apk apk = new Apk();
+        apk.hashType = "sha256";
+        apk.hash = "0123456789abcdef";
+        apk.sig = "fedcba9876543210";
+        apk.minSdkVersion = 8;
+        apk.maxSdkVersion = 0;
+        cache.put(info, apk);
+
+        // Available straight away, but only saved for others to see once asked to.
+        assertNotNull(cache.get(info));
+        assertNull(new InstalledApkCache(context).get(info));
+        cache.save();
+
+        Apk cached = new InstalledApkCache(context).get(info);
+        assertNotNull(cached);
+        assertEquals(apk.hashType, cached.hashType);
+        assertEquals(apk.hash, cached.hash);
+        assertEquals(apk.sig, cached.sig);
+        assertEquals(apk.minSdkVersion, cached.minSdkVersion);
+        assertEquals(apk.maxSdkVersion, cached.maxSdkVersion);
+
+        info.lastUpdateTime++;
+        assertNull(cache.get(info));
+        info.lastUpdateTime--;
+        info.versionCode++;
+        assertNull(cache.get(info));
+    }
+
+    public void testCachedAppIsTheSame() throws Exception {
+        InstalledApkCache cache = new InstalledApkCache(context);
+        String packageName = context.getPackageName();
+
+        long start = System.currentTimeMillis();
+        App uncached = new App(context, pm, packageName, cache);
+        long uncachedDuration = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        App cached = new App(context, pm, packageName, cache);
+        long cachedDuration = System.currentTimeMillis() - start;
+
+        Log.i(TAG, "Adding " + packageName + " took " + uncachedDuration + "ms, and "
+                + cachedDuration + "ms once its apk details were cached");
+
+        assertEquals(uncached.installedApk.hash, cached.installedApk.hash);
+        assertEquals(uncached.installedApk.sig, cached.installedApk.sig);
+        assertEquals(uncached.installedApk.minSdkVersion, cached.installedApk.minSdkVersion);
+        assertEquals(uncached.installedApk.maxSdkVersion, cached.installedApk.maxSdkVersion);
+        assertEquals(Utils.getBinaryHash(uncached.installedApk.installedFile, "sha256"), cached.installedApk.hash);
+    }
+
+}
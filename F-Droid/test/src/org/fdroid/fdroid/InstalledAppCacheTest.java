@@ -1,6 +1,15 @@
 package org.fdroid.fdroid;
 
+import android.content.BroadcastReceiver;
+import android.content.Intent;
+import android.net.Uri;
+import android.util.Log;
+
+import org.fdroid.fdroid.data.InstalledAppCacheService;
+import org.fdroid.fdroid.data.InstalledAppCacheUpdater;
 import org.fdroid.fdroid.data.InstalledAppProvider;
+import org.fdroid.fdroid.receiver.PackageAddedReceiver;
+import org.fdroid.fdroid.receiver.PackageRemovedReceiver;
 
 import mock.MockInstallablePackageManager;
 
@@ -12,6 +21,8 @@ import mock.MockInstallablePackageManager;
  */
 public class InstalledAppCacheTest extends FDroidProviderTest<InstalledAppProvider> {
 
+    private static final String TAG = "InstalledAppCacheTest";
+
     private MockInstallablePackageManager packageManager;
 
     public InstalledAppCacheTest() {
@@ -40,6 +51,78 @@ public class InstalledAppCacheTest extends FDroidProviderTest<InstalledAppProvid
         packageManager.remove(appId);
     }
 
+    public void testOnlyChangedAppsAreRelabelled() {
+        install("com.example.app1", 1, "v1");
+        install("com.example.app2", 1, "v1");
+        install("com.example.app3", 1, "v1");
+        InstalledAppCacheUpdater.updateInForeground(getMockContext());
+        assertEquals(3, packageManager.getApplicationInfoRequests());
+
+        InstalledAppCacheUpdater.updateInForeground(getMockContext());
+        assertEquals(3, packageManager.getApplicationInfoRequests());
+
+        // Reinstalling the same version still changes the last update time.
+        install("com.example.app1", 1, "v1");
+        install("com.example.app2", 2, "v2");
+        remove("com.example.app3");
+        InstalledAppCacheUpdater.updateInForeground(getMockContext());
+        assertEquals(5, packageManager.getApplicationInfoRequests());
+
+        assertResultCount(2, InstalledAppProvider.getContentUri());
+        assertIsInstalledVersionInDb("com.example.app1", 1, "v1");
+        assertIsInstalledVersionInDb("com.example.app2", 2, "v2");
+    }
+
+    public void testBroadcastsAreCoalesced() {
+        install("com.example.app1", 1, "v1");
+        install("com.example.app2", 1, "v1");
+        InstalledAppCacheUpdater.updateInForeground(getMockContext());
+        assertEquals(2, packageManager.getApplicationInfoRequests());
+
+        // Some devices upgrade an app by removing it and then adding it again.
+        remove("com.example.app1");
+        broadcast(new PackageRemovedReceiver(), Intent.ACTION_PACKAGE_REMOVED, "com.example.app1");
+        install("com.example.app1", 2, "v2");
+        broadcast(new PackageAddedReceiver(), Intent.ACTION_PACKAGE_ADDED, "com.example.app1");
+        remove("com.example.app2");
+        broadcast(new PackageRemovedReceiver(), Intent.ACTION_PACKAGE_REMOVED, "com.example.app2");
+
+        // Nothing is written until the service gets to the queue.
+        assertIsInstalledVersionInDb("com.example.app1", 1, "v1");
+        assertResultCount(2, InstalledAppProvider.getContentUri());
+
+        InstalledAppCacheService.processQueue(getSwappableContext());
+        assertEquals(3, packageManager.getApplicationInfoRequests());
+        assertResultCount(1, InstalledAppProvider.getContentUri());
+        assertIsInstalledVersionInDb("com.example.app1", 2, "v2");
+    }
+
+    private void broadcast(BroadcastReceiver receiver, String action, String appId) {
+        Intent intent = new Intent(action);
+        intent.setData(Uri.parse("package:" + appId));
+        receiver.onReceive(getSwappableContext(), intent);
+    }
+
+    public void testSyncBenchmark() {
+        final int apps = 300;
+        for (int i = 0; i < apps; i++) {
+            install("com.example.app" + i, 1, "v1");
+        }
+
+        long start = System.currentTimeMillis();
+        InstalledAppCacheUpdater.updateInForeground(getMockContext());
+        long coldDuration = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        InstalledAppCacheUpdater.updateInForeground(getMockContext());
+        long warmDuration = System.currentTimeMillis() - start;
+
+        Log.i(TAG, "Syncing " + apps + " apps into an empty cache took " + coldDuration
+                + "ms, syncing them again took " + warmDuration + "ms");
+        assertResultCount(apps, InstalledAppProvider.getContentUri());
+        assertEquals(apps, packageManager.getApplicationInfoRequests());
+    }
+
 /* TODO fix me
     public void testFromEmptyCache() {
         assertResultCount(0, InstalledAppProvider.getContentUri());
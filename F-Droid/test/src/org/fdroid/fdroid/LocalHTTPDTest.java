@@ -0,0 +1,322 @@
+package org.fdroid.fdroid;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import org.fdroid.fdroid.net.DownloaderFactory;
+import org.fdroid.fdroid.net.LocalHTTPD;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Random;
+
+import fi.iki.elonen.NanoHTTPD;
+
+public class LocalHTTPDTest extends InstrumentationTestCase {
+
+    private static final String TAG = "LocalHTTPDTest";
+
+    private static final int LARGE_FILE_SIZE = 32 * 1024 * 1024;
+    private static final int RANGE_FILE_SIZE = 100 * 1024;
+
+    private File webRoot;
+
+    /**
+     * Only written by the tests which need that much to download, see {@link #createLargeFile()}.
+     */
+    private File largeFile;
+    private LocalHTTPD httpd;
+    private String address;
+
+    /**
+     * Serves files the way LocalHTTPD used to, by giving NanoHTTPD an InputStream to copy
+     * from, to compare against.
+     */
+    private static class StreamingHTTPD extends NanoHTTPD {
+        private final File webRoot;
+
+        StreamingHTTPD(int port, File webRoot) {
+            super("127.0.0.1", port);
+            this.webRoot = webRoot;
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            try {
+                return new Response(Response.Status.OK, "application/octet-stream",
+                        new FileInputStream(new File(webRoot, session.getUri())));
+            } catch (FileNotFoundException e) {
+                return new Response(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not found");
+            }
+        }
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        webRoot = new File(TestUtils.getWriteableDir(getInstrumentation()), "webroot");
+        webRoot.mkdir();
+
+        FDroidApp.ipAddressString = "127.0.0.1";
+        FDroidApp.port = getFreePort();
+        address = "http://127.0.0.1:" + FDroidApp.port;
+        httpd = new LocalHTTPD(getInstrumentation().getTargetContext(), webRoot, false);
+        httpd.start();
+    }
+
+    @Override
+    protected void tearDown() {
+        httpd.stop();
+        if (largeFile != null) {
+            largeFile.delete();
+            largeFile = null;
+        }
+        webRoot.delete();
+    }
+
+    public void testServesWholeFile() throws IOException {
+        createLargeFile();
+        File downloaded = new File(webRoot.getParentFile(), "downloaded.apk");
+        DownloaderFactory.create(address + "/large.apk", downloaded).downloadUninterrupted();
+
+        assertEquals(largeFile.length(), downloaded.length());
+        assertEquals(Utils.getBinaryHash(largeFile, "sha256"), Utils.getBinaryHash(downloaded, "sha256"));
+        assertEquals(largeFile.length(), httpd.getStats().bytesServed);
+        downloaded.delete();
+    }
+
+    public void testTurnsAwayConnectionsWhenBusy() throws IOException {
+        FDroidApp.port = getFreePort();
+        LocalHTTPD busy = new LocalHTTPD(getInstrumentation().getTargetContext(), webRoot, false, 1, 1);
+        busy.start();
+
+        Socket handled = null;
+        Socket queued = null;
+        Socket rejected = null;
+        try {
+            // The first connection is kept alive waiting for a request, so it holds on to the
+            // only thread, the second has to wait for it, and there is no room for the third.
+            handled = new Socket("127.0.0.1", FDroidApp.port);
+            queued = new Socket("127.0.0.1", FDroidApp.port);
+            rejected = new Socket("127.0.0.1", FDroidApp.port);
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(rejected.getInputStream(), "US-ASCII"));
+            assertEquals("HTTP/1.1 503 Service Unavailable", reader.readLine().trim());
+
+            LocalHTTPD.Stats stats = busy.getStats();
+            assertEquals(1, stats.queuedConnections);
+            assertEquals(1, stats.rejectedConnections);
+            assertEquals(0, stats.bytesServed);
+        } finally {
+            for (Socket socket : new Socket[] {handled, queued, rejected}) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+            busy.stop();
+        }
+    }
+
+    public void testKeepAliveClientsHangUpWhenOthersAreWaiting() throws IOException, InterruptedException {
+        File smallFile = new File(webRoot, "small.apk");
+        writeRandomFile(smallFile, 1000);
+        FDroidApp.port = getFreePort();
+        LocalHTTPD busy = new LocalHTTPD(getInstrumentation().getTargetContext(), webRoot, false, 2, 4);
+        busy.start();
+
+        Socket first = null;
+        Socket second = null;
+        Socket waiting = null;
+        try {
+            // Both threads are taken by clients which keep their connections alive.
+            first = new Socket("127.0.0.1", FDroidApp.port);
+            second = new Socket("127.0.0.1", FDroidApp.port);
+            assertEquals("keep-alive", get(first, "/small.apk"));
+            assertEquals("keep-alive", get(second, "/small.apk"));
+
+            waiting = new Socket("127.0.0.1", FDroidApp.port);
+            for (int i = 0; i < 50 && busy.getStats().queuedConnections == 0; i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(1, busy.getStats().queuedConnections);
+
+            // The next client to be served is asked to hang up, which makes room for
+            // the waiting one long before the idle connection of the other times out.
+            assertEquals("close", get(first, "/small.apk"));
+            assertEquals(-1, first.getInputStream().read());
+            waiting.setSoTimeout(NanoHTTPD.SOCKET_READ_TIMEOUT / 2);
+            get(waiting, "/small.apk");
+            assertEquals(0, busy.getStats().rejectedConnections);
+        } finally {
+            for (Socket socket : new Socket[] {first, second, waiting}) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+            busy.stop();
+            smallFile.delete();
+        }
+    }
+
+    public void testServesRange() throws IOException {
+        File rangeFile = new File(webRoot, "range.apk");
+        writeRandomFile(rangeFile, RANGE_FILE_SIZE);
+        try {
+            long from = RANGE_FILE_SIZE - 1000;
+            HttpURLConnection connection = (HttpURLConnection) new URL(address + "/range.apk").openConnection();
+            connection.setRequestProperty("Range", "bytes=" + from + "-");
+            connection.setRequestProperty("Accept-Encoding", "identity");
+
+            assertEquals(HttpURLConnection.HTTP_PARTIAL, connection.getResponseCode());
+            assertEquals("1000", connection.getHeaderField("Content-Length"));
+            assertEquals("bytes " + from + "-" + (RANGE_FILE_SIZE - 1) + "/" + RANGE_FILE_SIZE,
+                    connection.getHeaderField("Content-Range"));
+
+            byte[] expected = new byte[1000];
+            InputStream file = new FileInputStream(rangeFile);
+            assertEquals(from, file.skip(from));
+            assertEquals(1000, file.read(expected));
+            file.close();
+
+            byte[] actual = new byte[1000];
+            InputStream input = connection.getInputStream();
+            int read = 0;
+            while (read < actual.length) {
+                int count = input.read(actual, read, actual.length - read);
+                assertTrue(count > 0);
+                read += count;
+            }
+            assertEquals(-1, input.read());
+            input.close();
+
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], actual[i]);
+            }
+        } finally {
+            rangeFile.delete();
+        }
+    }
+
+    public void testThroughput() throws IOException {
+        createLargeFile();
+        StreamingHTTPD streaming = new StreamingHTTPD(getFreePort(), webRoot);
+        streaming.start();
+        String streamingAddress = "http://127.0.0.1:" + streaming.getListeningPort();
+
+        File downloaded = new File(webRoot.getParentFile(), "downloaded.apk");
+        try {
+            // Warm up both, so that neither is measured reading the file from storage.
+            download(streamingAddress, downloaded);
+            download(address, downloaded);
+
+            long streamingDuration = 0;
+            long fileResponseDuration = 0;
+            for (int i = 0; i < 3; i++) {
+                streamingDuration += download(streamingAddress, downloaded);
+                fileResponseDuration += download(address, downloaded);
+            }
+
+            Log.i(TAG, "Downloading " + LARGE_FILE_SIZE / 1024 / 1024 + "MiB three times: InputStream response took "
+                    + streamingDuration + "ms (" + megabytesPerSecond(3, streamingDuration) + "MiB/s), file response took "
+                    + fileResponseDuration + "ms (" + megabytesPerSecond(3, fileResponseDuration) + "MiB/s)");
+        } finally {
+            streaming.stop();
+            downloaded.delete();
+        }
+    }
+
+    /**
+     * Big enough for the time spent copying it to outweigh everything else about a request.
+     * Deleted again in {@link #tearDown()}.
+     */
+    private void createLargeFile() throws IOException {
+        largeFile = new File(webRoot, "large.apk");
+        writeRandomFile(largeFile, LARGE_FILE_SIZE);
+    }
+
+    private long download(String serverAddress, File downloaded) throws IOException {
+        downloaded.delete();
+        long start = System.currentTimeMillis();
+        DownloaderFactory.create(serverAddress + "/large.apk", downloaded).downloadUninterrupted();
+        long duration = System.currentTimeMillis() - start;
+        assertEquals(LARGE_FILE_SIZE, downloaded.length());
+        return duration;
+    }
+
+    /**
+     * Makes a request on a connection which may be used again, and reads the whole response.
+     * @return The Connection header of the response.
+     */
+    private static String get(Socket socket, String path) throws IOException {
+        OutputStream output = socket.getOutputStream();
+        output.write(("GET " + path + " HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n").getBytes("US-ASCII"));
+        output.flush();
+
+        // Read a byte at a time, so that nothing after the headers is buffered away.
+        InputStream input = socket.getInputStream();
+        String connection = null;
+        long length = 0;
+        String line = readLine(input);
+        assertTrue(line, line.startsWith("HTTP/1.1 200"));
+        while ((line = readLine(input)).length() > 0) {
+            String[] header = line.split(":", 2);
+            if (header[0].equalsIgnoreCase("Connection")) {
+                connection = header[1].trim();
+            } else if (header[0].equalsIgnoreCase("Content-Length")) {
+                length = Long.parseLong(header[1].trim());
+            }
+        }
+        for (long i = 0; i < length; i++) {
+            assertTrue(input.read() != -1);
+        }
+        return connection;
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = input.read()) != '\n') {
+            assertTrue(c != -1);
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static long megabytesPerSecond(int count, long durationMs) {
+        return durationMs == 0 ? 0 : (long) count * LARGE_FILE_SIZE * 1000 / 1024 / 1024 / durationMs;
+    }
+
+    private static int getFreePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    private static void writeRandomFile(File file, int size) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        Random random = new Random(size);
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            for (int written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                output.write(buffer, 0, Math.min(buffer.length, size - written));
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+}
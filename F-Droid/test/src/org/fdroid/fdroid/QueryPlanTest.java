@@ -0,0 +1,189 @@
+package org.fdroid.fdroid;
+
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.fdroid.fdroid.data.ApkProvider;
+import org.fdroid.fdroid.data.AppProvider;
+import org.fdroid.fdroid.mock.MockRepo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs EXPLAIN QUERY PLAN on the SQL behind each URI of the {@link AppProvider} and
+ * {@link ApkProvider}, both for querying and for deleting, and fails if SQLite would read
+ * every row of a table which it should have been able to find the rows it needs in using
+ * an index. When adding a URI, or changing the query behind one, add it here too.
+ */
+public class QueryPlanTest extends FDroidProviderTest<QueryPlanTest.ExplainedAppProvider> {
+
+    /**
+     * Returns the query plan, rather than the results, of each query. Deletes don't delete
+     * anything, their plan is kept in {@link #deletePlan} instead.
+     */
+    public static class ExplainedAppProvider extends AppProvider {
+        Cursor deletePlan;
+
+        @Override
+        protected Cursor rawQuery(String sql, String[] args) {
+            return super.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        }
+
+        @Override
+        protected int rawDelete(String table, String selection, String[] args) {
+            deletePlan = rawQuery("DELETE FROM " + table + " WHERE " + selection, args);
+            return 0;
+        }
+    }
+
+    public static class ExplainedApkProvider extends ApkProvider {
+        Cursor deletePlan;
+
+        @Override
+        protected Cursor rawQuery(String sql, String[] args) {
+            return super.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        }
+
+        @Override
+        protected int rawDelete(String table, String selection, String[] args) {
+            deletePlan = rawQuery("DELETE FROM " + table + " WHERE " + selection, args);
+            return 0;
+        }
+    }
+
+    /**
+     * Older versions of SQLite say "SCAN TABLE fdroid_apk AS apk", newer ones just "SCAN apk".
+     */
+    private static final Pattern SCAN = Pattern.compile("^SCAN (?:TABLE )?(\\S+)(?: AS (\\S+))?");
+
+    private static final String[] APP_PROJECTION = {
+        AppProvider.DataColumns.APP_ID,
+        AppProvider.DataColumns.NAME,
+    };
+
+    private static final String[] APK_PROJECTION = {
+        ApkProvider.DataColumns.APK_ID,
+        ApkProvider.DataColumns.VERSION_CODE,
+    };
+
+    private ExplainedApkProvider apkProvider;
+
+    public QueryPlanTest() {
+        super(ExplainedAppProvider.class, AppProvider.getAuthority());
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        // The base class has already added a real ApkProvider, this replaces it.
+        apkProvider = new ExplainedApkProvider();
+        apkProvider.attachInfo(getMockContext(), null);
+        getMockContentResolver().addProvider(apkProvider.getName(), apkProvider);
+    }
+
+    @Override
+    protected String[] getMinimalProjection() {
+        return APP_PROJECTION;
+    }
+
+    public void testAppUris() {
+        // Lists of apps which aren't filtered by anything indexed have to look at every app,
+        // but should never need to look at every apk.
+        assertScansOnly(AppProvider.getContentUri(), "fdroid_app");
+        assertScansOnly(AppProvider.getNoApksUri(), "fdroid_app");
+        assertScansOnly(AppProvider.getIgnoredUri(), "fdroid_app");
+        assertScansOnly(AppProvider.getInstalledUri(), "fdroid_app", "fdroid_installedApp", "installed");
+        assertScansOnly(AppProvider.getCanUpdateUri(), "fdroid_app", "fdroid_installedApp", "installed");
+
+        // Depending on the version of SQLite, the LEFT JOIN from apps to apks may stop it from
+        // starting with the apk table, in which case it goes through the apps instead.
+        assertScansOnly(AppProvider.getRepoUri(new MockRepo(1)), "fdroid_app");
+
+        assertScansOnly(AppProvider.getContentUri("org.fdroid.fdroid"));
+        assertScansOnly(AppProvider.getSearchUri("fdroid"));
+        assertScansOnly(AppProvider.getCategoryUri("Internet"));
+
+        // The list of categories is the list of everything in the (small) category index.
+        assertScansOnly(AppProvider.getCategoriesUri(), "fdroid_app_category", "fdroid_repo", "swapRepo");
+
+        // Neither date is indexed, so these look at every app too.
+        assertScansOnly(AppProvider.getRecentlyUpdatedUri(), "fdroid_app");
+        assertScansOnly(AppProvider.getNewlyAddedUri(), "fdroid_app");
+    }
+
+    public void testApkUris() {
+        assertScansOnly(ApkProvider.getContentUri(), APK_PROJECTION, null, "fdroid_apk", "apk");
+        assertScansOnly(ApkProvider.getContentUri("org.fdroid.fdroid", 10), APK_PROJECTION, null);
+        assertScansOnly(ApkProvider.getAppUri("org.fdroid.fdroid"), APK_PROJECTION, null);
+        assertScansOnly(ApkProvider.getRepoUri(1), APK_PROJECTION, null);
+    }
+
+    public void testDeleteUris() {
+        // Apps without apks are only found by looking at every app.
+        assertDeleteScansOnly(AppProvider.getNoApksUri(), "fdroid_app");
+
+        assertDeleteScansOnly(ApkProvider.getRepoUri(1));
+        assertDeleteScansOnly(ApkProvider.getAppUri("org.fdroid.fdroid"));
+        // What ApkProvider.Helper.deleteApks() deletes through.
+        assertDeleteScansOnly(Uri.withAppendedPath(ApkProvider.getLookupUri(1), "apks"));
+    }
+
+    private void assertScansOnly(Uri uri, String... tablesAllowedToScan) {
+        assertScansOnly(uri, APP_PROJECTION, AppProvider.DataColumns.NAME, tablesAllowedToScan);
+    }
+
+    /**
+     * @param tablesAllowedToScan Tables (or their aliases) which the query can read all of.
+     */
+    private void assertScansOnly(Uri uri, String[] projection, String sortOrder, String... tablesAllowedToScan) {
+        Cursor cursor = getMockContentResolver().query(uri, projection, null, null, sortOrder);
+        assertPlanScansOnly("Query for " + uri, cursor, tablesAllowedToScan);
+    }
+
+    private void assertDeleteScansOnly(Uri uri, String... tablesAllowedToScan) {
+        getProvider().deletePlan = null;
+        apkProvider.deletePlan = null;
+        getMockContentResolver().delete(uri, null, null);
+        Cursor plan = AppProvider.getAuthority().equals(uri.getAuthority())
+                ? getProvider().deletePlan
+                : apkProvider.deletePlan;
+        assertPlanScansOnly("Delete of " + uri, plan, tablesAllowedToScan);
+    }
+
+    private void assertPlanScansOnly(String description, Cursor cursor, String... tablesAllowedToScan) {
+        final List<String> allowed = Arrays.asList(tablesAllowedToScan);
+        final List<String> plan = new ArrayList<>();
+        final List<String> fullScans = new ArrayList<>();
+
+        assertNotNull(description, cursor);
+        int detailColumn = cursor.getColumnIndex("detail");
+        while (cursor.moveToNext()) {
+            String detail = cursor.getString(detailColumn);
+            plan.add(detail);
+
+            // Queries against the full text index show up as scans of the virtual table.
+            Matcher scan = SCAN.matcher(detail);
+            if (!scan.find() || detail.contains("VIRTUAL TABLE")) {
+                continue;
+            }
+
+            String table = scan.group(1);
+            String alias = scan.group(2);
+            if (!allowed.contains(table) && (alias == null || !allowed.contains(alias))) {
+                fullScans.add(detail);
+            }
+        }
+        cursor.close();
+
+        if (fullScans.size() > 0) {
+            fail(description + " reads every row of a table: " + TestUtils.listToString(fullScans) +
+                    "\nFull query plan: " + TestUtils.listToString(plan));
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+package org.fdroid.fdroid;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.ApkProvider;
+import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.mock.MockApk;
+import org.fdroid.fdroid.mock.MockApp;
+import org.fdroid.fdroid.mock.MockRepo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+public class RepoPersisterTest extends FDroidProviderTest<ApkProvider> {
+
+    public RepoPersisterTest() {
+        super(ApkProvider.class, ApkProvider.getAuthority());
+    }
+
+    @Override
+    protected String[] getMinimalProjection() {
+        return new String[] {
+            ApkProvider.DataColumns.APK_ID,
+            ApkProvider.DataColumns.VERSION_CODE,
+        };
+    }
+
+    public void testCommitDeltaRemovesOnlyApksOfChangedApps() throws RepoUpdater.UpdateException {
+        insertApk("org.example.changed", 1, 1);
+        insertApk("org.example.changed", 2, 1);
+        insertApk("org.example.changed", 3, 2);
+        insertApk("org.example.removed", 1, 1);
+        insertApk("org.example.untouched", 1, 1);
+
+        Repo repo = new MockRepo(1);
+        RepoPersister persister = new RepoPersister(getPersisterContext(), repo);
+        persister.receiveApp(createApp("org.example.changed"), Collections.singletonList(createApk("org.example.changed", 2, repo)));
+        persister.commitDelta(Collections.singletonList("org.example.removed"));
+
+        assertVersionCodes("org.example.changed", 3, 2);
+        assertVersionCodes("org.example.removed");
+        assertVersionCodes("org.example.untouched", 1);
+        assertEquals(new HashSet<>(Arrays.asList("org.example.changed", "org.example.removed")), persister.getChangedAppIds());
+    }
+
+    private void insertApk(String id, int versionCode, long repoId) {
+        ContentValues values = new ContentValues(1);
+        values.put(ApkProvider.DataColumns.REPO_ID, repoId);
+        TestUtils.insertApk(this, id, versionCode, values);
+    }
+
+    private void assertVersionCodes(String appId, int... expected) {
+        List<Apk> apks = ApkProvider.Helper.findByApp(getSwappableContext(), appId, getMinimalProjection());
+        assertResultCount(expected.length, apks);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], apks.get(i).vercode);
+        }
+    }
+
+    private static App createApp(String id) {
+        App app = new MockApp(id);
+        app.summary = "test summary";
+        app.description = "test description";
+        app.license = "GPL?";
+        return app;
+    }
+
+    private static Apk createApk(String id, int versionCode, Repo repo) {
+        Apk apk = new MockApk(id, versionCode);
+        apk.repo = repo.getId();
+        apk.version = "v" + versionCode;
+        apk.hash = "11111111aaaaaaaa";
+        apk.apkName = id + "_" + versionCode + ".apk";
+        apk.size = 10000;
+        return apk;
+    }
+
+    /**
+     * The persister checks the compatibility of apks, which needs a real package manager
+     * and preferences, but everything else should go to the mock providers.
+     */
+    private Context getPersisterContext() {
+        return new ContextWrapper(getSwappableContext()) {
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+
+            @Override
+            public PackageManager getPackageManager() {
+                return getContext().getPackageManager();
+            }
+
+            @Override
+            public SharedPreferences getSharedPreferences(String name, int mode) {
+                return getContext().getSharedPreferences(name, mode);
+            }
+        };
+    }
+}
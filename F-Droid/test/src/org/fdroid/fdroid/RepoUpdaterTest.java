@@ -5,12 +5,14 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.test.InstrumentationTestCase;
 
-import org.apache.commons.io.FileUtils;
 import org.fdroid.fdroid.RepoUpdater.UpdateException;
 import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.mock.MockRepoServer;
+import org.fdroid.fdroid.net.Downloader;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 @TargetApi(8)
 public class RepoUpdaterTest extends InstrumentationTestCase {
@@ -22,6 +24,14 @@ public class RepoUpdaterTest extends InstrumentationTestCase {
 
     String simpleIndexPubkey = "308201ee30820157a0030201020204300d845b300d06092a864886f70d01010b0500302a3110300e060355040b1307462d44726f6964311630140603550403130d70616c6174736368696e6b656e301e170d3134303432373030303633315a170d3431303931323030303633315a302a3110300e060355040b1307462d44726f6964311630140603550403130d70616c6174736368696e6b656e30819f300d06092a864886f70d010101050003818d0030818902818100a439472e4b6d01141bfc94ecfe131c7c728fdda670bb14c57ca60bd1c38a8b8bc0879d22a0a2d0bc0d6fdd4cb98d1d607c2caefbe250a0bd0322aedeb365caf9b236992fac13e6675d3184a6c7c6f07f73410209e399a9da8d5d7512bbd870508eebacff8b57c3852457419434d34701ccbf692267cbc3f42f1c5d1e23762d790203010001a321301f301d0603551d0e041604140b1840691dab909746fde4bfe28207d1cae15786300d06092a864886f70d01010b05000381810062424c928ffd1b6fd419b44daafef01ca982e09341f7077fb865905087aeac882534b3bd679b51fdfb98892cef38b63131c567ed26c9d5d9163afc775ac98ad88c405d211d6187bde0b0d236381cc574ba06ef9080721a92ae5a103a7301b2c397eecc141cc850dd3e123813ebc41c59d31ddbcb6e984168280c53272f6a442b";
 
+    // The cert deltaIndex.jar is signed with, which is a different one to simpleIndex.jar.
+    String deltaIndexPubkey = "308201ed30820156a003020102020900ff0695e1510ee4e5300d06092a864886f70d01010b05003026311230100603550403130964656c7461746573743110300e060355040b1307462d44726f69643020170d3236313031373036303935375a180f32303534303330343036303935375a3026311230100603550403130964656c7461746573743110300e060355040b1307462d44726f696430819f300d06092a864886f70d010101050003818d00308189028181008ddf2e5ab3d68a660747113a30f408fb0548252f3a0cc1e63d0657882288959ee230ab4ce320a7eaf9396b537d8c640cf870b62a2e5278db3185af955eb663b67eea3607e77d712cc83258889a5f2c9d9fdd9c6b91c3439b5cdc033703d349ef6b557ce138eb48c55dc942245fdc5dcafa1b2db32ac7549e2495f5b36513d3fb0203010001a321301f301d0603551d0e04160414054302c6efe27e501c2fde69a5faff124c534f5b300d06092a864886f70d01010b05000381810015ee6b053a7e9f68377a3b2dafff74642f238a29bb3b18ea34ad9996ab6e975b037ce6d2e74c4a0c9b8bc84f8bd786b6bcf620ac24570204f3b9e8c0f3cff86cc199bb227c45eb5ce7c073d525fdbc7b45c5d044af7f3ce56d98070f4f49384ad8e2c3f11317158524b4c3852ee2ef131db6ddd1e5d02261777f9d360419e69d";
+
+    // The timestamp of simpleIndex.xml, which deltaIndex.jar is relative to.
+    private static final long SIMPLE_INDEX_TIMESTAMP = 1398733213;
+
+    private MockRepoServer server;
+
     @Override
     protected void setUp() {
         context = getInstrumentation().getContext();
@@ -31,20 +41,22 @@ public class RepoUpdaterTest extends InstrumentationTestCase {
         repoUpdater = new RepoUpdater(context, repo);
     }
 
-    public void testExtractIndexFromJar() {
+    public void testParseIndexFromJar() {
         if (!testFilesDir.canWrite())
             return;
-        File simpleIndexXml = TestUtils.copyAssetToDir(context, "simpleIndex.xml", testFilesDir);
         File simpleIndexJar = TestUtils.copyAssetToDir(context, "simpleIndex.jar", testFilesDir);
-        File testFile = null;
 
         // these are supposed to succeed
         try {
-            testFile = repoUpdater.getIndexFromFile(simpleIndexJar);
-            assertTrue(testFile.length() == simpleIndexXml.length());
-            assertEquals(FileUtils.readFileToString(testFile),
-                    FileUtils.readFileToString(simpleIndexXml));
-        } catch (IOException | UpdateException e) {
+            RepoXMLHandler handler = createHandler(-1);
+            repoUpdater.parseIndexFromFile(simpleIndexJar, handler);
+            assertEquals("F-Droid", handler.getName());
+            assertEquals(12, handler.getVersion());
+            assertEquals(SIMPLE_INDEX_TIMESTAMP, handler.getTimestamp());
+            assertEquals(simpleIndexPubkey, handler.getPubKey());
+            assertEquals(0, handler.getApps().size());
+            assertFalse(handler.isDelta());
+        } catch (UpdateException e) {
             e.printStackTrace();
             fail();
         }
@@ -55,7 +67,7 @@ public class RepoUpdaterTest extends InstrumentationTestCase {
             return;
         // this is supposed to fail
         try {
-            repoUpdater.getIndexFromFile(TestUtils.copyAssetToDir(context, "simpleIndexWithoutSignature.jar", testFilesDir));
+            repoUpdater.parseIndexFromFile(TestUtils.copyAssetToDir(context, "simpleIndexWithoutSignature.jar", testFilesDir), createHandler(-1));
             fail();
         } catch (UpdateException e) {
             // success!
@@ -67,7 +79,7 @@ public class RepoUpdaterTest extends InstrumentationTestCase {
             return;
         // this is supposed to fail
         try {
-            repoUpdater.getIndexFromFile(TestUtils.copyAssetToDir(context, "simpleIndexWithCorruptedManifest.jar", testFilesDir));
+            repoUpdater.parseIndexFromFile(TestUtils.copyAssetToDir(context, "simpleIndexWithCorruptedManifest.jar", testFilesDir), createHandler(-1));
             fail();
         } catch (UpdateException e) {
             e.printStackTrace();
@@ -82,7 +94,7 @@ public class RepoUpdaterTest extends InstrumentationTestCase {
             return;
         // this is supposed to fail
         try {
-            repoUpdater.getIndexFromFile(TestUtils.copyAssetToDir(context, "simpleIndexWithCorruptedSignature.jar", testFilesDir));
+            repoUpdater.parseIndexFromFile(TestUtils.copyAssetToDir(context, "simpleIndexWithCorruptedSignature.jar", testFilesDir), createHandler(-1));
             fail();
         } catch (UpdateException e) {
             e.printStackTrace();
@@ -97,7 +109,7 @@ public class RepoUpdaterTest extends InstrumentationTestCase {
             return;
         // this is supposed to fail
         try {
-            repoUpdater.getIndexFromFile(TestUtils.copyAssetToDir(context, "simpleIndexWithCorruptedCertificate.jar", testFilesDir));
+            repoUpdater.parseIndexFromFile(TestUtils.copyAssetToDir(context, "simpleIndexWithCorruptedCertificate.jar", testFilesDir), createHandler(-1));
             fail();
         } catch (UpdateException e) {
             e.printStackTrace();
@@ -112,7 +124,7 @@ public class RepoUpdaterTest extends InstrumentationTestCase {
             return;
         // this is supposed to fail
         try {
-            repoUpdater.getIndexFromFile(TestUtils.copyAssetToDir(context, "simpleIndexWithCorruptedEverything.jar", testFilesDir));
+            repoUpdater.parseIndexFromFile(TestUtils.copyAssetToDir(context, "simpleIndexWithCorruptedEverything.jar", testFilesDir), createHandler(-1));
             fail();
         } catch (UpdateException e) {
             e.printStackTrace();
@@ -127,10 +139,154 @@ public class RepoUpdaterTest extends InstrumentationTestCase {
             return;
         // this is supposed to fail
         try {
-            repoUpdater.getIndexFromFile(TestUtils.copyAssetToDir(context, "masterKeyIndex.jar", testFilesDir));
+            repoUpdater.parseIndexFromFile(TestUtils.copyAssetToDir(context, "masterKeyIndex.jar", testFilesDir), createHandler(-1));
             fail();
         } catch (UpdateException | SecurityException e) {
             // success!
         }
     }
+
+    @Override
+    protected void tearDown() {
+        if (server != null) {
+            server.stop();
+            server = null;
+        }
+        context.getSharedPreferences(RepoUpdater.DELTA_PREFERENCES_FILE, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+    }
+
+    private Repo startServer(MockRepoServer mockServer, String pubkey, long timestamp) throws IOException {
+        server = mockServer;
+        server.start();
+
+        Repo repo = new Repo();
+        repo.address = server.getAddress();
+        repo.pubkey = pubkey;
+        repo.fingerprint = Utils.calcFingerprint(pubkey);
+        repo.lastetag = "\"previous-etag\"";
+        repo.timestamp = timestamp;
+        repoUpdater = new RepoUpdater(context, repo);
+        return repo;
+    }
+
+    public void testNoDeltaBeforeFirstFullIndex() throws IOException, UpdateException {
+        startServer(new MockRepoServer(context)
+                .serveAsset("/index.jar", "simpleIndex.jar")
+                .serveAsset("/index-delta.jar", "deltaIndex.jar"), simpleIndexPubkey, 0);
+
+        Downloader downloader = repoUpdater.downloadIndex();
+        downloader.getFile().delete();
+        assertEquals(Arrays.asList("/index.jar"), server.getRequestedPaths());
+    }
+
+    public void testFallsBackToFullIndexWithoutDelta() throws IOException, UpdateException {
+        if (!testFilesDir.canWrite())
+            return;
+        startServer(new MockRepoServer(context)
+                .serveAsset("/index.jar", "simpleIndex.jar"), simpleIndexPubkey, SIMPLE_INDEX_TIMESTAMP - 1000);
+
+        Downloader downloader = repoUpdater.downloadIndex();
+        assertEquals(Arrays.asList("/index-delta.jar", "/index.jar"), server.getRequestedPaths());
+        assertEquals(String.valueOf(SIMPLE_INDEX_TIMESTAMP - 1000), server.getRequestedParams().get(0).get("since"));
+
+        File simpleIndexJar = TestUtils.copyAssetToDir(context, "simpleIndex.jar", testFilesDir);
+        assertEquals(simpleIndexJar.length(), downloader.getFile().length());
+        downloader.getFile().delete();
+    }
+
+    public void testStopsAskingForMissingDelta() throws IOException, UpdateException {
+        startServer(new MockRepoServer(context)
+                .serveAsset("/index.jar", "simpleIndex.jar"), simpleIndexPubkey, SIMPLE_INDEX_TIMESTAMP - 1000);
+
+        repoUpdater.downloadIndex().getFile().delete();
+        repoUpdater.downloadIndex().getFile().delete();
+        assertEquals(Arrays.asList("/index-delta.jar", "/index.jar", "/index.jar"), server.getRequestedPaths());
+    }
+
+    public void testKeepsAskingForDeltaWhileIndexUnchanged() throws IOException, UpdateException {
+        Repo repo = startServer(new MockRepoServer(context)
+                .serveAsset("/index.jar", "simpleIndex.jar"), simpleIndexPubkey, SIMPLE_INDEX_TIMESTAMP - 1000);
+        repo.lastetag = MockRepoServer.getETag("simpleIndex.jar");
+
+        assertFalse(repoUpdater.downloadIndex().hasChanged());
+        assertFalse(repoUpdater.downloadIndex().hasChanged());
+        assertEquals(Arrays.asList("/index-delta.jar", "/index.jar", "/index-delta.jar", "/index.jar"),
+                server.getRequestedPaths());
+    }
+
+    public void testSendsEtagOfUnchangedDelta() throws IOException, UpdateException {
+        Repo repo = startServer(new MockRepoServer(context)
+                .serveAsset("/index-delta.jar", "deltaIndex.jar"), deltaIndexPubkey, SIMPLE_INDEX_TIMESTAMP);
+        String etag = MockRepoServer.getETag("deltaIndex.jar");
+        context.getSharedPreferences(RepoUpdater.DELTA_PREFERENCES_FILE, Context.MODE_PRIVATE).edit()
+                .putString(repo.address + " " + RepoUpdater.DELTA_ETAG, etag)
+                .putLong(repo.address + " " + RepoUpdater.DELTA_ETAG_SINCE, SIMPLE_INDEX_TIMESTAMP)
+                .commit();
+
+        Downloader downloader = repoUpdater.downloadIndex();
+        assertEquals(Arrays.asList("/index-delta.jar"), server.getRequestedPaths());
+        assertEquals(etag, server.getRequestedHeaders().get(0).get("if-none-match"));
+        assertFalse(downloader.hasChanged());
+    }
+
+    public void testIgnoresEtagOfDeltaAgainstOtherIndex() throws IOException, UpdateException {
+        Repo repo = startServer(new MockRepoServer(context)
+                .serveAsset("/index-delta.jar", "deltaIndex.jar"), deltaIndexPubkey, SIMPLE_INDEX_TIMESTAMP);
+        context.getSharedPreferences(RepoUpdater.DELTA_PREFERENCES_FILE, Context.MODE_PRIVATE).edit()
+                .putString(repo.address + " " + RepoUpdater.DELTA_ETAG, MockRepoServer.getETag("deltaIndex.jar"))
+                .putLong(repo.address + " " + RepoUpdater.DELTA_ETAG_SINCE, SIMPLE_INDEX_TIMESTAMP - 1000)
+                .commit();
+
+        Downloader downloader = repoUpdater.downloadIndex();
+        assertNull(server.getRequestedHeaders().get(0).get("if-none-match"));
+        assertTrue(downloader.hasChanged());
+        downloader.getFile().delete();
+    }
+
+    public void testDownloadsAndVerifiesDelta() throws IOException, UpdateException {
+        startServer(new MockRepoServer(context)
+                .serveAsset("/index.jar", "simpleIndex.jar")
+                .serveAsset("/index-delta.jar", "deltaIndex.jar"), deltaIndexPubkey, SIMPLE_INDEX_TIMESTAMP);
+
+        Downloader downloader = repoUpdater.downloadIndex();
+        assertEquals(Arrays.asList("/index-delta.jar"), server.getRequestedPaths());
+
+        RepoXMLHandler handler = createHandler(SIMPLE_INDEX_TIMESTAMP);
+        repoUpdater.parseIndexFromFile(downloader.getFile(), handler);
+        downloader.getFile().delete();
+
+        assertTrue(handler.isDelta());
+        assertEquals(SIMPLE_INDEX_TIMESTAMP, handler.getDeltaSince());
+        assertEquals(1398819613, handler.getTimestamp());
+        assertEquals(1, handler.getApps().size());
+        assertEquals("org.fdroid.fdroid", handler.getApps().get(0).id);
+        assertEquals(2, handler.getApks().size());
+        assertEquals(Arrays.asList("org.example.removed"), handler.getRemovedAppIds());
+    }
+
+    public void testRejectsDeltaAgainstOtherIndex() throws IOException, UpdateException {
+        startServer(new MockRepoServer(context)
+                .serveAsset("/index-delta.jar", "deltaIndex.jar"), deltaIndexPubkey, SIMPLE_INDEX_TIMESTAMP);
+
+        Downloader downloader = repoUpdater.downloadIndex();
+        try {
+            repoUpdater.parseIndexFromFile(downloader.getFile(), createHandler(SIMPLE_INDEX_TIMESTAMP + 1));
+            fail();
+        } catch (UpdateException e) {
+            assertTrue(e.getCause() instanceof RepoXMLHandler.DeltaMismatchException);
+        } finally {
+            downloader.getFile().delete();
+        }
+    }
+
+    private RepoXMLHandler createHandler(long expectedDeltaSince) {
+        RepoXMLHandler handler = new RepoXMLHandler(new Repo(), new ProgressListener() {
+            @Override
+            public void onProgress(Event event) {
+            }
+        });
+        handler.setExpectedDeltaSince(expectedDeltaSince);
+        return handler;
+    }
 }
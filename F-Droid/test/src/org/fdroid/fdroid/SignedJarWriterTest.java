@@ -0,0 +1,167 @@
+package org.fdroid.fdroid;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.localrepo.LocalRepoKeyStore;
+import org.fdroid.fdroid.localrepo.LocalRepoManager;
+import org.fdroid.fdroid.localrepo.SignedJarWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import kellinwood.security.zipsigner.ZipSigner;
+
+public class SignedJarWriterTest extends InstrumentationTestCase {
+
+    private static final String TAG = "SignedJarWriterTest";
+
+    private static final int APP_COUNT = 500;
+
+    private Context context;
+    private LocalRepoKeyStore keyStore;
+    private Map<String, App> apps;
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        context = getInstrumentation().getTargetContext();
+        keyStore = LocalRepoKeyStore.get(context);
+        dir = TestUtils.getWriteableDir(getInstrumentation());
+
+        // The same installed app over and over is enough to make an index of the right size.
+        App app = new App(context, context.getPackageManager(), context.getPackageName(), null);
+        apps = new HashMap<>(APP_COUNT);
+        for (int i = 0; i < APP_COUNT; i++) {
+            apps.put(app.id + i, app);
+        }
+    }
+
+    public void testIndexIsSigned() throws Exception {
+        File indexJar = new File(dir, "index.jar");
+        try {
+            writeStreaming(indexJar);
+            assertSignedIndex(indexJar);
+        } finally {
+            indexJar.delete();
+        }
+    }
+
+    public void testIndexBenchmark() throws Exception {
+        File streamingJar = new File(dir, "streaming.jar");
+        File zipSignerJar = new File(dir, "zipsigner.jar");
+        try {
+            // Warm up both, so that neither is measured loading classes or the keystore.
+            writeStreaming(streamingJar);
+            writeWithZipSigner(zipSignerJar);
+
+            long streamingDuration = 0;
+            long zipSignerDuration = 0;
+            for (int i = 0; i < 3; i++) {
+                long start = System.currentTimeMillis();
+                writeStreaming(streamingJar);
+                streamingDuration += System.currentTimeMillis() - start;
+
+                start = System.currentTimeMillis();
+                writeWithZipSigner(zipSignerJar);
+                zipSignerDuration += System.currentTimeMillis() - start;
+            }
+
+            Log.i(TAG, "Writing a signed index of " + APP_COUNT + " apps three times: ZipSigner took "
+                    + zipSignerDuration + "ms, streaming took " + streamingDuration + "ms");
+
+            assertSignedIndex(streamingJar);
+            assertSignedIndex(zipSignerJar);
+        } finally {
+            streamingJar.delete();
+            zipSignerJar.delete();
+        }
+    }
+
+    private void writeStreaming(File indexJar) throws Exception {
+        SignedJarWriter jar = keyStore.createSignedJarWriter(
+                new BufferedOutputStream(new FileOutputStream(indexJar)));
+        Writer writer = new OutputStreamWriter(jar.putNextEntry("index.xml"), "UTF-8");
+        new LocalRepoManager.IndexXmlBuilder(context, apps).build(writer);
+        writer.close();
+        jar.finish();
+    }
+
+    /**
+     * How the index used to be written: to index.xml, then copied into an unsigned jar,
+     * which ZipSigner read back to sign.
+     */
+    private void writeWithZipSigner(File indexJar) throws Exception {
+        File xmlIndex = new File(dir, "index.xml");
+        File unsignedJar = new File(dir, "index.unsigned.jar");
+        try {
+            Writer writer = new FileWriter(xmlIndex);
+            new LocalRepoManager.IndexXmlBuilder(context, apps).build(writer);
+            writer.close();
+
+            JarOutputStream jo = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(unsignedJar)));
+            BufferedInputStream bi = new BufferedInputStream(new FileInputStream(xmlIndex));
+            jo.putNextEntry(new JarEntry("index.xml"));
+            byte[] buf = new byte[1024];
+            int bytesRead;
+            while ((bytesRead = bi.read(buf)) != -1) {
+                jo.write(buf, 0, bytesRead);
+            }
+            bi.close();
+            jo.close();
+
+            ZipSigner zipSigner = new ZipSigner();
+            PrivateKey key = (PrivateKey) keyStore.getKeyStore().getKey(LocalRepoKeyStore.INDEX_CERT_ALIAS, "".toCharArray());
+            zipSigner.setKeys("kerplapp", (X509Certificate) keyStore.getCertificate(), key, "SHA1withRSA", null);
+            zipSigner.signZip(unsignedJar.getAbsolutePath(), indexJar.getAbsolutePath());
+        } finally {
+            xmlIndex.delete();
+            unsignedJar.delete();
+        }
+    }
+
+    private void assertSignedIndex(File indexJar) throws Exception {
+        JarFile jarFile = new JarFile(indexJar, true);
+        try {
+            JarEntry indexEntry = (JarEntry) jarFile.getEntry("index.xml");
+            assertNotNull(indexEntry);
+
+            // The certificates are only known once the entry has been read, and reading
+            // it throws a SecurityException if its digest doesn't match the manifest.
+            InputStream input = jarFile.getInputStream(indexEntry);
+            byte[] buffer = new byte[8192];
+            long length = 0;
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                length += count;
+            }
+            input.close();
+            assertTrue(length > 0);
+
+            Certificate[] certs = indexEntry.getCertificates();
+            assertNotNull(certs);
+            assertEquals(1, certs.length);
+            assertEquals(keyStore.getCertificate(), certs[0]);
+        } finally {
+            jarFile.close();
+        }
+    }
+
+}
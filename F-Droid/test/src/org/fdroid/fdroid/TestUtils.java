@@ -13,6 +13,7 @@ import junit.framework.AssertionFailedError;
 
 import org.fdroid.fdroid.data.ApkProvider;
 import org.fdroid.fdroid.data.AppProvider;
+import org.fdroid.fdroid.data.InstalledAppCacheService;
 import org.fdroid.fdroid.receiver.PackageAddedReceiver;
 import org.fdroid.fdroid.receiver.PackageRemovedReceiver;
 import org.fdroid.fdroid.receiver.PackageUpgradedReceiver;
@@ -118,11 +119,11 @@ public class TestUtils {
         resolver.insert(uri, values);
     }
 
-    public static Uri insertApk(FDroidProviderTest<ApkProvider> providerTest, String id, int versionCode) {
+    public static Uri insertApk(FDroidProviderTest<?> providerTest, String id, int versionCode) {
         return insertApk(providerTest, id, versionCode, new ContentValues());
     }
 
-    public static Uri insertApk(FDroidProviderTest<ApkProvider> providerTest, String id, int versionCode, ContentValues additionalValues) {
+    public static Uri insertApk(FDroidProviderTest<?> providerTest, String id, int versionCode, ContentValues additionalValues) {
 
         ContentValues values = new ContentValues();
 
@@ -147,7 +148,8 @@ public class TestUtils {
     /**
      * Will tell {@code pm} that we are installing {@code appId}, and then alert the
      * {@link org.fdroid.fdroid.receiver.PackageAddedReceiver}. This will in turn update the
-     * "installed apps" table in the database.
+     * "installed apps" table in the database, once the {@link InstalledAppCacheService} has
+     * processed its queue, which is done straight away here.
      */
     public static void installAndBroadcast(
             MockContextSwappableComponents context,  MockInstallablePackageManager pm,
@@ -158,6 +160,7 @@ public class TestUtils {
         Intent installIntent = new Intent(Intent.ACTION_PACKAGE_ADDED);
         installIntent.setData(Uri.parse("package:" + appId));
         new PackageAddedReceiver().onReceive(context, installIntent);
+        InstalledAppCacheService.processQueue(context);
 
     }
 
@@ -176,6 +179,7 @@ public class TestUtils {
         Intent installIntent = new Intent(Intent.ACTION_PACKAGE_CHANGED);
         installIntent.setData(Uri.parse("package:" + appId));
         new PackageUpgradedReceiver().onReceive(context, installIntent);
+        InstalledAppCacheService.processQueue(context);
 
     }
 
@@ -189,6 +193,7 @@ public class TestUtils {
         Intent installIntent = new Intent(Intent.ACTION_PACKAGE_REMOVED);
         installIntent.setData(Uri.parse("package:" + appId));
         new PackageRemovedReceiver().onReceive(context, installIntent);
+        InstalledAppCacheService.processQueue(context);
 
     }
 
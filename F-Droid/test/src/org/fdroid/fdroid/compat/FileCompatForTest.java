@@ -24,5 +24,14 @@ public class FileCompatForTest extends FileCompat {
         symlinkLibcore(source, dest);
     }
 
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public static void linkOsTest(SanitizedFile source, SanitizedFile dest) {
+        linkOs(source, dest);
+    }
+
+    public static void linkLibcoreTest(SanitizedFile source, SanitizedFile dest) {
+        linkLibcore(source, dest);
+    }
+
 
 }
@@ -0,0 +1,109 @@
+package org.fdroid.fdroid.localrepo;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.test.InstrumentationTestCase;
+
+import org.fdroid.fdroid.data.App;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Uses F-Droid itself and this test package as the apps to swap, because they are always
+ * installed while the tests run.
+ */
+public class LocalRepoManagerTest extends InstrumentationTestCase {
+
+    private static final String FDROID = "org.fdroid.fdroid";
+    private static final String TESTS = "org.fdroid.fdroid.tests";
+
+    private Context context;
+    private LocalRepoManager lrm;
+
+    @Override
+    protected void setUp() {
+        context = getInstrumentation().getTargetContext();
+        lrm = LocalRepoManager.get(context);
+        lrm.deleteRepo();
+    }
+
+    @Override
+    protected void tearDown() {
+        lrm.deleteRepo();
+    }
+
+    public void testIsOutOfDate() throws Exception {
+        App app = new App(context, context.getPackageManager(), FDROID, null);
+        assertFalse(lrm.isOutOfDate(app));
+
+        app.installedApk.vercode--;
+        assertTrue(lrm.isOutOfDate(app));
+        app.installedApk.vercode++;
+
+        app.lastUpdated = new Date(0);
+        assertTrue(lrm.isOutOfDate(app));
+
+        app.id = "org.example.not.installed";
+        assertTrue(lrm.isOutOfDate(app));
+    }
+
+    public void testUnchangedAppIsNotCopiedAgain() {
+        assertEquals(Collections.singletonList(FDROID), update(FDROID));
+        File apk = getApkFile(FDROID);
+        assertTrue(apk.exists());
+
+        assertEquals(Collections.<String>emptyList(), update(FDROID));
+        assertTrue(apk.exists());
+        assertEquals(Collections.singletonList(FDROID), lrm.getApps());
+    }
+
+    public void testFilesOfRemovedAppAreDeleted() {
+        List<String> added = update(FDROID, TESTS);
+        assertEquals(new HashSet<>(Arrays.asList(FDROID, TESTS)), new HashSet<>(added));
+        File fdroidApk = getApkFile(FDROID);
+        File testsApk = getApkFile(TESTS);
+        assertTrue(testsApk.exists());
+
+        assertEquals(Collections.<String>emptyList(), update(FDROID));
+        assertFalse(testsApk.exists());
+        assertTrue(fdroidApk.exists());
+        assertEquals(Collections.singletonList(FDROID), lrm.getApps());
+    }
+
+    public void testUpdatedApkReplacesOldOne() throws IOException {
+        File current = getApkFile(FDROID);
+        File old = new File(lrm.repoDir, FDROID + "_0.apk");
+        assertFalse(current.equals(old));
+        assertTrue(old.createNewFile());
+
+        assertEquals(Collections.singletonList(FDROID), update(FDROID));
+        assertTrue(current.exists());
+        assertFalse(old.exists());
+    }
+
+    /**
+     * Does what swapping does each time the apps to swap are chosen, except for writing the
+     * index, which doesn't decide which files are kept.
+     */
+    private List<String> update(String... packageNames) {
+        List<String> added = lrm.updateApps(context, new HashSet<>(Arrays.asList(packageNames)));
+        lrm.copyApksToRepo(added);
+        lrm.deleteUnusedFiles();
+        return added;
+    }
+
+    private File getApkFile(String packageName) {
+        try {
+            int versionCode = context.getPackageManager().getPackageInfo(packageName, 0).versionCode;
+            return new File(lrm.repoDir, packageName + "_" + versionCode + ".apk");
+        } catch (PackageManager.NameNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
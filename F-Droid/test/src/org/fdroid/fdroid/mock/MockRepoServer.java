@@ -0,0 +1,211 @@
+package org.fdroid.fdroid.mock;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.fdroid.fdroid.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Stands in for the web server of a repo. Serves test assets at whichever paths they
+ * have been registered for, and responds with a 404 to everything else. Every request
+ * is remembered, so that tests can check which files a client asked for.
+ *
+ * Like a real server, it supports conditional requests (If-None-Match), requests for
+ * byte ranges (including If-Range), and can be told to drop each connection part way through a response.
+ */
+public class MockRepoServer extends NanoHTTPD {
+
+    private static final String TAG = "MockRepoServer";
+
+    private final Context context;
+    private final Map<String, String> assetsByPath = new HashMap<>();
+    private final List<String> requestedPaths = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Map<String, String>> requestedParams = Collections.synchronizedList(new ArrayList<Map<String, String>>());
+    private final List<Map<String, String>> requestedHeaders = Collections.synchronizedList(new ArrayList<Map<String, String>>());
+
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private int dropConnectionsAfter = -1;
+
+    /**
+     * @param context Used to read assets, so should be the context of the test package.
+     */
+    public MockRepoServer(Context context) {
+        // Port 0 lets the OS pick a free port, see getAddress().
+        super("127.0.0.1", 0);
+        this.context = context;
+    }
+
+    public MockRepoServer serveAsset(String path, String assetName) {
+        assetsByPath.put(path, assetName);
+        return this;
+    }
+
+    /**
+     * Closes the connection once this many bytes (including headers) of a response
+     * have been sent, as a flaky network might.
+     */
+    public MockRepoServer dropConnectionsAfter(int bytes) {
+        dropConnectionsAfter = bytes;
+        return this;
+    }
+
+    public String getAddress() {
+        return "http://127.0.0.1:" + getListeningPort();
+    }
+
+    public List<String> getRequestedPaths() {
+        return requestedPaths;
+    }
+
+    /**
+     * How many connections clients have made, which is fewer than the number of requests
+     * if they are reusing keep-alive connections.
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    @Override
+    public synchronized void registerConnection(Socket socket) {
+        connectionCount.incrementAndGet();
+        super.registerConnection(socket);
+    }
+
+    public List<Map<String, String>> getRequestedParams() {
+        return requestedParams;
+    }
+
+    /**
+     * Header names are all lower case.
+     */
+    public List<Map<String, String>> getRequestedHeaders() {
+        return requestedHeaders;
+    }
+
+    public static String getETag(String assetName) {
+        return "\"" + assetName + "\"";
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+        Log.d(TAG, session.getMethod() + " " + session.getUri());
+        requestedPaths.add(session.getUri());
+        requestedParams.add(new HashMap<>(session.getParms()));
+        requestedHeaders.add(new HashMap<>(session.getHeaders()));
+
+        String assetName = assetsByPath.get(session.getUri());
+        if (assetName == null) {
+            return new Response(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not found");
+        }
+
+        byte[] asset;
+        try {
+            asset = readAsset(assetName);
+        } catch (IOException e) {
+            return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, e.getMessage());
+        }
+
+        String etag = getETag(assetName);
+        if (etag.equals(session.getHeaders().get("if-none-match"))) {
+            Response response = new DroppableResponse(Response.Status.NOT_MODIFIED, MIME_PLAINTEXT, "");
+            response.addHeader("ETag", etag);
+            return response;
+        }
+
+        String range = session.getHeaders().get("range");
+        String ifRange = session.getHeaders().get("if-range");
+        int from = 0;
+        if (range != null && range.startsWith("bytes=") && range.endsWith("-") && (ifRange == null || ifRange.equals(etag))) {
+            from = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+            if (from >= asset.length) {
+                Response response = new DroppableResponse(Response.Status.RANGE_NOT_SATISFIABLE, MIME_PLAINTEXT, "");
+                response.addHeader("Content-Range", "bytes */" + asset.length);
+                return response;
+            }
+        }
+
+        InputStream data = new ByteArrayInputStream(asset, from, asset.length - from);
+        Response response;
+        if (from > 0) {
+            response = new DroppableResponse(Response.Status.PARTIAL_CONTENT, "application/java-archive", data);
+            response.addHeader("Content-Range", "bytes " + from + "-" + (asset.length - 1) + "/" + asset.length);
+        } else {
+            response = new DroppableResponse(Response.Status.OK, "application/java-archive", data);
+        }
+        response.addHeader("ETag", etag);
+        response.addHeader("Accept-Ranges", "bytes");
+        return response;
+    }
+
+    private byte[] readAsset(String assetName) throws IOException {
+        InputStream input = context.getAssets().open(assetName);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            Utils.copy(input, output);
+            return output.toByteArray();
+        } finally {
+            Utils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Closing the output stream closes the socket, so the client sees the connection
+     * go away before it has got as much as the Content-Length said it would.
+     */
+    private class DroppableResponse extends Response {
+
+        DroppableResponse(Response.Status status, String mimeType, InputStream data) {
+            super(status, mimeType, data);
+        }
+
+        DroppableResponse(Response.Status status, String mimeType, String text) {
+            super(status, mimeType, text);
+        }
+
+        @Override
+        protected void send(final OutputStream outputStream) {
+            if (dropConnectionsAfter < 0) {
+                super.send(outputStream);
+                return;
+            }
+
+            super.send(new FilterOutputStream(outputStream) {
+                private int sent = 0;
+
+                @Override
+                public void write(int b) throws IOException {
+                    if (sent >= dropConnectionsAfter) {
+                        Log.d(TAG, "Dropping connection after " + sent + " bytes");
+                        out.close();
+                        throw new IOException("Dropped connection");
+                    }
+                    sent++;
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int count) throws IOException {
+                    for (int i = 0; i < count; i++) {
+                        write(buffer[offset + i]);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -16,6 +16,7 @@ import java.io.BufferedInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -608,6 +609,26 @@ public class RepoXMLHandlerTest extends AndroidTestCase implements ProgressListe
         }
     }
 
+    public void testStreamingLargeRepo() {
+        final List<App> receivedApps = new ArrayList<>();
+        final List<Apk> receivedApks = new ArrayList<>();
+        RepoXMLHandler.IndexReceiver receiver = new RepoXMLHandler.IndexReceiver() {
+            @Override
+            public void receiveApp(App app, List<Apk> packages) {
+                receivedApps.add(app);
+                for (Apk apk : packages) {
+                    assertEquals(app.id, apk.id);
+                }
+                receivedApks.addAll(packages);
+            }
+        };
+        RepoXMLHandler handler = getFromFile(repo, "largeRepo.xml", receiver);
+        assertEquals(0, handler.getApps().size());
+        assertEquals(0, handler.getApks().size());
+        assertEquals(1211, receivedApps.size());
+        assertEquals(2381, receivedApks.size());
+    }
+
     private void handlerTestSuite(Repo repo, RepoXMLHandler handler, int appCount, int apkCount) {
         assertNotNull(handler);
         assertFalse(TextUtils.isEmpty(handler.getPubKey()));
@@ -633,11 +654,15 @@ public class RepoXMLHandlerTest extends AndroidTestCase implements ProgressListe
     }
 
     private RepoXMLHandler getFromFile(Repo repo, String indexFilename) {
+        return getFromFile(repo, indexFilename, null);
+    }
+
+    private RepoXMLHandler getFromFile(Repo repo, String indexFilename, RepoXMLHandler.IndexReceiver receiver) {
         SAXParser parser;
         try {
             parser = SAXParserFactory.newInstance().newSAXParser();
             XMLReader reader = parser.getXMLReader();
-            RepoXMLHandler handler = new RepoXMLHandler(repo, this);
+            RepoXMLHandler handler = new RepoXMLHandler(repo, this, receiver);
             reader.setContentHandler(handler);
             String resName = "assets/" + indexFilename;
             Log.i(TAG, "test file: " + getClass().getClassLoader().getResource(resName));